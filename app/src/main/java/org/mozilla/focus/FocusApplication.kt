@@ -34,6 +34,7 @@ import org.mozilla.focus.utils.EXPERIMENTS_COLLECTION_NAME
 import org.mozilla.focus.utils.EXPERIMENTS_JSON_FILENAME
 import org.mozilla.focus.utils.StethoWrapper
 import org.mozilla.focus.web.CleanupSessionObserver
+import org.mozilla.focus.web.TabSuspender
 import org.mozilla.focus.web.WebViewProvider
 import java.io.File
 import kotlin.coroutines.CoroutineContext
@@ -82,6 +83,9 @@ class FocusApplication : LocaleAwareApplication(), CoroutineScope {
             register(NotificationSessionObserver(this@FocusApplication))
             register(TelemetrySessionObserver())
             register(CleanupSessionObserver(this@FocusApplication))
+            if (AppConstants.isGeckoBuild) {
+                register(TabSuspender(this@FocusApplication, this))
+            }
         }
 
         launch(IO) { fretboard.updateExperiments() }
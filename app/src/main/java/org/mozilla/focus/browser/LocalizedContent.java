@@ -29,6 +29,8 @@ public class LocalizedContent {
     public static final String URL_ABOUT = "focus:about";
     public static final String URL_RIGHTS = "focus:rights";
 
+    private static volatile String cachedAboutVersion;
+
     public static boolean handleInternalContent(String url, IWebView webView, Context context) {
         if (URL_ABOUT.equals(url)) {
             loadAbout(webView, context);
@@ -51,17 +53,7 @@ public class LocalizedContent {
         final String appName = context.getResources().getString(R.string.app_name);
         final String learnMoreURL = SupportUtils.INSTANCE.getManifestoURL();
 
-        String aboutVersion = "";
-        try {
-            final String engineIndicator = AppConstants.INSTANCE.isGeckoBuild() ?
-                    " \uD83E\uDD8E " + BuildConfig.MOZ_APP_VERSION + "-" + BuildConfig.MOZ_APP_BUILDID : "";
-            final PackageInfo packageInfo = context.getPackageManager().getPackageInfo(context.getPackageName(), 0);
-
-            aboutVersion = String.format("%s (Build #%s)", packageInfo.versionName, packageInfo.versionCode + engineIndicator);
-        } catch (PackageManager.NameNotFoundException e) {
-            // Nothing to do if we can't find the package name.
-        }
-        substitutionMap.put("%about-version%", aboutVersion);
+        substitutionMap.put("%about-version%", getAboutVersion(context));
 
         final String aboutContent = resources.getString(R.string.about_content, appName, learnMoreURL);
         substitutionMap.put("%about-content%", aboutContent);
@@ -76,6 +68,30 @@ public class LocalizedContent {
         webView.loadData("file:///android_res/raw/about.html", data, "text/html", "UTF-8", URL_ABOUT);
     }
 
+    /**
+     * @return The version shown on focus:about: it can't change while we're running, so we only
+     * ask the package manager once.
+     */
+    private static String getAboutVersion(Context context) {
+        String aboutVersion = cachedAboutVersion;
+        if (aboutVersion != null) {
+            return aboutVersion;
+        }
+
+        aboutVersion = "";
+        try {
+            final String engineIndicator = AppConstants.INSTANCE.isGeckoBuild() ?
+                    " \uD83E\uDD8E " + BuildConfig.MOZ_APP_VERSION + "-" + BuildConfig.MOZ_APP_BUILDID : "";
+            final PackageInfo packageInfo = context.getPackageManager().getPackageInfo(context.getPackageName(), 0);
+
+            aboutVersion = String.format("%s (Build #%s)", packageInfo.versionName, packageInfo.versionCode + engineIndicator);
+            cachedAboutVersion = aboutVersion;
+        } catch (PackageManager.NameNotFoundException e) {
+            // Nothing to do if we can't find the package name.
+        }
+        return aboutVersion;
+    }
+
     /**
      * Load the content for focus:rights
      */
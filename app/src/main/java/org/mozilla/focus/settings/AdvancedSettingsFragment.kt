@@ -7,13 +7,23 @@ package org.mozilla.focus.settings
 import android.content.SharedPreferences
 import android.os.Bundle
 import org.mozilla.focus.R
+import org.mozilla.focus.ext.requireComponents
 import org.mozilla.focus.telemetry.TelemetryWrapper
+import org.mozilla.focus.utils.AppConstants
+import org.mozilla.focus.web.TabSuspender
+import org.mozilla.focus.webview.TrackingProtectionWebViewClient
 
 class AdvancedSettingsFragment : BaseSettingsFragment(),
         SharedPreferences.OnSharedPreferenceChangeListener {
 
     override fun onCreatePreferences(p0: Bundle?, p1: String?) {
         addPreferencesFromResource(R.xml.advanced_settings)
+
+        // Tabs are only suspended with GeckoView (see TabSuspender)
+        if (!AppConstants.isGeckoBuild) {
+            findPreference(getString(R.string.pref_key_tab_memory_budget)).isVisible = false
+            findPreference(getString(R.string.pref_key_tab_suspension_stats)).isVisible = false
+        }
     }
 
     override fun onResume() {
@@ -25,6 +35,30 @@ class AdvancedSettingsFragment : BaseSettingsFragment(),
         val updater = activity as BaseSettingsFragment.ActionBarUpdater
         updater.updateTitle(R.string.preference_category_advanced)
         updater.updateIcon(R.drawable.ic_back)
+
+        updateTrackingProtectionStats()
+        if (AppConstants.isGeckoBuild) {
+            updateTabSuspensionStats()
+        }
+    }
+
+    private fun updateTrackingProtectionStats() {
+        val preference = findPreference(getString(R.string.pref_key_tracking_protection_stats))
+        val stats = TrackingProtectionWebViewClient.getMatcherStats()
+
+        preference.summary = if (stats == null) {
+            getString(R.string.preference_tracking_protection_stats_unavailable)
+        } else {
+            "lists: ${TrackingProtectionWebViewClient.getListsVersion()}\n" +
+                    "$stats\n" +
+                    "warm-up: ${TrackingProtectionWebViewClient.getWarmUpStats()}\n" +
+                    "interception:\n${TrackingProtectionWebViewClient.getInterceptorStats()}"
+        }
+    }
+
+    private fun updateTabSuspensionStats() {
+        val preference = findPreference(getString(R.string.pref_key_tab_suspension_stats))
+        preference.summary = TabSuspender.getStats(requireComponents.sessionManager)
     }
 
     override fun onPause() {
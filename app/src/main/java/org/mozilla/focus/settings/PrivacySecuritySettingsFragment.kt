@@ -38,6 +38,14 @@ class PrivacySecuritySettingsFragment : BaseSettingsFragment(),
         val safeBrowsingPreference =
             findPreference(getString(R.string.pref_key_category_safe_browsing))
         preferenceScreen.removePreference(safeBrowsingPreference)
+
+        // The additional blocklists are only used by the WebView engine's UrlMatcher
+        if (AppConstants.isGeckoBuild) {
+            val additionalBlocklistsPreference =
+                findPreference(getString(R.string.pref_key_category_additional_blocklists))
+            preferenceScreen.removePreference(additionalBlocklistsPreference)
+        }
+
         val cookiesPreference =
             findPreference(getString(R.string.pref_key_performance_enable_cookies)) as CookiesPreference
         if (!AppConstants.isGeckoBuild) {
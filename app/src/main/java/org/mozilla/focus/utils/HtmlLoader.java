@@ -1,11 +1,14 @@
 package org.mozilla.focus.utils;
 
 import android.content.Context;
+import android.content.res.Configuration;
 import androidx.annotation.DrawableRes;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.RawRes;
+import androidx.core.os.ConfigurationCompat;
 import android.util.Base64;
+import android.util.SparseArray;
 
 import java.io.BufferedReader;
 import java.io.IOException;
@@ -16,10 +19,21 @@ import java.util.Map;
 
 public class HtmlLoader {
 
+    // Parsed resource files, by resource ID: raw resources don't depend on the configuration.
+    private static final SparseArray<HtmlTemplate> templates = new SparseArray<>();
+
+    // Data URIs, by drawable ID, for dataURIConfiguration only: drawables depend on the configuration
+    // (density, layout direction, locale), we start over whenever that changes.
+    private static final SparseArray<String> dataURIs = new SparseArray<>();
+    private static String dataURIConfiguration;
+
     /**
      * Load a given (html or css) resource file into a String. The input can contain tokens that will
      * be replaced with localised strings.
      *
+     * Each file is only read (and split into text and tokens) once, after that this only inserts
+     * the substitutions.
+     *
      * @param substitutionTable A table of substitions, e.g. %shortMessage% -> "Error loading page..."
      *                          Can be null, in which case no substitutions will be made.
      * @return The file content, with all substitutions having being made.
@@ -27,24 +41,24 @@ public class HtmlLoader {
     public static String loadResourceFile(@NonNull final Context context,
                                            @NonNull final @RawRes int resourceID,
                                            @Nullable final Map<String, String> substitutionTable) {
+        return getTemplate(context, resourceID).render(substitutionTable);
+    }
 
-        try (final BufferedReader fileReader =
-                     new BufferedReader(new InputStreamReader(context.getResources().openRawResource(resourceID), StandardCharsets.UTF_8))) {
-
-            final StringBuilder outputBuffer = new StringBuilder();
-
-            String line;
-            while ((line = fileReader.readLine()) != null) {
-                if (substitutionTable != null) {
-                    for (final Map.Entry<String, String> entry : substitutionTable.entrySet()) {
-                        line = line.replace(entry.getKey(), entry.getValue());
-                    }
-                }
-
-                outputBuffer.append(line);
+    private static HtmlTemplate getTemplate(@NonNull final Context context, @RawRes final int resourceID) {
+        synchronized (templates) {
+            HtmlTemplate template = templates.get(resourceID);
+            if (template == null) {
+                template = readTemplate(context, resourceID);
+                templates.put(resourceID, template);
             }
+            return template;
+        }
+    }
 
-            return outputBuffer.toString();
+    private static HtmlTemplate readTemplate(@NonNull final Context context, @RawRes final int resourceID) {
+        try (final BufferedReader fileReader =
+                     new BufferedReader(new InputStreamReader(context.getResources().openRawResource(resourceID), StandardCharsets.UTF_8))) {
+            return HtmlTemplate.parse(fileReader);
         } catch (final IOException e) {
             throw new IllegalStateException("Unable to load error page data", e);
         }
@@ -52,9 +66,33 @@ public class HtmlLoader {
 
     private final static byte[] pngHeader = new byte[] { -119, 80, 78, 71, 13, 10, 26, 10 };
 
+    /**
+     * @return The given png drawable (for the current configuration) as a data: URI. URIs are only
+     * encoded once per configuration.
+     */
     public static String loadPngAsDataURI(@NonNull final Context context,
                                           @NonNull final @DrawableRes int resourceID) {
+        final Configuration configuration = context.getResources().getConfiguration();
+        final String configurationKey = ConfigurationCompat.getLocales(configuration).toLanguageTags() + "/" +
+                configuration.getLayoutDirection() + "/" + configuration.densityDpi;
+
+        synchronized (dataURIs) {
+            if (!configurationKey.equals(dataURIConfiguration)) {
+                dataURIs.clear();
+                dataURIConfiguration = configurationKey;
+            }
+
+            String dataURI = dataURIs.get(resourceID);
+            if (dataURI == null) {
+                dataURI = encodePngAsDataURI(context, resourceID);
+                dataURIs.put(resourceID, dataURI);
+            }
+            return dataURI;
+        }
+    }
 
+    private static String encodePngAsDataURI(@NonNull final Context context,
+                                             @NonNull final @DrawableRes int resourceID) {
         final StringBuilder builder = new StringBuilder();
         builder.append("data:image/png;base64,");
 
@@ -0,0 +1,134 @@
+/* -*- Mode: Java; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package org.mozilla.focus.utils;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A (html or css) resource file, split into literal text and %placeholder% tokens once, so that it
+ * can be rendered repeatedly without reading or scanning the file again (see {@link HtmlLoader}).
+ *
+ * Placeholders are %-delimited names made of letters, digits and dashes. Placeholders without a
+ * substitution are rendered as they are, and substituted values are never scanned for placeholders
+ * themselves. Line breaks are dropped, like HtmlLoader always did.
+ */
+/* package-private */ final class HtmlTemplate {
+    // literals[i] is followed by placeholders[i]: there is one more literal than placeholders.
+    private final String[] literals;
+    private final String[] placeholders;
+    private final int literalLength;
+
+    // The rendering without any substitutions (e.g. stylesheets), created when first needed.
+    private volatile String plain;
+
+    private HtmlTemplate(final List<String> literals, final List<String> placeholders) {
+        this.literals = literals.toArray(new String[0]);
+        this.placeholders = placeholders.toArray(new String[0]);
+
+        int length = 0;
+        for (final String literal : this.literals) {
+            length += literal.length();
+        }
+        this.literalLength = length;
+    }
+
+    /* package-private */ static HtmlTemplate parse(@NonNull final BufferedReader reader) throws IOException {
+        final List<String> literals = new ArrayList<>();
+        final List<String> placeholders = new ArrayList<>();
+        final StringBuilder literal = new StringBuilder();
+
+        String line;
+        while ((line = reader.readLine()) != null) {
+            // Placeholders never span lines
+            int position = 0;
+            int start;
+            while ((start = line.indexOf('%', position)) != -1) {
+                final int end = findPlaceholderEnd(line, start);
+                if (end == -1) {
+                    literal.append(line, position, start + 1);
+                    position = start + 1;
+                    continue;
+                }
+
+                literal.append(line, position, start);
+                literals.add(literal.toString());
+                literal.setLength(0);
+
+                placeholders.add(line.substring(start, end + 1));
+                position = end + 1;
+            }
+            literal.append(line, position, line.length());
+        }
+        literals.add(literal.toString());
+
+        return new HtmlTemplate(literals, placeholders);
+    }
+
+    /**
+     * @return The index of the % closing the placeholder that starts at start, or -1 if there is
+     * no placeholder there.
+     */
+    private static int findPlaceholderEnd(final String line, final int start) {
+        for (int i = start + 1; i < line.length(); i++) {
+            final char c = line.charAt(i);
+
+            if (c == '%') {
+                return i > start + 1 ? i : -1;
+            } else if (!Character.isLetterOrDigit(c) && c != '-') {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param substitutions e.g. %shortMessage% -> "Error loading page...", can be null.
+     */
+    @NonNull
+    /* package-private */ String render(@Nullable final Map<String, String> substitutions) {
+        if (substitutions == null || substitutions.isEmpty() || placeholders.length == 0) {
+            return renderPlain();
+        }
+
+        // Resolve first, so that the output is built in one exactly sized buffer
+        final String[] values = new String[placeholders.length];
+        int length = literalLength;
+        for (int i = 0; i < placeholders.length; i++) {
+            final String value = substitutions.get(placeholders[i]);
+            values[i] = value != null ? value : placeholders[i];
+            length += values[i].length();
+        }
+
+        final StringBuilder builder = new StringBuilder(length);
+        for (int i = 0; i < placeholders.length; i++) {
+            builder.append(literals[i]).append(values[i]);
+        }
+        builder.append(literals[literals.length - 1]);
+
+        return builder.toString();
+    }
+
+    private String renderPlain() {
+        String result = plain;
+        if (result == null) {
+            final StringBuilder builder = new StringBuilder(literalLength + placeholders.length * 16);
+            for (int i = 0; i < placeholders.length; i++) {
+                builder.append(literals[i]).append(placeholders[i]);
+            }
+            builder.append(literals[literals.length - 1]);
+
+            result = builder.toString();
+            plain = result;
+        }
+        return result;
+    }
+}
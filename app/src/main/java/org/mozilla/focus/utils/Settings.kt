@@ -51,6 +51,15 @@ class Settings private constructor(context: Context) {
                     getPreferenceKey(R.string.pref_key_remote_debugging),
                     false)
 
+    /**
+     * @return How many tabs that aren't visible may keep their session open, -1 for no limit (see
+     * TabSuspender).
+     */
+    fun getBackgroundTabBudget(): Int =
+            preferences.getString(
+                    getPreferenceKey(R.string.pref_key_tab_memory_budget),
+                    resources.getString(R.string.tab_memory_budget_default))!!.toInt()
+
     fun shouldDisplayHomescreenTips() =
             preferences.getBoolean(
                     getPreferenceKey(R.string.pref_key_homescreen_tips),
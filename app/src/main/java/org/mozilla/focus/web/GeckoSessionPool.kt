@@ -0,0 +1,158 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.focus.web
+
+import android.content.ComponentCallbacks2
+import android.content.Context
+import android.content.res.Configuration
+import android.os.Looper
+import android.os.SystemClock
+import androidx.annotation.VisibleForTesting
+import org.mozilla.geckoview.GeckoRuntime
+import org.mozilla.geckoview.GeckoSession
+import java.util.ArrayDeque
+
+/**
+ * A few GeckoSessions that are created and opened ahead of time, so that a new tab doesn't have to
+ * wait for that (see [GeckoWebViewProvider.GeckoWebView]).
+ *
+ * The pool only saves the cost of creating and opening sessions: pooled sessions don't have any
+ * settings or delegates yet, GeckoWebView applies the current settings once it has taken a session
+ * (see GeckoWebView.applySettingsAndSetDelegates()). Settings changes therefore don't affect the
+ * pool.
+ *
+ * Sessions are only created while the main thread is idle, and are dropped when memory is low.
+ *
+ * Like GeckoSession itself, this must only be used on the main thread.
+ */
+class GeckoSessionPool(
+    private val size: Int,
+    private val createSession: () -> GeckoSession
+) : ComponentCallbacks2 {
+    private val sessions = ArrayDeque<GeckoSession>()
+    private var runtime: GeckoRuntime? = null
+    private var refillScheduled = false
+    // Set when memory is low: we don't refill until the next session is needed.
+    private var trimmed = false
+
+    /**
+     * Sessions that were taken from the pool, and sessions that had to be created on demand.
+     */
+    var hits = 0L
+        private set
+    var misses = 0L
+        private set
+    /**
+     * Time spent creating and opening sessions on demand (i.e. while a tab was waiting).
+     */
+    var missMillis = 0L
+        private set
+
+    /**
+     * Starts filling the pool, unless that has already happened.
+     */
+    fun start(context: Context, runtime: GeckoRuntime) {
+        if (this.runtime != null || size <= 0) {
+            return
+        }
+        this.runtime = runtime
+
+        context.applicationContext.registerComponentCallbacks(this)
+
+        scheduleRefill()
+    }
+
+    /**
+     * @return An open session, either from the pool or created now. The caller owns the session:
+     * it is never handed out twice.
+     */
+    fun take(runtime: GeckoRuntime): GeckoSession {
+        trimmed = false
+
+        var session = sessions.pollFirst()
+        while (session != null && !session.isOpen) {
+            // Closed behind our back (e.g. the content process was killed)
+            session = sessions.pollFirst()
+        }
+
+        if (session != null) {
+            hits++
+        } else {
+            val start = SystemClock.elapsedRealtime()
+            session = createSession()
+            session.open(runtime)
+            misses++
+            missMillis += SystemClock.elapsedRealtime() - start
+        }
+
+        scheduleRefill()
+        return session
+    }
+
+    /**
+     * Closes all sessions in the pool.
+     */
+    fun clear() {
+        while (sessions.isNotEmpty()) {
+            sessions.pollFirst().close()
+        }
+    }
+
+    private fun scheduleRefill() {
+        if (refillScheduled || trimmed || runtime == null || sessions.size >= size) {
+            return
+        }
+
+        refillScheduled = true
+        Looper.myQueue().addIdleHandler {
+            refillScheduled = false
+            refill()
+            // Only run once, refill() schedules the next session if needed
+            false
+        }
+    }
+
+    @VisibleForTesting
+    internal fun refill() {
+        val runtime = runtime ?: return
+        if (trimmed || sessions.size >= size) {
+            return
+        }
+
+        // One session per idle period: opening one isn't free either
+        val session = createSession()
+        session.open(runtime)
+        sessions.addLast(session)
+
+        scheduleRefill()
+    }
+
+    override fun onTrimMemory(level: Int) {
+        // UI_HIDDEN only means we went to the background: that's exactly when a warm session is
+        // useful (e.g. for the next link opened from another app).
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW &&
+            level != ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            trimmed = true
+            clear()
+        }
+    }
+
+    override fun onLowMemory() {
+        trimmed = true
+        clear()
+    }
+
+    override fun onConfigurationChanged(newConfig: Configuration) {
+        // Nothing: sessions don't depend on the configuration.
+    }
+
+    override fun toString(): String {
+        return "pooled=${sessions.size}/$size hits=$hits misses=$misses missMillis=$missMillis"
+    }
+
+    companion object {
+        const val DEFAULT_SIZE = 1
+    }
+}
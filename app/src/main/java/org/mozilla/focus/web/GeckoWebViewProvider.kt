@@ -6,6 +6,7 @@
 package org.mozilla.focus.web
 
 import android.app.Activity
+import android.app.ActivityManager
 import android.content.Context
 import android.content.SharedPreferences
 import android.net.Uri
@@ -57,6 +58,7 @@ class GeckoWebViewProvider : IWebViewProvider {
     override fun preload(context: Context) {
         sendTelemetryEventOnSwitchToGecko(context)
         createGeckoRuntime(context)
+        createSessionPool(context)
     }
 
     private fun sendTelemetryEventOnSwitchToGecko(context: Context) {
@@ -102,6 +104,18 @@ class GeckoWebViewProvider : IWebViewProvider {
         }
     }
 
+    private fun createSessionPool(context: Context) {
+        if (sessionPool == null) {
+            // Low RAM devices can't afford to keep a session around that might never be used
+            val activityManager = context.getSystemService(Context.ACTIVITY_SERVICE) as ActivityManager?
+            val size = if (activityManager?.isLowRamDevice == true) 0 else GeckoSessionPool.DEFAULT_SIZE
+
+            sessionPool = GeckoSessionPool(size) { createGeckoSession() }.apply {
+                start(context, geckoRuntime!!)
+            }
+        }
+    }
+
     override fun requestMobileSite(context: Context, webSettings: WebSettings) {
     }
 
@@ -146,9 +160,8 @@ class GeckoWebViewProvider : IWebViewProvider {
         init {
             PreferenceManager.getDefaultSharedPreferences(context)
                 .registerOnSharedPreferenceChangeListener(this)
-            geckoSession = createGeckoSession()
+            geckoSession = takeGeckoSession()
             applySettingsAndSetDelegates()
-            geckoSession.open(geckoRuntime!!)
             setSession(geckoSession)
         }
 
@@ -165,13 +178,6 @@ class GeckoWebViewProvider : IWebViewProvider {
             finder.displayFlags = GeckoSession.FINDER_DISPLAY_HIGHLIGHT_ALL
         }
 
-        private fun createGeckoSession(): GeckoSession {
-            val builder = GeckoSessionSettings.Builder()
-            builder.usePrivateMode(true)
-            builder.suspendMediaWhenInactive(true)
-            return GeckoSession(builder.build())
-        }
-
         override fun setCallback(callback: IWebView.Callback?) {
             this.callback = callback
         }
@@ -599,7 +605,9 @@ class GeckoWebViewProvider : IWebViewProvider {
             val stateData = session.savedWebViewState!!
             val savedSession = stateData.getParcelable<GeckoSession>(GECKO_SESSION)!!
 
-            if (geckoSession != savedSession && !restored) {
+            if (TabSuspender.isSuspended(stateData)) {
+                restoreSuspendedState(stateData)
+            } else if (geckoSession != savedSession && !restored) {
                 // Tab changed, we need to close the default session and restore our saved session
                 geckoSession.close()
 
@@ -627,6 +635,31 @@ class GeckoWebViewProvider : IWebViewProvider {
             }
         }
 
+        /**
+         * The tab's session was closed while it wasn't visible (see TabSuspender): we continue
+         * with this view's own session, and load the page again.
+         */
+        private fun restoreSuspendedState(stateData: Bundle) {
+            // The new session has no history: the navigation delegate updates these once loaded
+            canGoBack = false
+            canGoForward = false
+            isSecure = stateData.getBoolean(IS_SECURE, false)
+            webViewTitle = stateData.getString(WEBVIEW_TITLE, null)
+            currentUrl = stateData.getString(CURRENT_URL, ABOUT_BLANK)
+            applySettingsAndSetDelegates()
+            if (!geckoSession.isOpen) {
+                geckoSession.open(geckoRuntime!!)
+            }
+            setSession(geckoSession)
+            restored = false
+
+            stateData.remove(SUSPENDED)
+            stateData.putParcelable(GECKO_SESSION, geckoSession)
+            TabSuspender.recordRestore()
+
+            loadUrl(currentUrl)
+        }
+
         override fun onRestoreInstanceState(state: Parcelable?) {
             if (geckoSession.isOpen) {
                 geckoSession.close()
@@ -717,6 +750,7 @@ class GeckoWebViewProvider : IWebViewProvider {
     companion object {
         @Volatile
         private var geckoRuntime: GeckoRuntime? = null
+        private var sessionPool: GeckoSessionPool? = null
         private var internalAboutData: String? = null
         private var internalRightsData: String? = null
         private const val USER_AGENT =
@@ -726,11 +760,28 @@ class GeckoWebViewProvider : IWebViewProvider {
         const val CAN_GO_BACK = "canGoBack"
         const val CAN_GO_FORWARD = "canGoForward"
         const val GECKO_SESSION = "geckoSession"
+        const val SUSPENDED = "suspended"
         const val IS_SECURE = "isSecure"
         const val WEBVIEW_TITLE = "webViewTitle"
         const val CURRENT_URL = "currentUrl"
         const val ABOUT_BLANK = "about:blank"
 
+        private fun createGeckoSession(): GeckoSession {
+            val builder = GeckoSessionSettings.Builder()
+            builder.usePrivateMode(true)
+            builder.suspendMediaWhenInactive(true)
+            return GeckoSession(builder.build())
+        }
+
+        /**
+         * @return An open session for a new tab: from the pool if possible, so that the tab doesn't
+         * have to wait for the session to be created.
+         */
+        private fun takeGeckoSession(): GeckoSession {
+            val runtime = geckoRuntime!!
+            return sessionPool?.take(runtime) ?: createGeckoSession().apply { open(runtime) }
+        }
+
         /**
          * Provides an ErrorType corresponding to the error code provided.
          */
@@ -0,0 +1,173 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.focus.web
+
+import android.content.ComponentCallbacks2
+import android.content.Context
+import android.content.res.Configuration
+import android.os.Bundle
+import android.os.Handler
+import android.os.Looper
+import android.os.SystemClock
+import androidx.annotation.VisibleForTesting
+import mozilla.components.browser.session.Session
+import mozilla.components.browser.session.SessionManager
+import org.mozilla.focus.ext.savedWebViewState
+import org.mozilla.focus.utils.Settings
+import org.mozilla.geckoview.GeckoSession
+import java.util.WeakHashMap
+
+/**
+ * Closes the GeckoSessions of tabs that aren't visible, so that memory doesn't grow with every tab
+ * that is opened. A tab is suspended once it hasn't been visible for a while, when there are more
+ * background tabs than the memory budget setting allows (the ones hidden longest go first), or
+ * when the system is low on memory.
+ *
+ * Suspended tabs keep their URL, title and navigation state in savedWebViewState:
+ * GeckoWebView.restoreWebViewState() opens a new session and reloads the page when they are
+ * selected again. Their back/forward history is lost (private sessions can't be saved).
+ *
+ * Only used on the main thread.
+ */
+class TabSuspender(
+    private val context: Context,
+    private val sessionManager: SessionManager,
+    private val idleTimeoutMillis: Long = DEFAULT_IDLE_TIMEOUT_MS
+) : SessionManager.Observer, ComponentCallbacks2 {
+    private val handler = Handler(Looper.getMainLooper())
+    // When tabs were last visible, or when we first saw them (e.g. tabs that were added before we
+    // were registered).
+    private val hiddenSince = WeakHashMap<Session, Long>()
+    private var selected: Session? = null
+
+    private val check = Runnable { suspendTabs(force = false) }
+
+    init {
+        context.applicationContext.registerComponentCallbacks(this)
+    }
+
+    override fun onSessionSelected(session: Session) {
+        selected?.let { hiddenSince[it] = SystemClock.elapsedRealtime() }
+        hiddenSince.remove(session)
+        selected = session
+
+        // The previous tab's fragment is still being replaced (and saves its state when paused):
+        // wait for that before checking the budget.
+        scheduleCheck(BUDGET_CHECK_DELAY_MS)
+        scheduleCheck(idleTimeoutMillis)
+    }
+
+    override fun onSessionAdded(session: Session) {
+        hiddenSince[session] = SystemClock.elapsedRealtime()
+
+        // Tabs opened in the background might never be selected: they need checks of their own.
+        scheduleCheck(BUDGET_CHECK_DELAY_MS)
+        scheduleCheck(idleTimeoutMillis)
+    }
+
+    override fun onSessionRemoved(session: Session) {
+        hiddenSince.remove(session)
+        if (selected == session) {
+            selected = null
+        }
+    }
+
+    override fun onAllSessionsRemoved() {
+        hiddenSince.clear()
+        selected = null
+        handler.removeCallbacks(check)
+    }
+
+    private fun scheduleCheck(delayMillis: Long) {
+        handler.postDelayed(check, delayMillis)
+    }
+
+    /**
+     * @param force Suspend all background tabs, no matter how recently they were visible.
+     */
+    @VisibleForTesting
+    internal fun suspendTabs(force: Boolean) {
+        val now = SystemClock.elapsedRealtime()
+        val current = sessionManager.selectedSession
+
+        // Oldest first. Tabs we haven't seen yet only count as hidden from now on.
+        val live = sessionManager.sessions
+            .filter { it != current && isLive(it) }
+            .sortedBy { hiddenSince.getOrPut(it) { now } }
+
+        val budget = Settings.getInstance(context).getBackgroundTabBudget()
+        val overBudget = if (budget < 0) 0 else maxOf(0, live.size - budget)
+
+        live.forEachIndexed { index, session ->
+            val hiddenMillis = now - hiddenSince.getValue(session)
+
+            if (force || index < overBudget || hiddenMillis >= idleTimeoutMillis) {
+                suspend(session)
+            }
+        }
+    }
+
+    private fun suspend(session: Session) {
+        val state = session.savedWebViewState ?: return
+        val geckoSession = state.getParcelable<GeckoSession>(GeckoWebViewProvider.GECKO_SESSION) ?: return
+
+        if (geckoSession.isOpen) {
+            geckoSession.close()
+        }
+        state.putBoolean(GeckoWebViewProvider.SUSPENDED, true)
+        suspendedCount++
+    }
+
+    override fun onTrimMemory(level: Int) {
+        // Going to the background alone isn't a reason, but anything worse is
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW &&
+            level != ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            suspendTabs(force = true)
+        }
+    }
+
+    override fun onLowMemory() {
+        suspendTabs(force = true)
+    }
+
+    override fun onConfigurationChanged(newConfig: Configuration) {
+        // Nothing: tabs don't depend on the configuration.
+    }
+
+    companion object {
+        const val DEFAULT_IDLE_TIMEOUT_MS = 10L * 60 * 1000
+        private const val BUDGET_CHECK_DELAY_MS = 5000L
+
+        /**
+         * Tabs suspended, and restored (i.e. reloaded when selected again), since the app started.
+         */
+        var suspendedCount = 0L
+            private set
+        var restoredCount = 0L
+            private set
+
+        /**
+         * @return Whether the tab with the given state has an open session.
+         */
+        internal fun isLive(session: Session): Boolean {
+            val state = session.savedWebViewState ?: return false
+            val geckoSession = state.getParcelable<GeckoSession>(GeckoWebViewProvider.GECKO_SESSION)
+            return !isSuspended(state) && geckoSession != null && geckoSession.isOpen
+        }
+
+        internal fun isSuspended(state: Bundle) = state.getBoolean(GeckoWebViewProvider.SUSPENDED, false)
+
+        internal fun recordRestore() {
+            restoredCount++
+        }
+
+        fun getStats(sessionManager: SessionManager): String {
+            val suspended = sessionManager.sessions.count { tab ->
+                tab.savedWebViewState?.let { isSuspended(it) } == true
+            }
+            return "suspended now=$suspended total=$suspendedCount restored=$restoredCount"
+        }
+    }
+}
@@ -12,10 +12,11 @@ import android.net.http.SslError;
 import android.os.Bundle;
 import android.text.TextUtils;
 import android.webkit.SslErrorHandler;
+import android.webkit.ValueCallback;
 import android.webkit.WebResourceRequest;
-import android.webkit.WebResourceResponse;
 import android.webkit.WebView;
 import android.webkit.WebViewClient;
+import androidx.annotation.NonNull;
 
 import org.mozilla.focus.browser.LocalizedContent;
 import org.mozilla.focus.telemetry.TelemetryWrapper;
@@ -25,6 +26,7 @@ import org.mozilla.focus.web.IWebView;
 
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.UUID;
 
 import static android.view.View.IMPORTANT_FOR_ACCESSIBILITY_NO;
 import static android.view.View.IMPORTANT_FOR_ACCESSIBILITY_YES;
@@ -34,6 +36,8 @@ import static android.view.View.IMPORTANT_FOR_ACCESSIBILITY_YES;
  * and external URL handling.
  */
 /* package */ class FocusWebViewClient extends TrackingProtectionWebViewClient {
+    /* package */ static final String STAGE_MAIN_FRAME = "mainFrame";
+
     private static final String ERROR_PROTOCOL = "error:";
     private static final String STATE_KEY_URL = "client_last_url";
     private static final String STATE_KEY_CERTIFICATE = "client_last_certificate";
@@ -45,12 +49,63 @@ import static android.view.View.IMPORTANT_FOR_ACCESSIBILITY_YES;
 
     /* package */ FocusWebViewClient(Context context) {
         super(context);
+
+        // Before any other stage: this has to see every main frame request, even ones that are
+        // blocked, and those for sites that tracking protection is disabled for.
+        getInterceptors().addFirst(new RequestInterceptor() {
+            @NonNull
+            @Override
+            public String getName() {
+                return STAGE_MAIN_FRAME;
+            }
+
+            @NonNull
+            @Override
+            public Decision intercept(@NonNull final WebView view, @NonNull final WebResourceRequest request) {
+                if (request.isForMainFrame()) {
+                    onMainFrameRequest(view, request);
+                }
+                return Decision.CONTINUE;
+            }
+        });
+    }
+
+    private void onMainFrameRequest(final WebView view, final WebResourceRequest request) {
+        // Only update the user visible URL if:
+        // 1. The purported site URL has actually been requested
+        // 2. And it's being loaded for the main frame (and not a fake/hidden/iframe request)
+        // Note also: shouldInterceptRequest() runs on a background thread, so we can't actually
+        // query WebView.getURL().
+        // We update the URL when loading has finished too (redirects can happen after a request has been
+        // made in which case we don't get shouldInterceptRequest with the final URL), but this
+        // allows us to update the URL during loading.
+
+        // WebView will always add a trailing / to the request URL, but currentPageURL may or may
+        // not have a trailing URL (usually no trailing / when a link is entered via UrlInputFragment),
+        // hence we do a somewhat convoluted test:
+        final String requestURL = request.getUrl().toString();
+        final String currentURL = currentPageURL;
+
+        if (UrlUtils.urlsMatchExceptForTrailingSlash(currentURL, requestURL)) {
+            view.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (callback != null) {
+                        callback.onURLChanged(currentURL);
+                    }
+                }
+            });
+        }
+
+        if (callback != null) {
+            callback.onRequest(request.hasGesture());
+        }
     }
 
     /**
      * Always ensure the following is wrapped in an anonymous function before execution.
      * (We don't wrap here, since this code might be run as part of a larger function, see
-     * e.g. onLoadResource().)
+     * INSTALL_CLEAR_VISITED_CSS.)
      */
     private static final String CLEAR_VISITED_CSS =
             "var nSheets = document.styleSheets.length;" +
@@ -83,69 +138,128 @@ import static android.view.View.IMPORTANT_FOR_ACCESSIBILITY_YES;
             "  }" +
             "}";
 
-    @Override
-    public void onLoadResource(WebView view, String url) {
-        // We can't access the webview during shouldInterceptRequest(), however onLoadResource()
-        // is called on the UI thread so we're allowed to do this now:
-        view.evaluateJavascript(
-                "(function() {" +
+    /**
+     * The document property that the installed cleanup is stored in. Pages can see it, so it's
+     * random (i.e. pages can't disable the cleanup by defining it first), and it's defined as
+     * non-enumerable and read-only.
+     */
+    /* package-private */ static final String CLEAR_VISITED_KEY =
+            "_focus" + UUID.randomUUID().toString().replace("-", "");
+
+    /**
+     * Installs the :visited cleanup into the current document, unless that has already happened:
+     * stylesheets that are linked or inserted later are cleaned up by a MutationObserver (and
+     * load listeners on the <link> elements), instead of us re-running the script for every
+     * resource. Every evaluation runs the cleanup once. Returns the document's URL, so that we
+     * know which document it was installed into.
+     */
+    /* package-private */ static final String INSTALL_CLEAR_VISITED_CSS =
+            "(function() {" +
+            "var installed = Object.getOwnPropertyDescriptor(document, '" + CLEAR_VISITED_KEY + "');" +
+            // Anything else than our function (a getter, or any other value) was set by the page
+            "if (!installed || typeof installed.value !== 'function') {" +
+            "  var cleanupVisited = function() {" +
+            CLEAR_VISITED_CSS +
+            "  };" +
+
+            // Returns whether a stylesheet was added that is already usable, <link>s are only
+            // cleaned up once they've loaded.
+            "  var watch = function(node) {" +
+            "    if (node.nodeType == Node.TEXT_NODE) {" +
+            "      return node.parentNode != null && node.parentNode.tagName == 'STYLE';" +
+            "    }" +
+            "    if (node.nodeType != Node.ELEMENT_NODE) {" +
+            "      return false;" +
+            "    }" +
+            "    if (node.tagName == 'LINK') {" +
+            "      if (node.rel == 'stylesheet') {" +
+            "        node.addEventListener('load', cleanupVisited, false);" +
+            "      }" +
+            "      return false;" +
+            "    }" +
+            "    if (node.tagName == 'STYLE') {" +
+            "      return true;" +
+            "    }" +
+            // Added subtrees are only reported once, via their root:
+            "    var links = node.getElementsByTagName('link');" +
+            "    for (var l = 0; l < links.length; l++) {" +
+            "      watch(links[l]);" +
+            "    }" +
+            "    return node.getElementsByTagName('style').length > 0;" +
+            "  };" +
+
+            "  var links = document.getElementsByTagName('link');" +
+            "  for (var l = 0; l < links.length; l++) {" +
+            "    watch(links[l]);" +
+            "  }" +
 
-                "function cleanupVisited() {" +
-                CLEAR_VISITED_CSS +
-                "}" +
+            "  new MutationObserver(function(mutations) {" +
+            "    var added = false;" +
+            "    for (var m = 0; m < mutations.length; m++) {" +
+            "      var nodes = mutations[m].addedNodes;" +
+            "      for (var n = 0; n < nodes.length; n++) {" +
+            "        added = watch(nodes[n]) || added;" +
+            "      }" +
+            "    }" +
+            "    if (added) {" +
+            "      cleanupVisited();" +
+            "    }" +
+            "  }).observe(document, { childList: true, subtree: true });" +
+
+            "  installed = { value: cleanupVisited };" +
+            "  try {" +
+            "    Object.defineProperty(document, '" + CLEAR_VISITED_KEY + "', {" +
+            "      value: cleanupVisited, enumerable: false, writable: false, configurable: false" +
+            "    });" +
+            "  } catch (e) {" +
+            // The page made the property non-configurable: we'll install again next time.
+            "  }" +
+            "}" +
+            "installed.value();" +
+            "return document.URL;" +
+            "})();";
 
-                // Add an onLoad() listener so that we run the cleanup script every time
-                // a <link>'d css stylesheet is loaded:
-                "var links = document.getElementsByTagName('link');" +
-                "for (i = 0; i < links.length; i++) {" +
-                "  link = links[i];" +
-                "  if (link.rel == 'stylesheet') {" +
-                "    link.addEventListener('load', cleanupVisited, false);" +
-                "  }" +
-                "}" +
+    /**
+     * onLoadResource() can be called before the new document has replaced the previous one: we keep
+     * injecting until the script reports the page's URL (and in onPageFinished() in any case), but
+     * give up after a few attempts, e.g. if the document's URL differs from the one we were given.
+     */
+    /* package */ static final int MAX_CLEAR_VISITED_ATTEMPTS = 8;
 
-                "})();",
+    // The page we still need to install the :visited cleanup into (null once done), and how often
+    // we've tried. Only accessed on the UI thread.
+    private String clearVisitedPendingURL;
+    private int clearVisitedAttempts;
 
-                null);
+    @Override
+    public void onLoadResource(WebView view, String url) {
+        // We can't access the webview during shouldInterceptRequest(), however onLoadResource()
+        // is called on the UI thread so we're allowed to do this now:
+        if (clearVisitedPendingURL != null && clearVisitedAttempts < MAX_CLEAR_VISITED_ATTEMPTS) {
+            clearVisitedAttempts++;
+            installClearVisited(view);
+        }
 
         super.onLoadResource(view, url);
     }
 
-    @Override
-    public WebResourceResponse shouldInterceptRequest(WebView view, final WebResourceRequest request) {
-        // Only update the user visible URL if:
-        // 1. The purported site URL has actually been requested
-        // 2. And it's being loaded for the main frame (and not a fake/hidden/iframe request)
-        // Note also: shouldInterceptRequest() runs on a background thread, so we can't actually
-        // query WebView.getURL().
-        // We update the URL when loading has finished too (redirects can happen after a request has been
-        // made in which case we don't get shouldInterceptRequest with the final URL), but this
-        // allows us to update the URL during loading.
-        if (request.isForMainFrame()) {
-
-            // WebView will always add a trailing / to the request URL, but currentPageURL may or may
-            // not have a trailing URL (usually no trailing / when a link is entered via UrlInputFragment),
-            // hence we do a somewhat convoluted test:
-            final String requestURL = request.getUrl().toString();
-            final String currentURL = currentPageURL;
-
-            if (UrlUtils.urlsMatchExceptForTrailingSlash(currentURL, requestURL)) {
-                view.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        if (callback != null) {
-                            callback.onURLChanged(currentURL);
-                        }
-                    }
-                });
-            }
+    private void installClearVisited(final WebView view) {
+        final String pageURL = clearVisitedPendingURL;
 
-            if (callback != null) {
-                callback.onRequest(request.hasGesture());
-            }
-        }
+        view.evaluateJavascript(INSTALL_CLEAR_VISITED_CSS, new ValueCallback<String>() {
+            @Override
+            public void onReceiveValue(final String value) {
+                // The result is JSON encoded, i.e. a quoted string (or "null" if the script failed)
+                final String documentURL = value != null && value.length() >= 2 && value.charAt(0) == '"'
+                        ? value.substring(1, value.length() - 1)
+                        : null;
 
-        return super.shouldInterceptRequest(view, request);
+                if (pageURL != null && pageURL.equals(clearVisitedPendingURL)
+                        && UrlUtils.urlsMatchExceptForTrailingSlash(pageURL, documentURL)) {
+                    clearVisitedPendingURL = null;
+                }
+            }
+        });
     }
 
     @Override
@@ -176,6 +290,9 @@ import static android.view.View.IMPORTANT_FOR_ACCESSIBILITY_YES;
         // Enable TalkBack again for WebView now that we've announced the URL
         view.setImportantForAccessibility(IMPORTANT_FOR_ACCESSIBILITY_YES);
 
+        clearVisitedPendingURL = url;
+        clearVisitedAttempts = 0;
+
         super.onPageStarted(view, url, favicon);
     }
 
@@ -236,14 +353,8 @@ import static android.view.View.IMPORTANT_FOR_ACCESSIBILITY_YES;
         }
         super.onPageFinished(view, url);
 
-        view.evaluateJavascript(
-                "(function() {" +
-
-                CLEAR_VISITED_CSS +
-
-                "})();",
-
-                null);
+        // Installs the cleanup if that didn't happen yet, and cleans up whatever is there now.
+        installClearVisited(view);
     }
 
     @Override
@@ -0,0 +1,144 @@
+/* -*- Mode: Java; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package org.mozilla.focus.webview;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts the decisions of, and time spent in, each stage of request interception. Stages are
+ * identified by name: all chains sharing one InterceptorStats (e.g. the chains of all tabs) add up
+ * into the same counters.
+ */
+public final class InterceptorStats {
+    /* package-private */ static final class Counters {
+        private final String name;
+        private final AtomicLongArray decisions = new AtomicLongArray(RequestInterceptor.Action.values().length);
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        private Counters(final String name) {
+            this.name = name;
+        }
+
+        /* package-private */ void record(final RequestInterceptor.Action action, final long nanos) {
+            decisions.incrementAndGet(action.ordinal());
+            totalNanos.addAndGet(nanos);
+
+            long max;
+            while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) {
+                // Retry: someone else updated the maximum in the meantime
+            }
+        }
+    }
+
+    // Stage name -> counters, in the order stages were first added.
+    private final Map<String, Counters> counters = new LinkedHashMap<>();
+
+    /**
+     * @return The counters for the given stage: chains look these up once when a stage is added,
+     * not per request.
+     */
+    /* package-private */ synchronized Counters getCounters(@NonNull final String name) {
+        Counters stage = counters.get(name);
+        if (stage == null) {
+            stage = new Counters(name);
+            counters.put(name, stage);
+        }
+        return stage;
+    }
+
+    @NonNull
+    public synchronized Snapshot snapshot() {
+        final List<Stage> stages = new ArrayList<>(counters.size());
+
+        for (final Counters stage : counters.values()) {
+            final long[] decisions = new long[stage.decisions.length()];
+            for (int i = 0; i < decisions.length; i++) {
+                decisions[i] = stage.decisions.get(i);
+            }
+            stages.add(new Stage(stage.name, decisions, stage.totalNanos.get(), stage.maxNanos.get()));
+        }
+
+        return new Snapshot(stages);
+    }
+
+    /**
+     * The counters of one stage at one point in time.
+     */
+    public static final class Stage {
+        @NonNull public final String name;
+        public final long totalNanos;
+        public final long maxNanos;
+
+        private final long[] decisions;
+
+        private Stage(@NonNull final String name, final long[] decisions, final long totalNanos, final long maxNanos) {
+            this.name = name;
+            this.decisions = decisions;
+            this.totalNanos = totalNanos;
+            this.maxNanos = maxNanos;
+        }
+
+        public long getCount(@NonNull final RequestInterceptor.Action action) {
+            return decisions[action.ordinal()];
+        }
+
+        /**
+         * @return The number of requests this stage has seen.
+         */
+        public long getRequestCount() {
+            long count = 0;
+            for (final long decisionCount : decisions) {
+                count += decisionCount;
+            }
+            return count;
+        }
+
+        public long getMeanNanos() {
+            final long count = getRequestCount();
+            return count == 0 ? 0 : totalNanos / count;
+        }
+
+        @Override
+        public String toString() {
+            return name + ": requests=" + getRequestCount() +
+                    " allowed=" + getCount(RequestInterceptor.Action.ALLOW) +
+                    " responded=" + getCount(RequestInterceptor.Action.RESPOND) +
+                    " mean=" + getMeanNanos() + "ns max=" + maxNanos + "ns" +
+                    " total=" + totalNanos / 1000000 + "ms";
+        }
+    }
+
+    public static final class Snapshot {
+        /**
+         * All stages, in the order they were first added to a chain.
+         */
+        @NonNull public final List<Stage> stages;
+
+        private Snapshot(final List<Stage> stages) {
+            this.stages = Collections.unmodifiableList(stages);
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder builder = new StringBuilder();
+            for (final Stage stage : stages) {
+                if (builder.length() > 0) {
+                    builder.append('\n');
+                }
+                builder.append(stage);
+            }
+            return builder.toString();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/* -*- Mode: Java; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package org.mozilla.focus.webview;
+
+import android.webkit.WebResourceRequest;
+import android.webkit.WebResourceResponse;
+import android.webkit.WebView;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+/**
+ * One stage of a {@link RequestInterceptorChain}: stages are asked in order, and each of them can
+ * either pass the request on to the next stage, or decide what happens to it.
+ *
+ * Stages are called from WebView's network threads (see WebViewClient.shouldInterceptRequest()),
+ * possibly concurrently.
+ */
+public interface RequestInterceptor {
+    enum Action {
+        /**
+         * Pass the request on to the next stage (it is loaded if no stage decides otherwise).
+         */
+        CONTINUE,
+        /**
+         * Let WebView load the request, skipping all remaining stages.
+         */
+        ALLOW,
+        /**
+         * Answer the request with the decision's response (e.g. an empty response to block it),
+         * skipping all remaining stages.
+         */
+        RESPOND
+    }
+
+    final class Decision {
+        public static final Decision CONTINUE = new Decision(Action.CONTINUE, null);
+        public static final Decision ALLOW = new Decision(Action.ALLOW, null);
+
+        @NonNull public final Action action;
+        @Nullable public final WebResourceResponse response;
+
+        private Decision(@NonNull final Action action, @Nullable final WebResourceResponse response) {
+            this.action = action;
+            this.response = response;
+        }
+
+        public static Decision respond(@NonNull final WebResourceResponse response) {
+            return new Decision(Action.RESPOND, response);
+        }
+
+        /**
+         * @return A decision to answer the request with an empty response.
+         */
+        public static Decision block() {
+            return respond(new WebResourceResponse(null, null, null));
+        }
+    }
+
+    /**
+     * @return Identifies this stage in the stats, and for {@link RequestInterceptorChain#addBefore(String, RequestInterceptor)}.
+     */
+    @NonNull
+    String getName();
+
+    @WorkerThread
+    @NonNull
+    Decision intercept(@NonNull WebView view, @NonNull WebResourceRequest request);
+}
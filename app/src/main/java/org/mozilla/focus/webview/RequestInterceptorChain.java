@@ -0,0 +1,98 @@
+/* -*- Mode: Java; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package org.mozilla.focus.webview;
+
+import android.webkit.WebResourceRequest;
+import android.webkit.WebResourceResponse;
+import android.webkit.WebView;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The stages that every request WebView makes passes through (see {@link RequestInterceptor}),
+ * in order: the first stage that doesn't continue decides what happens to the request.
+ *
+ * Stages are usually added when a WebViewClient is created, but can be added at any time: requests
+ * that are in progress finish with the stages they started with.
+ */
+public final class RequestInterceptorChain {
+    private static final class Stage {
+        private final RequestInterceptor interceptor;
+        private final InterceptorStats.Counters counters;
+
+        private Stage(final RequestInterceptor interceptor, final InterceptorStats.Counters counters) {
+            this.interceptor = interceptor;
+            this.counters = counters;
+        }
+    }
+
+    private final CopyOnWriteArrayList<Stage> stages = new CopyOnWriteArrayList<>();
+    private final InterceptorStats stats;
+
+    /**
+     * @param stats Where the stages' decisions and latencies are recorded.
+     */
+    public RequestInterceptorChain(@NonNull final InterceptorStats stats) {
+        this.stats = stats;
+    }
+
+    /**
+     * Adds a stage after all current stages.
+     */
+    public synchronized RequestInterceptorChain add(@NonNull final RequestInterceptor interceptor) {
+        stages.add(createStage(interceptor));
+        return this;
+    }
+
+    /**
+     * Adds a stage before all current stages.
+     */
+    public synchronized RequestInterceptorChain addFirst(@NonNull final RequestInterceptor interceptor) {
+        stages.add(0, createStage(interceptor));
+        return this;
+    }
+
+    /**
+     * Adds a stage right before the stage with the given name.
+     *
+     * @throws IllegalArgumentException If there is no such stage.
+     */
+    public synchronized RequestInterceptorChain addBefore(@NonNull final String name, @NonNull final RequestInterceptor interceptor) {
+        for (int i = 0; i < stages.size(); i++) {
+            if (stages.get(i).interceptor.getName().equals(name)) {
+                stages.add(i, createStage(interceptor));
+                return this;
+            }
+        }
+
+        throw new IllegalArgumentException("No stage named " + name);
+    }
+
+    private Stage createStage(final RequestInterceptor interceptor) {
+        return new Stage(interceptor, stats.getCounters(interceptor.getName()));
+    }
+
+    /**
+     * @return The response decided on by a stage, or null if the request should be loaded.
+     */
+    @WorkerThread
+    @Nullable
+    public WebResourceResponse intercept(@NonNull final WebView view, @NonNull final WebResourceRequest request) {
+        for (final Stage stage : stages) {
+            final long start = System.nanoTime();
+            final RequestInterceptor.Decision decision = stage.interceptor.intercept(view, request);
+            stage.counters.record(decision.action, System.nanoTime() - start);
+
+            if (decision.action != RequestInterceptor.Action.CONTINUE) {
+                return decision.response;
+            }
+        }
+
+        return null;
+    }
+}
@@ -4,10 +4,14 @@
  * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
 package org.mozilla.focus.webview;
 
+import android.app.ActivityManager;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.net.Uri;
 import android.os.AsyncTask;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 import androidx.annotation.WorkerThread;
 import android.webkit.HttpAuthHandler;
 import android.webkit.WebResourceRequest;
@@ -17,37 +21,193 @@ import android.webkit.WebViewClient;
 
 import org.mozilla.focus.R;
 import org.mozilla.focus.web.IWebView;
+import org.mozilla.focus.webview.matcher.MatcherStats;
+import org.mozilla.focus.webview.matcher.PageContext;
+import org.mozilla.focus.webview.matcher.PathRules;
 import org.mozilla.focus.webview.matcher.UrlMatcher;
 
+import java.io.File;
+import java.util.concurrent.Callable;
+
 public class TrackingProtectionWebViewClient extends WebViewClient {
-    private static volatile UrlMatcher MATCHER;
+    /**
+     * What to do with requests that arrive before the blocklists have been loaded. Requests for
+     * the main frame are always allowed.
+     */
+    public enum WarmUpPolicy {
+        /**
+         * Wait for the blocklists (up to the warm-up timeout), the request is blocked if they
+         * still aren't loaded by then.
+         */
+        WAIT,
+        /**
+         * Allow the request: trackers aren't blocked until the blocklists have been loaded.
+         */
+        ALLOW,
+        /**
+         * Block the request (requests for the main frame are always allowed).
+         */
+        BLOCK
+    }
+
+    public static final WarmUpPolicy DEFAULT_WARM_UP_POLICY = WarmUpPolicy.WAIT;
+    public static final long DEFAULT_WARM_UP_TIMEOUT_MS = 250;
+
+    private static volatile WarmUpPolicy warmUpPolicy = DEFAULT_WARM_UP_POLICY;
+    private static volatile long warmUpTimeoutMillis = DEFAULT_WARM_UP_TIMEOUT_MS;
+
+    private static volatile UrlMatcherHolder MATCHER_HOLDER;
+
+    // Names of the request interception stages, in order (subclasses add their own stages).
+    public static final String STAGE_ALLOW_LIST = "allowList";
+    public static final String STAGE_SCHEME = "scheme";
+    public static final String STAGE_UNUSED_RESOURCES = "unusedResources";
+    public static final String STAGE_TRACKERS = "trackers";
+
+    // Shared by all tabs.
+    private static final InterceptorStats INTERCEPTOR_STATS = new InterceptorStats();
+
+    // WebView always requests a favicon, even though it won't be used anywhere. These rules
+    // aren't able to block all favicons (some of them will be loaded using <link rel="shortcut icon">
+    // with a custom URL which we can't match or detect), but reduce the amount of unnecessary
+    // favicon loading that's performed.
+    private static final PathRules UNUSED_RESOURCES = new PathRules.Builder()
+            .add(PathRules.Type.SUFFIX, "/favicon.ico", 1)
+            .build();
 
     public static void triggerPreload(final Context context) {
-        // Only trigger loading if MATCHER is null. (If it's null, MATCHER could already be loading,
-        // but we don't have any way of being certain - and there's no real harm since we're not
-        // blocking anything else.)
-        if (MATCHER == null) {
-            new AsyncTask<Void, Void, Void>() {
+        // Loading only happens once, and never blocks the caller.
+        getMatcherHolder(context).start();
+    }
+
+    public static void setWarmUpPolicy(@NonNull final WarmUpPolicy policy, final long timeoutMillis) {
+        warmUpPolicy = policy;
+        warmUpTimeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Replaces the bundled blocklists with lists from app storage (in the same JSON format as the
+     * bundled lists), without interrupting any pages that are being loaded. The new lists are
+     * loaded in the background, and only used if they are valid: otherwise we go back to the
+     * bundled lists.
+     *
+     * @param version Identifies these lists, see {@link #getListsVersion()}.
+     */
+    public static void updateLists(final Context context, @NonNull final File blockListFile,
+                                   @NonNull final File[] overrideFiles, @NonNull final File entityListFile,
+                                   @NonNull final String version) {
+        final UrlMatcherHolder holder = getMatcherHolder(context);
+        final Context applicationContext = context.getApplicationContext();
+
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                holder.update(new Callable<UrlMatcher>() {
+                    @Override
+                    public UrlMatcher call() {
+                        final UrlMatcher matcher = UrlMatcher.loadMatcher(applicationContext, blockListFile, overrideFiles, entityListFile);
+                        setPrefilter(applicationContext, matcher);
+                        return matcher;
+                    }
+                }, version);
+            }
+        });
+    }
+
+    /**
+     * @return The version of the lists that are currently used, or null if they haven't been
+     * loaded yet.
+     */
+    @Nullable
+    public static String getListsVersion() {
+        final UrlMatcherHolder holder = MATCHER_HOLDER;
+        return holder == null ? null : holder.getVersion();
+    }
+
+    /**
+     * @return What the current matcher has blocked so far, or null if it hasn't been loaded yet.
+     */
+    @Nullable
+    public static MatcherStats.Snapshot getMatcherStats() {
+        final UrlMatcherHolder holder = MATCHER_HOLDER;
+        final UrlMatcher matcher = holder != null ? holder.getIfReady() : null;
+        return matcher != null ? matcher.getStats() : null;
+    }
+
+    /**
+     * @return How long requests have waited for the blocklists to be loaded, or null if loading
+     * hasn't been triggered yet.
+     */
+    @Nullable
+    public static UrlMatcherHolder.Stats getWarmUpStats() {
+        final UrlMatcherHolder holder = MATCHER_HOLDER;
+        return holder == null ? null : holder.getStats();
+    }
+
+    private static UrlMatcherHolder getMatcherHolder(final Context context) {
+        final UrlMatcherHolder holder = MATCHER_HOLDER;
+        return holder != null ? holder : createMatcherHolder(context);
+    }
+
+    private static synchronized UrlMatcherHolder createMatcherHolder(final Context context) {
+        if (MATCHER_HOLDER == null) {
+            final Context applicationContext = context.getApplicationContext();
+
+            MATCHER_HOLDER = new UrlMatcherHolder(new Callable<UrlMatcher>() {
                 @Override
-                protected Void doInBackground(Void... voids) {
-                    // We don't need the result here - we just want to trigger loading
-                    getMatcher(context);
-                    return null;
+                public UrlMatcher call() {
+                    return loadMatcher(applicationContext);
                 }
-            }.execute();
+            }, AsyncTask.THREAD_POOL_EXECUTOR);
         }
+        return MATCHER_HOLDER;
+    }
+
+    /**
+     * @return The matcher, or null if it isn't loaded yet - in which case warmUpPolicy applies.
+     */
+    @Nullable
+    private static UrlMatcher getMatcher(final Context context) {
+        final UrlMatcherHolder holder = getMatcherHolder(context);
+
+        return warmUpPolicy == WarmUpPolicy.WAIT
+                ? holder.await(warmUpTimeoutMillis)
+                : holder.getIfReady();
     }
 
-    @WorkerThread private static synchronized UrlMatcher getMatcher(final Context context) {
-        if (MATCHER == null) {
-            MATCHER = UrlMatcher.loadMatcher(context, R.raw.blocklist, new int[] { R.raw.google_mapping }, R.raw.entitylist);
+    @WorkerThread private static UrlMatcher loadMatcher(final Context context) {
+        UrlMatcher matcher;
+        try {
+            // Mapped, so that the lists neither count towards the heap nor need to be copied
+            matcher = UrlMatcher.loadMatcher(context, UrlMatcher.ImageStorage.MAPPED, R.raw.blocklists, R.raw.blocklists_additional);
+        } catch (IllegalStateException e) {
+            // The image is generated at build time, so this shouldn't happen - but the JSON
+            // lists are still bundled, and slow is better than no tracking protection at all.
+            matcher = UrlMatcher.loadMatcher(context, R.raw.blocklist, new int[] { R.raw.google_mapping }, R.raw.entitylist);
         }
-        return MATCHER;
+
+        setPrefilter(context, matcher);
+
+        return matcher;
     }
 
-    private boolean blockingEnabled;
+    private static void setPrefilter(final Context context, final UrlMatcher matcher) {
+        matcher.setPrefilter(isLowRamDevice(context)
+                ? UrlMatcher.PREFILTER_BITS_PER_ENTRY_LOW_RAM
+                : UrlMatcher.PREFILTER_BITS_PER_ENTRY_DEFAULT);
+    }
+
+    private static boolean isLowRamDevice(final Context context) {
+        final ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        return activityManager != null && activityManager.isLowRamDevice();
+    }
+
+    private volatile boolean blockingEnabled;
     /* package */ String currentPageURL;
+    // currentPageURL, resolved by the matcher (see getCurrentPage()).
+    private volatile PageContext currentPage;
     protected IWebView.Callback callback;
+    private final RequestInterceptorChain interceptors;
 
     /* package */ TrackingProtectionWebViewClient(final Context context) {
         // Hopefully we have loaded background data already. We call triggerPreload() to try to trigger
@@ -55,6 +215,7 @@ public class TrackingProtectionWebViewClient extends WebViewClient {
         triggerPreload(context);
 
         this.blockingEnabled = true;
+        this.interceptors = createInterceptors();
     }
 
     public void setCallback(IWebView.Callback callback) {
@@ -69,52 +230,136 @@ public class TrackingProtectionWebViewClient extends WebViewClient {
         return blockingEnabled;
     }
 
-    @Override
-    public WebResourceResponse shouldInterceptRequest(final WebView view, final WebResourceRequest request) {
-        if (!blockingEnabled) {
-            return super.shouldInterceptRequest(view, request);
-        }
+    /**
+     * @return What the request interception stages (of all tabs) have decided so far.
+     */
+    @NonNull
+    public static InterceptorStats.Snapshot getInterceptorStats() {
+        return INTERCEPTOR_STATS.snapshot();
+    }
+
+    /**
+     * The stages that every request passes through, see {@link #shouldInterceptRequest(WebView, WebResourceRequest)}.
+     * Subclasses add their own stages to this.
+     */
+    protected RequestInterceptorChain getInterceptors() {
+        return interceptors;
+    }
 
-        final Uri resourceUri = request.getUrl();
+    private RequestInterceptorChain createInterceptors() {
+        return new RequestInterceptorChain(INTERCEPTOR_STATS)
+                .add(new RequestInterceptor() {
+                    @NonNull
+                    @Override
+                    public String getName() {
+                        return STAGE_ALLOW_LIST;
+                    }
 
-        // shouldInterceptRequest() might be called _before_ onPageStarted or shouldOverrideUrlLoading
-        // are called (this happens when the webview is first shown). However we are notified of the URL
-        // via notifyCurrentURL in that case.
-        final String scheme = resourceUri.getScheme();
+                    @NonNull
+                    @Override
+                    public Decision intercept(@NonNull final WebView view, @NonNull final WebResourceRequest request) {
+                        // Blocking is disabled for exception domains (and e.g. our own pages)
+                        return blockingEnabled ? Decision.CONTINUE : Decision.ALLOW;
+                    }
+                })
+                .add(new RequestInterceptor() {
+                    @NonNull
+                    @Override
+                    public String getName() {
+                        return STAGE_SCHEME;
+                    }
 
-        if (!request.isForMainFrame() &&
-                !scheme.equals("http") && !scheme.equals("https")) {
-            // Block any malformed non-http(s) URIs. WebView will already ignore things like market: URLs,
-            // but not in all cases (malformed market: URIs, such as market:://... will still end up here).
-            // (Note: data: URIs are automatically handled by WebView, and won't end up here either.)
-            // file:// URIs are disabled separately by setting WebSettings.setAllowFileAccess()
-            return new WebResourceResponse(null, null, null);
-        }
+                    @NonNull
+                    @Override
+                    public Decision intercept(@NonNull final WebView view, @NonNull final WebResourceRequest request) {
+                        final String scheme = request.getUrl().getScheme();
 
-        // WebView always requests a favicon, even though it won't be used anywhere. This check
-        // isn't able to block all favicons (some of them will be loaded using <link rel="shortcut icon">
-        // with a custom URL which we can't match or detect), but reduces the amount of unnecessary
-        // favicon loading that's performed.
-        final String path = resourceUri.getPath();
-        if (path != null && path.endsWith("/favicon.ico")) {
-            return new WebResourceResponse(null, null, null);
-        }
+                        if (!request.isForMainFrame() &&
+                                !"http".equals(scheme) && !"https".equals(scheme)) {
+                            // Block any malformed non-http(s) URIs. WebView will already ignore things like market: URLs,
+                            // but not in all cases (malformed market: URIs, such as market:://... will still end up here).
+                            // (Note: data: URIs are automatically handled by WebView, and won't end up here either.)
+                            // file:// URIs are disabled separately by setting WebSettings.setAllowFileAccess()
+                            return Decision.block();
+                        }
 
-        final UrlMatcher matcher = getMatcher(view.getContext());
+                        return Decision.CONTINUE;
+                    }
+                })
+                .add(new RequestInterceptor() {
+                    @NonNull
+                    @Override
+                    public String getName() {
+                        return STAGE_UNUSED_RESOURCES;
+                    }
 
-        // Don't block the main frame from being loaded. This also protects against cases where we
-        // open a link that redirects to another app (e.g. to the play store).
-        if ((!request.isForMainFrame()) &&
-                currentPageURL != null &&
-                matcher.matches(resourceUri, Uri.parse(currentPageURL))) {
-                // Bandaid for issue #26: currentPageUrl can still be null, and needs to be investigated further.
-            if (callback != null) {
-                callback.countBlockedTracker();
-            }
-            return new WebResourceResponse(null, null, null);
+                    @NonNull
+                    @Override
+                    public Decision intercept(@NonNull final WebView view, @NonNull final WebResourceRequest request) {
+                        // Requests that are never needed (see UNUSED_RESOURCES), regardless of tracking protection
+                        // settings and of whether the matcher has been loaded yet.
+                        final String path = request.getUrl().getPath();
+                        return path != null && UNUSED_RESOURCES.match(path, null) != 0
+                                ? Decision.block()
+                                : Decision.CONTINUE;
+                    }
+                })
+                .add(new RequestInterceptor() {
+                    @NonNull
+                    @Override
+                    public String getName() {
+                        return STAGE_TRACKERS;
+                    }
+
+                    @NonNull
+                    @Override
+                    public Decision intercept(@NonNull final WebView view, @NonNull final WebResourceRequest request) {
+                        // shouldInterceptRequest() might be called _before_ onPageStarted or shouldOverrideUrlLoading
+                        // are called (this happens when the webview is first shown). However we are notified of the URL
+                        // via notifyCurrentURL in that case.
+                        final String pageURL = currentPageURL;
+
+                        // Don't block the main frame from being loaded. This also protects against cases where we
+                        // open a link that redirects to another app (e.g. to the play store).
+                        if ((!request.isForMainFrame()) &&
+                                pageURL != null &&
+                                shouldBlock(view.getContext(), request.getUrl(), pageURL)) {
+                                // Bandaid for issue #26: currentPageUrl can still be null, and needs to be investigated further.
+                            if (callback != null) {
+                                callback.countBlockedTracker();
+                            }
+                            return Decision.block();
+                        }
+
+                        return Decision.CONTINUE;
+                    }
+                });
+    }
+
+    @Override
+    public WebResourceResponse shouldInterceptRequest(final WebView view, final WebResourceRequest request) {
+        final WebResourceResponse response = interceptors.intercept(view, request);
+
+        return response != null ? response : super.shouldInterceptRequest(view, request);
+    }
+
+    private boolean shouldBlock(final Context context, final Uri resourceUri, final String pageURL) {
+        final UrlMatcher matcher = getMatcher(context);
+
+        if (matcher == null) {
+            return shouldBlockBeforeWarmUp();
         }
 
-        return super.shouldInterceptRequest(view, request);
+        return matcher.matches(resourceUri, getCurrentPage(matcher, pageURL));
+    }
+
+    /**
+     * @return Whether requests that can't be matched yet (because the blocklists haven't been
+     * loaded) are blocked, i.e. whether the policy isn't {@link WarmUpPolicy#ALLOW}.
+     */
+    @VisibleForTesting
+    /* package-private */ static boolean shouldBlockBeforeWarmUp() {
+        return warmUpPolicy != WarmUpPolicy.ALLOW;
     }
 
     /**
@@ -125,7 +370,32 @@ public class TrackingProtectionWebViewClient extends WebViewClient {
      * page.
      */
     public void notifyCurrentURL(final String url) {
+        setCurrentPage(url);
+    }
+
+    /**
+     * The page only changes on navigation, so we resolve it (its host and entity whitelists) here
+     * rather than for every single resource. If the matcher isn't loaded yet this is deferred to
+     * the first shouldInterceptRequest() call instead: loading must not happen on the UI thread.
+     */
+    private void setCurrentPage(final String url) {
         currentPageURL = url;
+
+        final UrlMatcherHolder holder = MATCHER_HOLDER;
+        final UrlMatcher matcher = holder != null ? holder.getIfReady() : null;
+        currentPage = matcher != null && url != null ? matcher.createPageContext(url) : null;
+    }
+
+    private PageContext getCurrentPage(final UrlMatcher matcher, final String pageURL) {
+        PageContext page = currentPage;
+
+        // The matcher is replaced when lists are updated, the page has to be resolved again then
+        if (page == null || !page.getUrl().equals(pageURL) || !page.isResolvedBy(matcher)) {
+            page = matcher.createPageContext(pageURL);
+            currentPage = page;
+        }
+
+        return page;
     }
 
     @Override
@@ -134,7 +404,7 @@ public class TrackingProtectionWebViewClient extends WebViewClient {
             callback.resetBlockedTrackers();
         }
 
-        currentPageURL = url;
+        setCurrentPage(url);
 
         super.onPageStarted(view, url, favicon);
     }
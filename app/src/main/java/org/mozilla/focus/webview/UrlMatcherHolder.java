@@ -0,0 +1,232 @@
+/* -*- Mode: Java; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package org.mozilla.focus.webview;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+import android.util.Log;
+
+import org.mozilla.focus.webview.matcher.UrlMatcher;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Loads the UrlMatcher in the background (once), and lets callers decide whether to wait for it.
+ *
+ * Requests can arrive on WebView's network threads before the blocklists have been loaded: rather
+ * than blocking those threads for the entire load, callers either only use the matcher once it's
+ * ready ({@link #getIfReady()}), or wait for it with a timeout ({@link #await(long)}).
+ *
+ * The matcher can later be replaced by one built from updated lists ({@link #update(Callable, String)}).
+ * Matchers are never modified once published: callers that already obtained the previous matcher
+ * simply finish using it.
+ */
+public final class UrlMatcherHolder {
+    private static final String LOGTAG = "UrlMatcherHolder";
+
+    /**
+     * The version of the lists that are bundled with the app.
+     */
+    public static final String BUNDLED_VERSION = "bundled";
+
+    public static class Stats {
+        // Calls to await() that had to wait, and how many of them timed out.
+        public final long waits;
+        public final long timeouts;
+        public final long totalWaitMillis;
+        public final long maxWaitMillis;
+
+        private Stats(final long waits, final long timeouts, final long totalWaitMillis, final long maxWaitMillis) {
+            this.waits = waits;
+            this.timeouts = timeouts;
+            this.totalWaitMillis = totalWaitMillis;
+            this.maxWaitMillis = maxWaitMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "waits=" + waits + " timeouts=" + timeouts +
+                    " totalWaitMillis=" + totalWaitMillis + " maxWaitMillis=" + maxWaitMillis;
+        }
+    }
+
+    private final FutureTask<UrlMatcher> task;
+    private final Executor executor;
+    private final AtomicBoolean started = new AtomicBoolean(false);
+
+    private static final class Snapshot {
+        private final UrlMatcher matcher;
+        private final String version;
+
+        private Snapshot(final UrlMatcher matcher, final String version) {
+            this.matcher = matcher;
+            this.version = version;
+        }
+    }
+
+    // Set once the bundled lists have been loaded (so that we don't need to touch the future
+    // afterwards), and replaced on updates.
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<>();
+
+    private final AtomicLong waits = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    /**
+     * @param loader Loads the matcher, this is run at most once.
+     * @param executor The executor that loader is run on.
+     */
+    public UrlMatcherHolder(@NonNull final Callable<UrlMatcher> loader, @NonNull final Executor executor) {
+        this.task = new FutureTask<>(loader);
+        this.executor = executor;
+    }
+
+    /**
+     * Starts loading the matcher, unless that has already happened.
+     */
+    public void start() {
+        if (started.compareAndSet(false, true)) {
+            executor.execute(task);
+        }
+    }
+
+    public boolean isReady() {
+        return getIfReady() != null;
+    }
+
+    /**
+     * @return The matcher if it has been loaded, without waiting. This starts loading if needed.
+     */
+    @Nullable
+    public UrlMatcher getIfReady() {
+        final Snapshot snapshot = this.snapshot.get();
+        if (snapshot != null) {
+            return snapshot.matcher;
+        }
+
+        start();
+
+        return task.isDone() ? getResult(0) : null;
+    }
+
+    /**
+     * Waits up to timeoutMillis for the matcher to be loaded.
+     *
+     * @return The matcher, or null if it wasn't loaded in time.
+     */
+    @Nullable
+    public UrlMatcher await(final long timeoutMillis) {
+        final UrlMatcher matcher = getIfReady();
+        if (matcher != null) {
+            return matcher;
+        }
+
+        final long start = System.nanoTime();
+        UrlMatcher result = null;
+        try {
+            result = getResult(timeoutMillis);
+            return result;
+        } finally {
+            recordWait(System.nanoTime() - start, result == null);
+        }
+    }
+
+    /**
+     * @return The version of the lists that the current matcher was built from, or null if no
+     * matcher has been loaded yet.
+     */
+    @Nullable
+    public String getVersion() {
+        final Snapshot snapshot = this.snapshot.get();
+        return snapshot != null ? snapshot.version : null;
+    }
+
+    /**
+     * Builds a new matcher and replaces the current one with it. If loader fails (i.e. the lists
+     * can't be parsed, or are invalid) we go back to the bundled lists instead.
+     *
+     * @return Whether the new matcher is now in use.
+     */
+    @WorkerThread
+    public boolean update(@NonNull final Callable<UrlMatcher> loader, @NonNull final String version) {
+        final UrlMatcher matcher;
+        try {
+            matcher = loader.call();
+        } catch (Exception e) {
+            Log.w(LOGTAG, "Unable to load lists " + version + ", using bundled lists", e);
+
+            start();
+            final UrlMatcher bundled = getBundled(Long.MAX_VALUE);
+            if (bundled != null) {
+                snapshot.set(new Snapshot(bundled, BUNDLED_VERSION));
+            }
+            return false;
+        }
+
+        snapshot.set(new Snapshot(matcher, version));
+        return true;
+    }
+
+    public Stats getStats() {
+        return new Stats(waits.get(), timeouts.get(),
+                TimeUnit.NANOSECONDS.toMillis(totalWaitNanos.get()),
+                TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get()));
+    }
+
+    @Nullable
+    private UrlMatcher getResult(final long timeoutMillis) {
+        if (getBundled(timeoutMillis) == null) {
+            return null;
+        }
+
+        // Lists might have been updated in the meantime
+        return snapshot.get().matcher;
+    }
+
+    /**
+     * Waits for the matcher for the bundled lists, and publishes it unless a matcher has already
+     * been published.
+     */
+    @Nullable
+    private UrlMatcher getBundled(final long timeoutMillis) {
+        try {
+            final UrlMatcher bundled = task.get(timeoutMillis, TimeUnit.MILLISECONDS);
+
+            snapshot.compareAndSet(null, new Snapshot(bundled, BUNDLED_VERSION));
+            return bundled;
+        } catch (TimeoutException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            // Loading only fails if the bundled lists are broken: there's nothing we can do.
+            throw new IllegalStateException("Unable to load UrlMatcher", e.getCause());
+        }
+    }
+
+    private void recordWait(final long waitNanos, final boolean timedOut) {
+        waits.incrementAndGet();
+        if (timedOut) {
+            timeouts.incrementAndGet();
+        }
+        totalWaitNanos.addAndGet(waitNanos);
+
+        long max = maxWaitNanos.get();
+        while (waitNanos > max && !maxWaitNanos.compareAndSet(max, waitNanos)) {
+            max = maxWaitNanos.get();
+        }
+    }
+}
@@ -0,0 +1,221 @@
+/* -*- Mode: Java; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package org.mozilla.focus.webview.matcher;
+
+import org.mozilla.focus.webview.matcher.Trie.WhiteListTrie;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Precompiled blocklist: the category trie (with overrides already applied) and the entity list,
+ * serialised so that they can be used without parsing any JSON at startup.
+ *
+ * Images are generated by the buildBlocklists Gradle task (see buildSrc), which compiles this
+ * class too - so that the writer and reader can never disagree on the format. This class must
+ * therefore not depend on anything Android specific.
+ *
+ * Layout (big endian): magic, format version, category count, the category names (in the order
+ * of their bits), the merged category trie, and finally the entity list. See
+ * {@link Trie#write(DataOutputStream)}.
+ */
+/* package-private */ final class BlocklistImage {
+    private static final int MAGIC = 0x46424c31; // "FBL1"
+
+    /**
+     * Must be incremented whenever the layout changes.
+     */
+    /* package-private */ static final int FORMAT_VERSION = 4;
+
+    public final CategoryTrie categories;
+    public final WhiteListTrie entityList;
+
+    private BlocklistImage(final CategoryTrie categories, final WhiteListTrie entityList) {
+        this.categories = categories;
+        this.entityList = entityList;
+    }
+
+    public static void write(final OutputStream stream, final CategoryTrie categories, final WhiteListTrie entityList) throws IOException {
+        final DataOutputStream out = new DataOutputStream(stream);
+
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+
+        final List<String> names = categories.getNames();
+
+        out.writeInt(names.size());
+        for (final String name : names) {
+            writeString(out, name);
+        }
+        categories.getTrie().write(out);
+
+        entityList.write(out);
+
+        out.flush();
+    }
+
+    /**
+     * Reads an image from the given buffer. The returned tries are views of the buffer, i.e. the
+     * buffer must not be modified afterwards.
+     */
+    public static BlocklistImage read(final ByteBuffer buffer) {
+        try {
+            return readImage(buffer);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalStateException("Truncated blocklist image");
+        }
+    }
+
+    /**
+     * Reads only the category names from the start of an image, e.g. to find out which image
+     * provides a category without loading it.
+     */
+    public static String[] readCategoryNames(final InputStream stream) throws IOException {
+        // The header is tiny: a few short names
+        final byte[] header = new byte[4096];
+
+        int length = 0;
+        int read;
+        while (length < header.length && (read = stream.read(header, length, header.length - length)) != -1) {
+            length += read;
+        }
+
+        try {
+            return readHeader(ByteBuffer.wrap(header, 0, length));
+        } catch (BufferUnderflowException e) {
+            throw new IllegalStateException("Truncated blocklist image");
+        }
+    }
+
+    private static String[] readHeader(final ByteBuffer buffer) {
+        if (buffer.getInt() != MAGIC) {
+            throw new IllegalStateException("Not a blocklist image");
+        }
+
+        final int version = buffer.getInt();
+        if (version != FORMAT_VERSION) {
+            throw new IllegalStateException("Unsupported blocklist image version: " + version);
+        }
+
+        final int categoryCount = buffer.getInt();
+        if (categoryCount < 0 || categoryCount > CategoryTrie.MAX_CATEGORIES) {
+            throw new IllegalStateException("Invalid category count: " + categoryCount);
+        }
+
+        final String[] names = new String[categoryCount];
+        for (int i = 0; i < categoryCount; i++) {
+            names[i] = readString(buffer);
+
+            // CategoryTrie relies on names being sorted
+            if (i > 0 && names[i - 1].compareTo(names[i]) >= 0) {
+                throw new IllegalStateException("Category names not sorted");
+            }
+        }
+
+        return names;
+    }
+
+    private static BlocklistImage readImage(final ByteBuffer buffer) {
+        final String[] names = readHeader(buffer);
+        final CategoryTrie categories = new CategoryTrie(names, Trie.read(buffer));
+
+        final WhiteListTrie entityList = WhiteListTrie.read(buffer);
+
+        if (buffer.hasRemaining()) {
+            throw new IllegalStateException("Unexpected data at end of blocklist image");
+        }
+
+        return new BlocklistImage(categories, entityList);
+    }
+
+    /**
+     * Reads the whole stream with as few copies as possible: images are read in one go, and
+     * then queried in place.
+     */
+    public static ByteBuffer readFully(final InputStream stream, final int expectedLength) throws IOException {
+        byte[] data = new byte[Math.max(expectedLength, 4096)];
+        int length = 0;
+
+        int read;
+        while ((read = stream.read(data, length, data.length - length)) != -1) {
+            length += read;
+
+            if (length == data.length) {
+                // Usually expectedLength is exact: only grow if there actually is more data, the
+                // buffer is kept alive by the tries.
+                final int next = stream.read();
+                if (next == -1) {
+                    break;
+                }
+
+                data = Arrays.copyOf(data, data.length * 2);
+                data[length++] = (byte) next;
+            }
+        }
+
+        return ByteBuffer.wrap(data, 0, length).slice();
+    }
+
+    /**
+     * Like {@link #readFully(InputStream, int)}, but reads into a direct buffer: i.e. the image is
+     * kept in native memory, where the garbage collector doesn't need to scan (or move) it.
+     */
+    public static ByteBuffer readFullyDirect(final InputStream stream, final int expectedLength) throws IOException {
+        final ReadableByteChannel channel = Channels.newChannel(stream);
+        ByteBuffer data = ByteBuffer.allocateDirect(Math.max(expectedLength, 4096));
+
+        while (channel.read(data) != -1) {
+            if (!data.hasRemaining()) {
+                // See readFully()
+                final int next = stream.read();
+                if (next == -1) {
+                    break;
+                }
+
+                data.flip();
+                data = ByteBuffer.allocateDirect(data.capacity() * 2).put(data).put((byte) next);
+            }
+        }
+
+        data.flip();
+        return data.slice();
+    }
+
+    // Category names are short ASCII strings, we store them as a char count followed by the chars
+    // so that we don't need a DataInput (or any decoding) on the reading side.
+    private static void writeString(final DataOutputStream out, final String string) throws IOException {
+        out.writeInt(string.length());
+        out.writeChars(string);
+        if (string.length() % 2 != 0) {
+            out.writeChar(0);
+        }
+    }
+
+    private static String readString(final ByteBuffer buffer) {
+        final int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining() / 2) {
+            throw new IllegalStateException("Invalid string length: " + length);
+        }
+
+        final char[] chars = new char[length];
+
+        for (int i = 0; i < length; i++) {
+            chars[i] = buffer.getChar();
+        }
+        if (length % 2 != 0) {
+            buffer.getChar();
+        }
+
+        return new String(chars);
+    }
+}
@@ -6,11 +6,13 @@ package org.mozilla.focus.webview.matcher;
 
 import android.util.JsonReader;
 import android.util.JsonToken;
+import androidx.annotation.Nullable;
 
 import org.mozilla.focus.webview.matcher.util.FocusString;
 
 import java.io.IOException;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
@@ -52,14 +54,28 @@ public class BlocklistProcessor {
         OVERRIDE_LIST
     }
 
-    public static Map<String, Trie> loadCategoryMap(final JsonReader reader, final Map<String, Trie> categoryMap, final ListType listType) throws IOException {
+    /**
+     * Adds the categories from a blocklist to categoryMap. Tries are immutable, so we accumulate
+     * builders here - once the base list and all overrides are loaded, use {@link #buildCategoryTrie(Map)}.
+     */
+    public static Map<String, Trie.Builder> loadCategoryMap(final JsonReader reader, final Map<String, Trie.Builder> categoryMap, final ListType listType) throws IOException {
+        return loadCategoryMap(reader, categoryMap, listType, null);
+    }
+
+    /**
+     * Like {@link #loadCategoryMap(JsonReader, Map, ListType)}, but only the given categories are
+     * loaded - all others are skipped without building their tries.
+     *
+     * @param categories The categories to load, or null to load all of them.
+     */
+    public static Map<String, Trie.Builder> loadCategoryMap(final JsonReader reader, final Map<String, Trie.Builder> categoryMap, final ListType listType, @Nullable final Set<String> categories) throws IOException {
         reader.beginObject();
 
         while (reader.hasNext()) {
             final String name = reader.nextName();
 
             if (name.equals("categories")) {
-                extractCategories(reader, categoryMap, listType);
+                extractCategories(reader, categoryMap, listType, categories);
             } else {
                 reader.skipValue();
             }
@@ -70,6 +86,14 @@ public class BlocklistProcessor {
         return categoryMap;
     }
 
+    /**
+     * Merges all categories into a single trie, so that hosts can be checked against every
+     * category at once.
+     */
+    public static CategoryTrie buildCategoryTrie(final Map<String, Trie.Builder> categoryMap) {
+        return CategoryTrie.build(categoryMap);
+    }
+
     private interface UrlListCallback {
         void put(final String url, final String siteOwner);
     }
@@ -96,9 +120,9 @@ public class BlocklistProcessor {
     }
 
     private static class TrieCallback implements UrlListCallback {
-        final Trie trie;
+        final Trie.Builder trie;
 
-        TrieCallback(final Trie trie) {
+        TrieCallback(final Trie.Builder trie) {
             this.trie = trie;
         }
 
@@ -108,9 +132,10 @@ public class BlocklistProcessor {
         }
     }
 
-    private static void extractCategories(final JsonReader reader, final Map<String, Trie> categoryMap, final ListType listType) throws IOException {
+    private static void extractCategories(final JsonReader reader, final Map<String, Trie.Builder> categoryMap, final ListType listType, @Nullable final Set<String> categories) throws IOException {
         reader.beginObject();
 
+        final boolean loadSocial = categories == null || categories.contains(SOCIAL);
         final List<String> socialOverrides = new LinkedList<>();
 
         while (reader.hasNext()) {
@@ -118,19 +143,24 @@ public class BlocklistProcessor {
 
             if (IGNORED_CATEGORIES.contains(categoryName)) {
                 reader.skipValue();
+            } else if (categoryName.equals(DISCONNECT) && !loadSocial) {
+                // We only need the items that are moved into "Social"
+                reader.skipValue();
             } else if (categoryName.equals(DISCONNECT)) {
                 // We move these items into a different list, see below
                 ListCallback callback = new ListCallback(socialOverrides, DISCONNECT_MOVED);
                 extractCategory(reader, callback);
+            } else if (categories != null && !categories.contains(categoryName)) {
+                reader.skipValue();
             } else {
-                final Trie categoryTrie;
+                final Trie.Builder categoryTrie;
 
                 if (listType == ListType.BASE_LIST) {
                     if (categoryMap.containsKey(categoryName)) {
                         throw new IllegalStateException("Cannot insert already loaded category");
                     }
 
-                    categoryTrie = Trie.createRootNode();
+                    categoryTrie = new Trie.Builder();
                     categoryMap.put(categoryName, categoryTrie);
                 } else {
                     categoryTrie = categoryMap.get(categoryName);
@@ -146,8 +176,8 @@ public class BlocklistProcessor {
             }
         }
 
-        final Trie socialTrie = categoryMap.get(SOCIAL);
-        if (socialTrie == null && listType == ListType.BASE_LIST) {
+        final Trie.Builder socialTrie = categoryMap.get(SOCIAL);
+        if (socialTrie == null && listType == ListType.BASE_LIST && loadSocial) {
             throw new IllegalStateException("Expected social list to exist. Can't copy FB/Twitter into non-existing list");
         }
 
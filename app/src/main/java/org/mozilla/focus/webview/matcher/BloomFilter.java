@@ -0,0 +1,221 @@
+/* -*- Mode: Java; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package org.mozilla.focus.webview.matcher;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bloom filter over all the strings stored in a trie of reversed hosts, used to reject hosts that
+ * can't possibly be blocklisted without walking the trie.
+ *
+ * Hosts are hashed backwards, one character at a time, so that the hashes of all its parent
+ * domains ("com", "example.com", "www.example.com") are produced along the way - in the same
+ * order, and at the same domain boundaries, as Trie.findReversed() visits them.
+ */
+public final class BloomFilter {
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private static final int MAX_HASH_COUNT = 16;
+
+    public static class Stats {
+        public final int entries;
+        public final long sizeBytes;
+        public final int hashCount;
+        /**
+         * The theoretical false positive rate of a single probe, for the number of entries and
+         * bits in this filter. Hosts are probed once per parent domain, so the rate per host is
+         * somewhat higher: see {@link #getObservedFalsePositiveRate()}.
+         */
+        public final double expectedFalsePositiveRate;
+
+        public final long queries;
+        public final long negatives;
+        public final long falsePositives;
+
+        private Stats(final int entries, final long sizeBytes, final int hashCount, final double expectedFalsePositiveRate,
+                      final long queries, final long negatives, final long falsePositives) {
+            this.entries = entries;
+            this.sizeBytes = sizeBytes;
+            this.hashCount = hashCount;
+            this.expectedFalsePositiveRate = expectedFalsePositiveRate;
+            this.queries = queries;
+            this.negatives = negatives;
+            this.falsePositives = falsePositives;
+        }
+
+        /**
+         * @return The fraction of non-blocklisted hosts that weren't rejected by the filter.
+         */
+        public double getObservedFalsePositiveRate() {
+            return negatives + falsePositives == 0 ? 0 : (double) falsePositives / (negatives + falsePositives);
+        }
+
+        @Override
+        public String toString() {
+            return "entries=" + entries + " bytes=" + sizeBytes + " hashes=" + hashCount +
+                    " expectedFpr=" + expectedFalsePositiveRate + " queries=" + queries +
+                    " negatives=" + negatives + " falsePositives=" + falsePositives +
+                    " observedFpr=" + getObservedFalsePositiveRate();
+        }
+    }
+
+    private final long[] words;
+    private final int bitCount;
+    private final int hashCount;
+    private final int entryCount;
+
+    private final AtomicLong queries = new AtomicLong();
+    private final AtomicLong negatives = new AtomicLong();
+    private final AtomicLong falsePositives = new AtomicLong();
+
+    private BloomFilter(final int entryCount, final int bitsPerEntry) {
+        // Bits per entry are a tuning parameter: we always want at least a handful of words.
+        final long bits = Math.max(256, (long) entryCount * bitsPerEntry);
+        if (bits > Integer.MAX_VALUE - 63) {
+            throw new IllegalArgumentException("Filter too large: " + bits + " bits");
+        }
+
+        this.words = new long[(int) ((bits + 63) / 64)];
+        this.bitCount = words.length * 64;
+        this.hashCount = Math.max(1, Math.min(MAX_HASH_COUNT, (int) Math.round(bitsPerEntry * Math.log(2))));
+        this.entryCount = entryCount;
+    }
+
+    /**
+     * Creates a filter over all strings in the given tries (which must contain reversed hosts).
+     */
+    public static BloomFilter create(final Trie[] tries, final int bitsPerEntry) {
+        if (bitsPerEntry < 1) {
+            throw new IllegalArgumentException("bitsPerEntry must be positive");
+        }
+
+        int entryCount = 0;
+        for (final Trie trie : tries) {
+            entryCount += countTerminals(trie, Trie.ROOT);
+        }
+
+        final BloomFilter filter = new BloomFilter(entryCount, bitsPerEntry);
+        for (final Trie trie : tries) {
+            filter.addAll(trie, Trie.ROOT, FNV_OFFSET);
+        }
+        return filter;
+    }
+
+    public static BloomFilter create(final Trie trie, final int bitsPerEntry) {
+        return create(new Trie[] { trie }, bitsPerEntry);
+    }
+
+    // Recursion depth is bounded by the length of the longest host.
+    private static int countTerminals(final Trie trie, final int node) {
+        int count = trie.isTerminal(node) ? 1 : 0;
+
+        final int end = trie.getFirstEdge(node + 1);
+        for (int edge = trie.getFirstEdge(node); edge < end; edge++) {
+            count += countTerminals(trie, trie.getEdgeTarget(edge));
+        }
+
+        return count;
+    }
+
+    private void addAll(final Trie trie, final int node, final long hash) {
+        if (trie.isTerminal(node)) {
+            add(hash);
+        }
+
+        final int end = trie.getFirstEdge(node + 1);
+        for (int edge = trie.getFirstEdge(node); edge < end; edge++) {
+            addAll(trie, trie.getEdgeTarget(edge), step(hash, trie.getEdgeLabel(edge)));
+        }
+    }
+
+    private static long step(final long hash, final char character) {
+        return (hash ^ character) * FNV_PRIME;
+    }
+
+    private void add(final long hash) {
+        final long mixed = mix(hash);
+        final int h1 = (int) mixed;
+        final int h2 = (int) (mixed >>> 32) | 1;
+
+        for (int i = 0; i < hashCount; i++) {
+            final int bit = reduce(h1 + i * h2);
+            words[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    private boolean contains(final long hash) {
+        final long mixed = mix(hash);
+        final int h1 = (int) mixed;
+        final int h2 = (int) (mixed >>> 32) | 1;
+
+        for (int i = 0; i < hashCount; i++) {
+            final int bit = reduce(h1 + i * h2);
+            if ((words[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    // Maps a hash onto [0, bitCount) without a division.
+    private int reduce(final int hash) {
+        return (int) (((hash & 0xffffffffL) * bitCount) >>> 32);
+    }
+
+    // MurmurHash3's 64-bit finaliser: FNV's low bits are poorly distributed on their own.
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * @return false if neither the given host nor any of its parent domains are in the filter, i.e.
+     * if the host definitely isn't blocklisted. true if it might be.
+     */
+    public boolean mightContainDomainOf(final String host) {
+        queries.incrementAndGet();
+
+        long hash = FNV_OFFSET;
+        for (int position = host.length() - 1; position >= 0; position--) {
+            final char character = host.charAt(position);
+
+            // Domain boundary, see Trie.findReversed()
+            if (character == '.' && contains(hash)) {
+                return true;
+            }
+
+            hash = step(hash, character);
+        }
+
+        if (contains(hash)) {
+            return true;
+        }
+
+        negatives.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Should be called whenever {@link #mightContainDomainOf(String)} returned true for a host
+     * that turned out not to be blocklisted.
+     */
+    public void recordFalsePositive() {
+        falsePositives.incrementAndGet();
+    }
+
+    public Stats getStats() {
+        final double expectedFalsePositiveRate =
+                Math.pow(1 - Math.exp(-(double) hashCount * entryCount / bitCount), hashCount);
+
+        return new Stats(entryCount, words.length * 8L, hashCount, expectedFalsePositiveRate,
+                queries.get(), negatives.get(), falsePositives.get());
+    }
+}
@@ -0,0 +1,79 @@
+/* -*- Mode: Java; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package org.mozilla.focus.webview.matcher;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * All blocklist categories merged into a single trie: every terminal node stores the mask of the
+ * categories that contain its host, where category i (in sorted name order) is represented by
+ * bit i. Hosts shared by several categories, and common suffixes such as "moc.", are therefore
+ * only stored once, and a host can be checked against all categories with a single walk.
+ *
+ * Like Trie, this class is also compiled into buildSrc and must not depend on Android.
+ */
+/* package-private */ final class CategoryTrie {
+    /**
+     * Masks are ints, and the sign bit is reserved by VerdictCache.
+     */
+    public static final int MAX_CATEGORIES = 31;
+
+    private final String[] names;
+    private final Trie trie;
+
+    /* package-private */ CategoryTrie(final String[] names, final Trie trie) {
+        if (names.length > MAX_CATEGORIES) {
+            throw new IllegalArgumentException("Too many categories: " + names.length);
+        }
+
+        this.names = names;
+        this.trie = trie;
+    }
+
+    /**
+     * Merges the given categories into one trie.
+     */
+    public static CategoryTrie build(final Map<String, Trie.Builder> categoryMap) {
+        final String[] names = categoryMap.keySet().toArray(new String[0]);
+        Arrays.sort(names);
+
+        final Trie.Builder merged = new Trie.Builder();
+        for (int i = 0; i < names.length; i++) {
+            merged.putAll(categoryMap.get(names[i]), 1 << i);
+        }
+
+        return new CategoryTrie(names, merged.build());
+    }
+
+    /**
+     * @return The category names, bit i of a mask corresponds to the i-th name.
+     */
+    public List<String> getNames() {
+        return Collections.unmodifiableList(Arrays.asList(names));
+    }
+
+    /**
+     * @return The bit representing the given category, or 0 if there's no such category.
+     */
+    public int getBit(final String category) {
+        final int index = Arrays.binarySearch(names, category);
+        return index < 0 ? 0 : 1 << index;
+    }
+
+    /* package-private */ Trie getTrie() {
+        return trie;
+    }
+
+    /**
+     * @return The mask of all categories that contain the given host (or one of its parent
+     * domains), or 0 if it isn't blocklisted at all.
+     */
+    public int getMask(final String host) {
+        return trie.collectReversed(host);
+    }
+}
@@ -10,18 +10,16 @@ import android.text.TextUtils;
 
 import org.mozilla.focus.utils.UrlUtils;
 import org.mozilla.focus.webview.matcher.Trie.WhiteListTrie;
-import org.mozilla.focus.webview.matcher.util.FocusString;
+
+import java.util.ArrayList;
+import java.util.List;
 
 /* package-private */ class EntityList {
 
     private final WhiteListTrie rootNode;
 
-    public EntityList() {
-        rootNode = WhiteListTrie.createRootNode();
-    }
-
-    public void putWhiteList(final FocusString revhost, final Trie whitelist) {
-        rootNode.putWhiteList(revhost, whitelist);
+    public EntityList(final WhiteListTrie rootNode) {
+        this.rootNode = rootNode;
     }
 
     public boolean isWhiteListed(final Uri site, final Uri resource) {
@@ -33,10 +31,7 @@ import org.mozilla.focus.webview.matcher.util.FocusString;
 
         if (UrlUtils.isPermittedResourceProtocol(resource.getScheme()) &&
                 UrlUtils.isSupportedProtocol(site.getScheme())) {
-            final FocusString revSitehost = FocusString.create(site.getHost()).reverse();
-            final FocusString revResourcehost = FocusString.create(resource.getHost()).reverse();
-
-            return isWhiteListed(revSitehost, revResourcehost, rootNode);
+            return isWhiteListed(site.getHost(), resource.getHost());
         } else {
             // This might be some imaginary/custom protocol: theguardian.com loads
             // things like "nielsenwebid://nuid/999" and/or sets an iFrame URL to that:
@@ -44,20 +39,73 @@ import org.mozilla.focus.webview.matcher.util.FocusString;
         }
     }
 
-    private boolean isWhiteListed(final FocusString site, final FocusString resource, final Trie revHostTrie) {
-        final WhiteListTrie next = (WhiteListTrie) revHostTrie.children.get(site.charAt(0));
+    /**
+     * @return Whether resources may be whitelisted on the given site at all: see
+     * {@link #isWhiteListed(Uri, Uri)}.
+     */
+    /* package-private */ static boolean canWhiteList(final Uri site) {
+        return !TextUtils.isEmpty(site.getHost()) &&
+                !site.getScheme().equals("data") &&
+                UrlUtils.isSupportedProtocol(site.getScheme());
+    }
 
-        if (next == null) {
-            // No matches
-            return false;
-        }
+    /**
+     * @return Whether the given resource may be whitelisted on any site.
+     */
+    /* package-private */ static boolean canBeWhiteListed(final Uri resource) {
+        return !TextUtils.isEmpty(resource.getHost()) &&
+                UrlUtils.isPermittedResourceProtocol(resource.getScheme());
+    }
+
+    /**
+     * Walks both hosts from their last character (i.e. as revhosts) without creating any copies,
+     * so that this can be called for every single resource without allocating.
+     */
+    /* package-private */ boolean isWhiteListed(final String siteHost, final String resourceHost) {
+        int node = Trie.ROOT;
 
-        if (next.whitelist != null &&
-                next.whitelist.findNode(resource) != null) {
-            return true;
+        // Every node along the site's revhost can carry a whitelist, e.g. we could have separate
+        // whitelists for mozilla.org and foo.mozilla.org, and both apply to foo.mozilla.org:
+        for (int position = siteHost.length() - 1; position >= 0; position--) {
+            node = rootNode.getChild(node, siteHost.charAt(position));
+
+            if (node == Trie.NO_NODE) {
+                // No matches
+                return false;
+            }
+
+            final Trie whitelist = rootNode.getWhiteList(node);
+
+            if (whitelist != null &&
+                    whitelist.findReversed(resourceHost) != Trie.NO_NODE) {
+                return true;
+            }
         }
 
-        return site.length() != 1 && isWhiteListed(site.substring(1), resource, next);
+        return false;
+    }
+
+    /**
+     * @return All whitelists that apply to the given site, i.e. those found along its revhost
+     * (see {@link #isWhiteListed(String, String)}).
+     */
+    /* package-private */ Trie[] getWhiteLists(final String siteHost) {
+        final List<Trie> whitelists = new ArrayList<>(1);
+
+        int node = Trie.ROOT;
+        for (int position = siteHost.length() - 1; position >= 0; position--) {
+            node = rootNode.getChild(node, siteHost.charAt(position));
+
+            if (node == Trie.NO_NODE) {
+                break;
+            }
+
+            final Trie whitelist = rootNode.getWhiteList(node);
+            if (whitelist != null) {
+                whitelists.add(whitelist);
+            }
+        }
 
+        return whitelists.toArray(new Trie[0]);
     }
 }
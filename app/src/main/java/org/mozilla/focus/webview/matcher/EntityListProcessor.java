@@ -7,6 +7,7 @@ package org.mozilla.focus.webview.matcher;
 
 import android.util.JsonReader;
 
+import org.mozilla.focus.webview.matcher.Trie.WhiteListTrie;
 import org.mozilla.focus.webview.matcher.util.FocusString;
 
 import java.io.IOException;
@@ -17,12 +18,12 @@ import java.util.ArrayList;
  */
 /* package-private */ class EntityListProcessor {
 
-    private final EntityList entityMap = new EntityList();
+    private final WhiteListTrie.Builder entityMap = new WhiteListTrie.Builder();
 
     public static EntityList getEntityMapFromJSON(final JsonReader reader) throws IOException {
         EntityListProcessor processor = new EntityListProcessor(reader);
 
-        return processor.entityMap;
+        return new EntityList(processor.entityMap.build());
     }
 
     private EntityListProcessor(final JsonReader reader) throws IOException {
@@ -41,7 +42,7 @@ import java.util.ArrayList;
     private void handleSite(final JsonReader reader) throws IOException {
         reader.beginObject();
 
-        final Trie whitelist = Trie.createRootNode();
+        final Trie.Builder whitelistBuilder = new Trie.Builder();
         final ArrayList<String> propertyList = new ArrayList<>();
 
         while (reader.hasNext()) {
@@ -61,13 +62,15 @@ import java.util.ArrayList;
                 while (reader.hasNext()) {
                     final FocusString revhost = FocusString.create(reader.nextString()).reverse();
 
-                    whitelist.put(revhost);
+                    whitelistBuilder.put(revhost);
                 }
 
                 reader.endArray();
             }
         }
 
+        final Trie whitelist = whitelistBuilder.build();
+
         for (final String property : propertyList) {
             final FocusString revhost = FocusString.create(property).reverse();
 
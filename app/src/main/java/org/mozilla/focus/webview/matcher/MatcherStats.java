@@ -0,0 +1,190 @@
+/* -*- Mode: Java; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package org.mozilla.focus.webview.matcher;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts what {@link UrlMatcher#matches(android.net.Uri, PageContext)} blocks, and how long it
+ * takes. matches() is called concurrently from WebView's network threads, hence everything is
+ * recorded without locking (and without allocating).
+ */
+public final class MatcherStats {
+    /**
+     * Latencies are recorded in power-of-two buckets: bucket i holds calls that took less than
+     * 2^i nanoseconds (and at least 2^(i-1)). The last bucket holds everything slower.
+     */
+    /* package-private */ static final int LATENCY_BUCKETS = 32;
+
+    private final String[] categories;
+    // Blocked requests, by category bit: a request counts for every enabled category containing it.
+    private final AtomicLongArray categoryBlocks;
+    private final AtomicLong webfontBlocks = new AtomicLong();
+    private final AtomicLong whitelistSaves = new AtomicLong();
+    private final AtomicLongArray latencies = new AtomicLongArray(LATENCY_BUCKETS);
+
+    /**
+     * @param categories The matcher's categories: the name of the category with bit 1 << i is
+     *                   categories[i].
+     */
+    /* package-private */ MatcherStats(@NonNull final String[] categories) {
+        this.categories = categories;
+        this.categoryBlocks = new AtomicLongArray(categories.length);
+    }
+
+    /* package-private */ void recordBlock(int categoryMask) {
+        while (categoryMask != 0) {
+            categoryBlocks.incrementAndGet(Integer.numberOfTrailingZeros(categoryMask));
+            categoryMask &= categoryMask - 1;
+        }
+    }
+
+    /* package-private */ void recordWebfontBlock() {
+        webfontBlocks.incrementAndGet();
+    }
+
+    /* package-private */ void recordWhitelistSave() {
+        whitelistSaves.incrementAndGet();
+    }
+
+    /* package-private */ void recordLatency(final long nanos) {
+        latencies.incrementAndGet(getLatencyBucket(nanos));
+    }
+
+    /* package-private */ static int getLatencyBucket(final long nanos) {
+        final int bucket = 64 - Long.numberOfLeadingZeros(Math.max(0, nanos));
+        return Math.min(bucket, LATENCY_BUCKETS - 1);
+    }
+
+    /* package-private */ Snapshot snapshot(@NonNull final VerdictCache.Stats hostCacheStats,
+                                            @Nullable final BloomFilter.Stats prefilterStats) {
+        final Map<String, Long> blocks = new LinkedHashMap<>();
+        for (int i = 0; i < categories.length; i++) {
+            blocks.put(categories[i], categoryBlocks.get(i));
+        }
+
+        final long[] latencyCounts = new long[LATENCY_BUCKETS];
+        for (int i = 0; i < LATENCY_BUCKETS; i++) {
+            latencyCounts[i] = latencies.get(i);
+        }
+
+        return new Snapshot(blocks, webfontBlocks.get(), whitelistSaves.get(), latencyCounts,
+                hostCacheStats, prefilterStats);
+    }
+
+    /**
+     * The state of a matcher's counters at one point in time. Counters are read one after
+     * another, i.e. calls that are in progress might only be partially included.
+     */
+    public static final class Snapshot {
+        /**
+         * Blocked requests per category (in category order).
+         */
+        public final Map<String, Long> categoryBlocks;
+        public final long webfontBlocks;
+        /**
+         * Requests that would have been blocked, but were allowed by the entity list.
+         */
+        public final long whitelistSaves;
+        @NonNull public final VerdictCache.Stats hostCacheStats;
+        @Nullable public final BloomFilter.Stats prefilterStats;
+
+        private final long[] latencyCounts;
+
+        private Snapshot(final Map<String, Long> categoryBlocks, final long webfontBlocks,
+                         final long whitelistSaves, final long[] latencyCounts,
+                         @NonNull final VerdictCache.Stats hostCacheStats,
+                         @Nullable final BloomFilter.Stats prefilterStats) {
+            this.categoryBlocks = Collections.unmodifiableMap(categoryBlocks);
+            this.webfontBlocks = webfontBlocks;
+            this.whitelistSaves = whitelistSaves;
+            this.latencyCounts = latencyCounts;
+            this.hostCacheStats = hostCacheStats;
+            this.prefilterStats = prefilterStats;
+        }
+
+        /**
+         * @return The number of matches() calls.
+         */
+        public long getMatchCount() {
+            long count = 0;
+            for (final long bucketCount : latencyCounts) {
+                count += bucketCount;
+            }
+            return count;
+        }
+
+        /**
+         * @return The number of calls in the given latency bucket (see {@link #getLatencyBucketLimitNanos(int)}).
+         */
+        public long getLatencyCount(final int bucket) {
+            return latencyCounts[bucket];
+        }
+
+        public int getLatencyBucketCount() {
+            return latencyCounts.length;
+        }
+
+        /**
+         * @return The upper bound of the given latency bucket (the last bucket is unbounded).
+         */
+        public static long getLatencyBucketLimitNanos(final int bucket) {
+            return bucket >= LATENCY_BUCKETS - 1 ? Long.MAX_VALUE : 1L << bucket;
+        }
+
+        /**
+         * @param percentile Between 0 and 100.
+         * @return An upper bound for the latency of the given percentile of calls (within a
+         * factor of two), or 0 if nothing has been recorded.
+         */
+        public long getLatencyPercentileNanos(final double percentile) {
+            final long count = getMatchCount();
+            if (count == 0) {
+                return 0;
+            }
+
+            final long rank = (long) Math.ceil(count * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < latencyCounts.length; i++) {
+                seen += latencyCounts[i];
+                if (seen >= rank) {
+                    return getLatencyBucketLimitNanos(i);
+                }
+            }
+            return Long.MAX_VALUE;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder builder = new StringBuilder();
+
+            builder.append("matches=").append(getMatchCount())
+                    .append(" p50<").append(getLatencyPercentileNanos(50)).append("ns")
+                    .append(" p90<").append(getLatencyPercentileNanos(90)).append("ns")
+                    .append(" p99<").append(getLatencyPercentileNanos(99)).append("ns\n");
+
+            builder.append("blocked:");
+            for (final Map.Entry<String, Long> entry : categoryBlocks.entrySet()) {
+                builder.append(' ').append(entry.getKey()).append('=').append(entry.getValue());
+            }
+            builder.append(" webfonts=").append(webfontBlocks)
+                    .append(" whitelisted=").append(whitelistSaves).append('\n');
+
+            builder.append("host cache: ").append(hostCacheStats);
+            if (prefilterStats != null) {
+                builder.append("\nprefilter: ").append(prefilterStats);
+            }
+
+            return builder.toString();
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/* -*- Mode: Java; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package org.mozilla.focus.webview.matcher;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Everything the matcher needs to know about the page that loads a resource: its host, and the
+ * entity list whitelists that apply to it. The page only changes on navigation, so this is created
+ * once per page (see {@link UrlMatcher#createPageContext(String)}) and then reused for all of the
+ * page's resources (as long as the matcher isn't replaced, see {@link #isResolvedBy(UrlMatcher)}).
+ */
+public final class PageContext {
+    private static final Trie[] NO_WHITELISTS = new Trie[0];
+
+    // The whitelists come from this matcher's entity list.
+    @NonNull private final UrlMatcher matcher;
+    @NonNull private final String url;
+    @Nullable /* package-private */ final String host;
+
+    /**
+     * The whitelists of all entities that the page belongs to. Resources on any host contained in
+     * one of these are never blocked on this page.
+     */
+    @NonNull /* package-private */ final Trie[] whitelists;
+
+    /* package-private */ PageContext(@NonNull final UrlMatcher matcher, @NonNull final String url,
+                                      @Nullable final String host, @Nullable final Trie[] whitelists) {
+        this.matcher = matcher;
+        this.url = url;
+        this.host = host;
+        this.whitelists = whitelists != null ? whitelists : NO_WHITELISTS;
+    }
+
+    @NonNull
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * @return Whether this was created by the given matcher - i.e. whether it can be used with it.
+     */
+    public boolean isResolvedBy(@NonNull final UrlMatcher matcher) {
+        return this.matcher == matcher;
+    }
+
+    /* package-private */ boolean isWhiteListed(final String resourceHost) {
+        for (final Trie whitelist : whitelists) {
+            if (whitelist.findReversed(resourceHost) != Trie.NO_NODE) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
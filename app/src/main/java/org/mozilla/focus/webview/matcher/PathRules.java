@@ -0,0 +1,259 @@
+/* -*- Mode: Java; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package org.mozilla.focus.webview.matcher;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Rules that match the path (and query) of a URL rather than its host, e.g. "all paths ending in
+ * .woff", or "all URLs containing /collect?".
+ *
+ * All rule literals are compiled into one Aho-Corasick automaton: a URL is checked against all
+ * rules in a single pass over its characters, i.e. the cost of a lookup depends on the length of
+ * the URL, but not on the number of rules. Every rule carries a set of group bits (chosen by the
+ * caller), and lookups return the union of the groups of all matching rules.
+ *
+ * Immutable once built: lookups don't lock or allocate, and can be run from any thread.
+ */
+public final class PathRules {
+    public enum Type {
+        /**
+         * The path starts with the literal.
+         */
+        PREFIX,
+        /**
+         * The path ends with the literal.
+         */
+        SUFFIX,
+        /**
+         * The literal appears anywhere in the path or query (which are matched as path + "?" + query).
+         */
+        SUBSTRING
+    }
+
+    /**
+     * A rule for a category of the blocklists, see {@link UrlMatcher#setPathRules(List)}.
+     */
+    public static final class Rule {
+        @NonNull public final Type type;
+        @NonNull public final String literal;
+        @NonNull public final String category;
+
+        public Rule(@NonNull final Type type, @NonNull final String literal, @NonNull final String category) {
+            this.type = type;
+            this.literal = literal;
+            this.category = category;
+        }
+    }
+
+    private static final int ROOT = 0;
+    private static final int NO_NODE = -1;
+
+    public static final class Builder {
+        // One map of children per node, only used while building.
+        private final List<TreeMap<Character, Integer>> children = new ArrayList<>();
+        private final List<int[]> groups = new ArrayList<>();
+        private int ruleCount = 0;
+
+        public Builder() {
+            addNode();
+        }
+
+        public Builder add(@NonNull final Type type, @NonNull final String literal, final int ruleGroups) {
+            if (literal.isEmpty()) {
+                throw new IllegalArgumentException("Rules must not be empty");
+            }
+
+            int node = ROOT;
+            for (int i = 0; i < literal.length(); i++) {
+                final Character character = literal.charAt(i);
+
+                Integer child = children.get(node).get(character);
+                if (child == null) {
+                    child = addNode();
+                    children.get(node).put(character, child);
+                }
+                node = child;
+            }
+
+            groups.get(node)[type.ordinal()] |= ruleGroups;
+            ruleCount++;
+            return this;
+        }
+
+        private int addNode() {
+            children.add(new TreeMap<Character, Integer>());
+            groups.add(new int[Type.values().length]);
+            return children.size() - 1;
+        }
+
+        public PathRules build() {
+            return new PathRules(this);
+        }
+    }
+
+    // The goto function, packed like Trie: the edges of node n are [edgeStart[n], edgeStart[n + 1]),
+    // sorted by label.
+    private final int[] edgeStart;
+    private final char[] edgeLabels;
+    private final int[] edgeTargets;
+
+    // The longest proper suffix of a node's string that is also a node.
+    private final int[] failure;
+    private final int[] depth;
+
+    // Groups of rules whose literal is the node's string (PREFIX), or any suffix of it (SUFFIX and
+    // SUBSTRING: these are propagated along the failure links).
+    private final int[] prefixGroups;
+    private final int[] suffixGroups;
+    private final int[] substringGroups;
+
+    private final int ruleCount;
+    private final boolean hasSubstringRules;
+
+    private PathRules(final Builder builder) {
+        final int nodeCount = builder.children.size();
+
+        edgeStart = new int[nodeCount + 1];
+        edgeLabels = new char[nodeCount - 1];
+        edgeTargets = new int[nodeCount - 1];
+
+        int edge = 0;
+        for (int node = 0; node < nodeCount; node++) {
+            edgeStart[node] = edge;
+            for (final Map.Entry<Character, Integer> child : builder.children.get(node).entrySet()) {
+                edgeLabels[edge] = child.getKey();
+                edgeTargets[edge] = child.getValue();
+                edge++;
+            }
+        }
+        edgeStart[nodeCount] = edge;
+
+        failure = new int[nodeCount];
+        depth = new int[nodeCount];
+        prefixGroups = new int[nodeCount];
+        suffixGroups = new int[nodeCount];
+        substringGroups = new int[nodeCount];
+
+        for (int node = 0; node < nodeCount; node++) {
+            final int[] groups = builder.groups.get(node);
+            prefixGroups[node] = groups[Type.PREFIX.ordinal()];
+            suffixGroups[node] = groups[Type.SUFFIX.ordinal()];
+            substringGroups[node] = groups[Type.SUBSTRING.ordinal()];
+        }
+
+        // Breadth first, so that the failure target (which is shallower) is always complete when
+        // we get to a node.
+        final int[] queue = new int[nodeCount];
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = ROOT;
+
+        boolean hasSubstringRules = false;
+
+        while (head < tail) {
+            final int node = queue[head++];
+            hasSubstringRules |= substringGroups[node] != 0;
+
+            for (int e = edgeStart[node]; e < edgeStart[node + 1]; e++) {
+                final int child = edgeTargets[e];
+
+                failure[child] = node == ROOT ? ROOT : step(failure[node], edgeLabels[e]);
+                depth[child] = depth[node] + 1;
+                suffixGroups[child] |= suffixGroups[failure[child]];
+                substringGroups[child] |= substringGroups[failure[child]];
+
+                queue[tail++] = child;
+            }
+        }
+
+        this.ruleCount = builder.ruleCount;
+        this.hasSubstringRules = hasSubstringRules;
+    }
+
+    public int getRuleCount() {
+        return ruleCount;
+    }
+
+    /**
+     * @return Whether {@link #match(String, String)} needs the query: only SUBSTRING rules look at it.
+     */
+    public boolean needsQuery() {
+        return hasSubstringRules;
+    }
+
+    /**
+     * @param query The query (without "?"), or null if there is none.
+     * @return The union of the groups of all rules matching the given path / query, 0 if none match.
+     */
+    public int match(@NonNull final String path, @Nullable final String query) {
+        int result = 0;
+        int node = ROOT;
+
+        for (int i = 0; i < path.length(); i++) {
+            node = step(node, path.charAt(i));
+
+            result |= substringGroups[node];
+
+            // A prefix rule only matches if the node spells the entire path so far
+            if (prefixGroups[node] != 0 && depth[node] == i + 1) {
+                result |= prefixGroups[node];
+            }
+        }
+
+        result |= suffixGroups[node];
+
+        if (query != null && hasSubstringRules) {
+            node = step(node, '?');
+            result |= substringGroups[node];
+
+            for (int i = 0; i < query.length(); i++) {
+                node = step(node, query.charAt(i));
+                result |= substringGroups[node];
+            }
+        }
+
+        return result;
+    }
+
+    private int step(int node, final char character) {
+        while (true) {
+            final int child = getChild(node, character);
+            if (child != NO_NODE) {
+                return child;
+            }
+            if (node == ROOT) {
+                return ROOT;
+            }
+            node = failure[node];
+        }
+    }
+
+    private int getChild(final int node, final char character) {
+        int low = edgeStart[node];
+        int high = edgeStart[node + 1] - 1;
+
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final char label = edgeLabels[mid];
+
+            if (label < character) {
+                low = mid + 1;
+            } else if (label > character) {
+                high = mid - 1;
+            } else {
+                return edgeTargets[mid];
+            }
+        }
+
+        return NO_NODE;
+    }
+}
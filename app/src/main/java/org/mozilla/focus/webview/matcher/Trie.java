@@ -4,107 +4,709 @@
  * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
 package org.mozilla.focus.webview.matcher;
 
-import android.util.SparseArray;
-
 import org.mozilla.focus.webview.matcher.util.FocusString;
 
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Immutable trie, packed into a handful of primitive buffers.
+ *
+ * Nodes are identified by their index, the root node is always {@link #ROOT}. The outgoing edges
+ * of node n are stored at [edgeStart[n], edgeStart[n + 1]) in edgeLabels/edgeTargets, sorted by
+ * label so that they can be binary searched. Every node carries an int value, which is 0 for
+ * nodes that don't terminate a stored string.
+ *
+ * Tries are created using {@link Builder}: storing one object (plus a SparseArray) per character
+ * of every blocklisted host is far too expensive on low-end devices. Builders also share equivalent
+ * subtrees (see {@link #minimise()}), i.e. strictly speaking the result is a DAWG rather than a trie:
+ * several edges can lead to the same node. Alternatively tries can be
+ * {@link #write(DataOutputStream) written} at build time, and {@link #read(ByteBuffer) read} back
+ * at runtime: reading only creates views of the underlying buffer, lookups are then performed
+ * in place.
+ */
 /* package-private */ class Trie {
+    public static final int ROOT = 0;
+    public static final int NO_NODE = -1;
 
     /**
-     * Trie that adds storage for a whitelist (itself another trie) on each node.
+     * Trie that adds storage for a whitelist (itself a set of strings) on each node.
+     *
+     * Whitelists are stored in the same trie: the string s of whitelist i is stored as
+     * s + WHITELIST_MARKER + (char) i. Entities usually whitelist their own properties, and
+     * several properties share one whitelist, so this stores every host, and every whitelist,
+     * only once. Nodes of the strings that were put with a whitelist carry its (1-based) index.
      */
     public static class WhiteListTrie extends Trie {
-        Trie whitelist = null;
+        private static final char WHITELIST_MARKER = '\0';
+        // Whitelist indexes are stored as a single char.
+        private static final int MAX_WHITELISTS = Character.MAX_VALUE;
+
+        private final Trie[] whitelists;
+
+        private WhiteListTrie(final Trie trie, final int whitelistCount) {
+            super(trie);
+
+            this.whitelists = new Trie[whitelistCount];
+            for (int i = 0; i < whitelistCount; i++) {
+                whitelists[i] = new WhiteList(this, (char) (i + 1));
+            }
+        }
+
+        /**
+         * @return The whitelist stored on the given node, or null if there is none.
+         */
+        public Trie getWhiteList(final int node) {
+            final int value = getValue(node);
+            return value == 0 ? null : whitelists[value - 1];
+        }
+
+        /**
+         * A whitelist: a view of the WhiteListTrie in which only the strings of this whitelist are
+         * terminal. Only lookups (findNode(), findReversed()) are supported.
+         */
+        private static final class WhiteList extends Trie {
+            private final char index;
+
+            private WhiteList(final Trie trie, final char index) {
+                super(trie);
+                this.index = index;
+            }
+
+            @Override
+            public boolean isTerminal(final int node) {
+                final int marker = getChild(node, WHITELIST_MARKER);
+                return marker != NO_NODE && getChild(marker, index) != NO_NODE;
+            }
+        }
+
+        public static class Builder {
+            private final SortedMap<String, Integer> strings = new TreeMap<>();
+            private final List<Trie> whitelists = new ArrayList<>();
+            // Entities share one whitelist between all their properties: it's only stored once.
+            private final Map<Trie, Integer> indexes = new IdentityHashMap<>();
+
+            public Builder putWhiteList(final FocusString string, final Trie whitelist) {
+                final String key = string.toString();
 
-        private WhiteListTrie(final char character, final WhiteListTrie parent) {
-            super(character, parent);
+                if (strings.containsKey(key)) {
+                    throw new IllegalStateException("Whitelist already set for node " + key);
+                }
+
+                // Values are 1-based indexes into the whitelist array, 0 means "no whitelist".
+                Integer index = indexes.get(whitelist);
+                if (index == null) {
+                    if (whitelists.size() == MAX_WHITELISTS) {
+                        throw new IllegalStateException("Too many whitelists");
+                    }
+                    whitelists.add(whitelist);
+                    index = whitelists.size();
+                    indexes.put(whitelist, index);
+                }
+                strings.put(key, index);
+                return this;
+            }
+
+            public WhiteListTrie build() {
+                final SortedMap<String, Integer> all = new TreeMap<>(strings);
+
+                final List<String> whitelisted = new ArrayList<>();
+                for (int i = 0; i < whitelists.size(); i++) {
+                    whitelisted.clear();
+                    whitelists.get(i).collectStrings(ROOT, new StringBuilder(), whitelisted);
+
+                    final String suffix = new String(new char[] { WHITELIST_MARKER, (char) (i + 1) });
+                    for (final String string : whitelisted) {
+                        // Any non-zero value: these nodes are only checked for existence
+                        all.put(string + suffix, 1);
+                    }
+                }
+
+                return new WhiteListTrie(pack(all).minimise(), whitelists.size());
+            }
         }
 
         @Override
-        protected Trie createNode(final char character, final Trie parent) {
-            return new WhiteListTrie(character, (WhiteListTrie) parent);
+        /* package-private */ void write(final DataOutputStream out) throws IOException {
+            super.write(out);
+
+            out.writeInt(whitelists.length);
         }
 
-        public static WhiteListTrie createRootNode() {
-            return new WhiteListTrie(Character.MIN_VALUE, null);
+        /* package-private */ static WhiteListTrie read(final ByteBuffer buffer) {
+            final Trie trie = Trie.read(buffer);
+
+            final int count = buffer.getInt();
+            if (count < 0 || count > MAX_WHITELISTS) {
+                throw new IllegalStateException("Invalid whitelist count: " + count);
+            }
+
+            for (int node = 0; node < trie.getNodeCount(); node++) {
+                final int value = trie.getValue(node);
+                if (value < 0 || value > count) {
+                    throw new IllegalStateException("Invalid whitelist index " + value + " on node " + node);
+                }
+            }
+
+            return new WhiteListTrie(trie, count);
         }
+    }
 
-        /* Convenience method so that clients aren't forced to do their own casting. */
-        public void putWhiteList(final FocusString string, final Trie whitelist) {
-            WhiteListTrie node = (WhiteListTrie) super.put(string);
+    public static class Builder {
+        private final SortedMap<String, Integer> strings = new TreeMap<>();
 
-            if (node.whitelist != null) {
-                throw new IllegalStateException("Whitelist already set for node " + string);
+        public Builder put(final FocusString string) {
+            return put(string.toString(), 1);
+        }
+
+        /**
+         * Adds all strings from another builder, ORing the given bits into their values (so that
+         * strings shared by several builders carry all of their bits).
+         */
+        public Builder putAll(final Builder other, final int bits) {
+            for (final String string : other.strings.keySet()) {
+                put(string, bits);
             }
+            return this;
+        }
+
+        private Builder put(final String string, final int bits) {
+            final Integer value = strings.get(string);
+            strings.put(string, value == null ? bits : value | bits);
+            return this;
+        }
 
-            node.whitelist = whitelist;
+        public int size() {
+            return strings.size();
+        }
+
+        /**
+         * Removes strings that can't change the result of any lookup: a (reversed) host is
+         * dominated if one of its parent domains is stored too, with at least the same bits. E.g.
+         * foo.bar.com is redundant if bar.com is in the same category: lookups stop at (or collect
+         * the bits of) every stored parent domain anyway, see findNode() and collectReversed().
+         *
+         * @return The number of strings that were removed.
+         */
+        public int removeDominated() {
+            // The stored strings that are prefixes of the current one: in sorted order, a string's
+            // prefixes always come before it.
+            final List<String> prefixes = new ArrayList<>();
+            int removed = 0;
+
+            final Iterator<Map.Entry<String, Integer>> iterator = strings.entrySet().iterator();
+            while (iterator.hasNext()) {
+                final Map.Entry<String, Integer> entry = iterator.next();
+                final String string = entry.getKey();
+
+                while (!prefixes.isEmpty() && !string.startsWith(prefixes.get(prefixes.size() - 1))) {
+                    prefixes.remove(prefixes.size() - 1);
+                }
+
+                // Only prefixes that end at a domain boundary match this string
+                int parentBits = 0;
+                for (final String prefix : prefixes) {
+                    if (string.charAt(prefix.length()) == '.') {
+                        parentBits |= strings.get(prefix);
+                    }
+                }
+
+                if ((entry.getValue() & ~parentBits) == 0) {
+                    iterator.remove();
+                    removed++;
+                } else {
+                    prefixes.add(string);
+                }
+            }
+
+            return removed;
+        }
+
+        public Trie build() {
+            return pack(strings).minimise();
         }
     }
 
-    public final SparseArray<Trie> children = new SparseArray<>();
-    public boolean terminator = false;
+    private final IntBuffer edgeStart;
+    private final CharBuffer edgeLabels;
+    private final IntBuffer edgeTargets;
+    private final IntBuffer values;
 
-    public Trie findNode(final FocusString string) {
-        if (terminator) {
-            // Match achieved - and we're at a domain boundary. This is important, because
-            // we don't want to return on partial domain matches. (E.g. if the trie node is bar.com,
-            // and the search string is foo-bar.com, we shouldn't match. But foo.bar.com should match.)
-            if (string.length() == 0 || string.charAt(0) == '.') {
-                return this;
+    private Trie(final IntBuffer edgeStart, final CharBuffer edgeLabels, final IntBuffer edgeTargets, final IntBuffer values) {
+        this.edgeStart = edgeStart;
+        this.edgeLabels = edgeLabels;
+        this.edgeTargets = edgeTargets;
+        this.values = values;
+    }
+
+    private Trie(final Trie trie) {
+        this(trie.edgeStart, trie.edgeLabels, trie.edgeTargets, trie.values);
+    }
+
+    /**
+     * Builds the packed representation breadth first from the sorted input strings: every node
+     * corresponds to the range of strings that share its prefix, and its children are found by
+     * splitting that range on the next character.
+     */
+    private static Trie pack(final SortedMap<String, Integer> strings) {
+        final String[] keys = strings.keySet().toArray(new String[0]);
+        final int[] keyValues = new int[keys.length];
+        {
+            int i = 0;
+            for (final Map.Entry<String, Integer> entry : strings.entrySet()) {
+                keyValues[i++] = entry.getValue();
             }
-        } else if (string.length() == 0) {
-            // Finished the string, no match
-            return null;
         }
 
-        final Trie next = children.get(string.charAt(0));
+        // Every node except the root is the target of exactly one edge, and there is one node per
+        // distinct prefix: i.e. each key adds the characters it doesn't share with its predecessor.
+        int nodeCapacity = 1;
+        for (int i = 0; i < keys.length; i++) {
+            nodeCapacity += keys[i].length() - (i == 0 ? 0 : commonPrefixLength(keys[i - 1], keys[i]));
+        }
+
+        final int[] rangeStart = new int[nodeCapacity];
+        final int[] rangeEnd = new int[nodeCapacity];
+        final int[] depths = new int[nodeCapacity];
+
+        final int[] starts = new int[nodeCapacity + 1];
+        final char[] labels = new char[nodeCapacity - 1];
+        final int[] targets = new int[nodeCapacity - 1];
+        final int[] nodeValues = new int[nodeCapacity];
+
+        rangeEnd[ROOT] = keys.length;
+        int nodeCount = 1;
+        int edgeCount = 0;
+
+        for (int node = 0; node < nodeCount; node++) {
+            int start = rangeStart[node];
+            final int end = rangeEnd[node];
+            final int depth = depths[node];
 
-        if (next == null) {
-            return null;
+            starts[node] = edgeCount;
+
+            // Keys are unique and sorted, so only the first key in the range can end here.
+            if (start < end && keys[start].length() == depth) {
+                nodeValues[node] = keyValues[start];
+                start++;
+            }
+
+            while (start < end) {
+                final char label = keys[start].charAt(depth);
+
+                int groupEnd = start + 1;
+                while (groupEnd < end && keys[groupEnd].charAt(depth) == label) {
+                    groupEnd++;
+                }
+
+                labels[edgeCount] = label;
+                targets[edgeCount] = nodeCount;
+                edgeCount++;
+
+                rangeStart[nodeCount] = start;
+                rangeEnd[nodeCount] = groupEnd;
+                depths[nodeCount] = depth + 1;
+                nodeCount++;
+
+                start = groupEnd;
+            }
         }
+        starts[nodeCount] = edgeCount;
 
-        return next.findNode(string.substring(1));
+        return new Trie(IntBuffer.wrap(starts), CharBuffer.wrap(labels), IntBuffer.wrap(targets), IntBuffer.wrap(nodeValues));
     }
 
-    public Trie put(final FocusString string) {
-        if (string.length() == 0) {
-            terminator = true;
+    /**
+     * Merges equivalent nodes: two nodes are equivalent if they have the same value, and the same
+     * outgoing edges leading to equivalent nodes. Hosts are stored reversed, so tries share the TLDs
+     * at the top, but not the rest: this additionally shares the ends of hosts (e.g. all "cdn.",
+     * "static." and "ads." subdomains whose subtrees are otherwise identical).
+     *
+     * Lookups only ever walk edges starting at the root, and compare values of the nodes along the
+     * way, hence they give exactly the same results (including domain boundaries and category masks)
+     * as they do on the trie. Only node indexes change: a node no longer represents a single prefix.
+     *
+     * This must only be called on the result of {@link #pack(SortedMap)}.
+     */
+    private Trie minimise() {
+        final int nodeCount = getNodeCount();
+
+        // Children always have a higher index than their parent in a packed trie, so walking
+        // backwards visits all children before their parents: i.e. the classes of a node's children
+        // are known by the time we get to the node itself.
+        final int[] classes = new int[nodeCount];
+        final int[] representatives = new int[nodeCount];
+        final Map<NodeKey, Integer> known = new HashMap<>();
+        int classCount = 0;
+        int edgeCount = 0;
+
+        for (int node = nodeCount - 1; node >= 0; node--) {
+            final int start = edgeStart.get(node);
+            final int end = edgeStart.get(node + 1);
+
+            final int[] key = new int[1 + 2 * (end - start)];
+            key[0] = values.get(node);
+            for (int edge = start; edge < end; edge++) {
+                key[1 + 2 * (edge - start)] = edgeLabels.get(edge);
+                key[2 + 2 * (edge - start)] = classes[edgeTargets.get(edge)];
+            }
+
+            final NodeKey nodeKey = new NodeKey(key);
+            final Integer existing = known.get(nodeKey);
+            if (existing != null) {
+                classes[node] = existing;
+            } else {
+                classes[node] = classCount;
+                representatives[classCount] = node;
+                known.put(nodeKey, classCount);
+                classCount++;
+                edgeCount += end - start;
+            }
+        }
+
+        if (classCount == nodeCount) {
             return this;
         }
 
-        final char character = string.charAt(0);
+        // Lay out one node per class, again breadth first starting at the root.
+        final int[] ids = new int[classCount];
+        Arrays.fill(ids, NO_NODE);
+        final int[] order = new int[classCount];
+
+        final int[] starts = new int[classCount + 1];
+        final char[] labels = new char[edgeCount];
+        final int[] targets = new int[edgeCount];
+        final int[] nodeValues = new int[classCount];
+
+        ids[classes[ROOT]] = ROOT;
+        order[ROOT] = classes[ROOT];
+        int count = 1;
+        int edge = 0;
+
+        for (int id = 0; id < count; id++) {
+            final int node = representatives[order[id]];
+
+            starts[id] = edge;
+            nodeValues[id] = values.get(node);
+
+            final int end = edgeStart.get(node + 1);
+            for (int oldEdge = edgeStart.get(node); oldEdge < end; oldEdge++) {
+                final int targetClass = classes[edgeTargets.get(oldEdge)];
+                if (ids[targetClass] == NO_NODE) {
+                    ids[targetClass] = count;
+                    order[count] = targetClass;
+                    count++;
+                }
+
+                labels[edge] = edgeLabels.get(oldEdge);
+                targets[edge] = ids[targetClass];
+                edge++;
+            }
+        }
+        starts[count] = edge;
+
+        return new Trie(IntBuffer.wrap(starts), CharBuffer.wrap(labels), IntBuffer.wrap(targets), IntBuffer.wrap(nodeValues));
+    }
+
+    /**
+     * A node's value and outgoing edges (label and target class), see {@link #minimise()}.
+     */
+    private static final class NodeKey {
+        private final int[] key;
+        private final int hashCode;
+
+        private NodeKey(final int[] key) {
+            this.key = key;
+            this.hashCode = Arrays.hashCode(key);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+            return other instanceof NodeKey && Arrays.equals(key, ((NodeKey) other).key);
+        }
+    }
 
-        final Trie child = put(character);
+    private static int commonPrefixLength(final String a, final String b) {
+        final int length = Math.min(a.length(), b.length());
 
-        return child.put(string.substring(1));
+        int i = 0;
+        while (i < length && a.charAt(i) == b.charAt(i)) {
+            i++;
+        }
+        return i;
     }
 
-    public Trie put(char character) {
-        final Trie existingChild = children.get(character);
+    /**
+     * @return The child of node reached via the given character, or {@link #NO_NODE}.
+     */
+    public int getChild(final int node, final char character) {
+        int low = edgeStart.get(node);
+        int high = edgeStart.get(node + 1) - 1;
+
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final char label = edgeLabels.get(mid);
 
-        if (existingChild != null) {
-            return existingChild;
+            if (label < character) {
+                low = mid + 1;
+            } else if (label > character) {
+                high = mid - 1;
+            } else {
+                return edgeTargets.get(mid);
+            }
         }
 
-        final Trie newChild = createNode(character, this);
+        return NO_NODE;
+    }
+
+    public int getValue(final int node) {
+        return values.get(node);
+    }
+
+    public boolean isTerminal(final int node) {
+        return values.get(node) != 0;
+    }
+
+    public int getNodeCount() {
+        return values.limit();
+    }
 
-        children.put(character, newChild);
+    /**
+     * @return The number of strings stored in this trie. Terminal nodes can be shared by several
+     * strings, so this counts the paths leading to them.
+     */
+    public int getTerminalCount() {
+        final int[] counts = new int[getNodeCount()];
+        Arrays.fill(counts, NO_NODE);
 
-        return newChild;
+        return countStrings(ROOT, counts);
     }
 
-    private Trie(char character, Trie parent) {
-        if (parent != null) {
-            parent.children.put(character, this);
+    // Recursion depth is bounded by the length of the longest string.
+    private int countStrings(final int node, final int[] counts) {
+        if (counts[node] != NO_NODE) {
+            return counts[node];
+        }
+
+        int count = isTerminal(node) ? 1 : 0;
+
+        final int end = edgeStart.get(node + 1);
+        for (int edge = edgeStart.get(node); edge < end; edge++) {
+            count += countStrings(edgeTargets.get(edge), counts);
         }
+
+        counts[node] = count;
+        return count;
+    }
+
+    // Raw edge access, for code that needs to traverse the whole trie. The outgoing edges of a
+    // node are [getFirstEdge(node), getFirstEdge(node + 1)).
+
+    /* package-private */ int getFirstEdge(final int node) {
+        return edgeStart.get(node);
+    }
+
+    /* package-private */ char getEdgeLabel(final int edge) {
+        return edgeLabels.get(edge);
     }
 
-    public static Trie createRootNode() {
-        return new Trie(Character.MIN_VALUE, null);
+    /* package-private */ int getEdgeTarget(final int edge) {
+        return edgeTargets.get(edge);
     }
 
-    // Subclasses must override to provide their node implementation
-    protected Trie createNode(final char character, final Trie parent) {
-        return new Trie(character, parent);
+    /**
+     * Serialised layout: node count, edge count, then edgeStart, edgeTargets, values and finally
+     * edgeLabels - padded so that the next trie starts at a 4-byte boundary too.
+     */
+    /* package-private */ void write(final DataOutputStream out) throws IOException {
+        final int nodeCount = values.limit();
+        final int edgeCount = edgeLabels.limit();
+
+        out.writeInt(nodeCount);
+        out.writeInt(edgeCount);
+
+        for (int i = 0; i <= nodeCount; i++) {
+            out.writeInt(edgeStart.get(i));
+        }
+        for (int i = 0; i < edgeCount; i++) {
+            out.writeInt(edgeTargets.get(i));
+        }
+        for (int i = 0; i < nodeCount; i++) {
+            out.writeInt(values.get(i));
+        }
+        for (int i = 0; i < edgeCount; i++) {
+            out.writeChar(edgeLabels.get(i));
+        }
+        if (edgeCount % 2 != 0) {
+            out.writeChar(0);
+        }
+    }
+
+    /**
+     * Reads a trie written by {@link #write(DataOutputStream)}, starting at the buffer's current
+     * position. The returned trie is a view of the buffer (no data is copied), and the buffer's
+     * position is moved to the end of the trie.
+     */
+    /* package-private */ static Trie read(final ByteBuffer buffer) {
+        final int nodeCount = buffer.getInt();
+        final int edgeCount = buffer.getInt();
+
+        // Every node but the root has at least one incoming edge (more if it's shared)
+        if (nodeCount < 1 || edgeCount < nodeCount - 1) {
+            throw new IllegalStateException("Invalid trie: " + nodeCount + " nodes, " + edgeCount + " edges");
+        }
+
+        final IntBuffer edgeStart = slice(buffer, (nodeCount + 1L) * 4).asIntBuffer();
+        final IntBuffer edgeTargets = slice(buffer, edgeCount * 4L).asIntBuffer();
+        final IntBuffer values = slice(buffer, nodeCount * 4L).asIntBuffer();
+        final CharBuffer edgeLabels = slice(buffer, edgeCount * 2L).asCharBuffer();
+
+        if (edgeCount % 2 != 0) {
+            buffer.getChar();
+        }
+
+        // Lookups don't check indexes: a corrupt image has to fail here, not in matches() later.
+        int previous = 0;
+        for (int node = 0; node <= nodeCount; node++) {
+            final int start = edgeStart.get(node);
+            if (start < previous || start > edgeCount) {
+                throw new IllegalStateException("Invalid trie: edges of node " + node + " start at " + start);
+            }
+            previous = start;
+        }
+        if (previous != edgeCount) {
+            throw new IllegalStateException("Invalid trie: " + previous + " of " + edgeCount + " edges used");
+        }
+
+        for (int edge = 0; edge < edgeCount; edge++) {
+            final int target = edgeTargets.get(edge);
+            if (target < 0 || target >= nodeCount) {
+                throw new IllegalStateException("Invalid trie: edge " + edge + " points to node " + target);
+            }
+        }
+
+        return new Trie(edgeStart, edgeLabels, edgeTargets, values);
+    }
+
+    private static ByteBuffer slice(final ByteBuffer buffer, final long length) {
+        if (buffer.remaining() < length) {
+            throw new IllegalStateException("Truncated trie");
+        }
+
+        final ByteBuffer slice = buffer.slice();
+        slice.limit((int) length);
+
+        buffer.position(buffer.position() + (int) length);
+
+        return slice;
+    }
+
+    /**
+     * Adds all strings stored below the given node (prefixed with the given one) to strings.
+     */
+    private void collectStrings(final int node, final StringBuilder prefix, final List<String> strings) {
+        if (isTerminal(node)) {
+            strings.add(prefix.toString());
+        }
+
+        final int end = edgeStart.get(node + 1);
+        for (int edge = edgeStart.get(node); edge < end; edge++) {
+            prefix.append(edgeLabels.get(edge));
+            collectStrings(edgeTargets.get(edge), prefix, strings);
+            prefix.setLength(prefix.length() - 1);
+        }
+    }
+
+    /**
+     * Looks up the reverse of the given string (usually a host), i.e. this is equivalent to
+     * findNode(FocusString.create(string).reverse()). We iterate over the raw String backwards
+     * instead of creating a reversed copy (or wrapper), so that lookups don't allocate.
+     */
+    public int findReversed(final String string) {
+        int node = ROOT;
+        for (int position = string.length() - 1; position >= 0; position--) {
+            final char character = string.charAt(position);
+
+            // Domain boundary, see findNode() below
+            if (character == '.' && isTerminal(node)) {
+                return node;
+            }
+
+            node = getChild(node, character);
+
+            if (node == NO_NODE) {
+                return NO_NODE;
+            }
+        }
+
+        return isTerminal(node) ? node : NO_NODE;
+    }
+
+    /**
+     * Walks the reverse of the given string like {@link #findReversed(String)}, but instead of
+     * stopping at the first match this ORs together the values of all nodes that match (i.e. of
+     * the string itself and of all its parent domains). This is used for tries that store bitmasks.
+     */
+    public int collectReversed(final String string) {
+        int result = 0;
+
+        int node = ROOT;
+        for (int position = string.length() - 1; position >= 0; position--) {
+            final char character = string.charAt(position);
+
+            if (character == '.') {
+                result |= values.get(node);
+            }
+
+            node = getChild(node, character);
+
+            if (node == NO_NODE) {
+                return result;
+            }
+        }
+
+        return result | values.get(node);
+    }
+
+    public int findNode(final FocusString string) {
+        final int length = string.length();
+
+        int node = ROOT;
+        for (int i = 0; i < length; i++) {
+            final char character = string.charAt(i);
+
+            // Match achieved - and we're at a domain boundary. This is important, because
+            // we don't want to return on partial domain matches. (E.g. if the trie node is bar.com,
+            // and the search string is foo-bar.com, we shouldn't match. But foo.bar.com should match.)
+            if (character == '.' && isTerminal(node)) {
+                return node;
+            }
+
+            node = getChild(node, character);
+
+            if (node == NO_NODE) {
+                return NO_NODE;
+            }
+        }
+
+        // Finished the string: this is only a match if a stored string ends here too
+        return isTerminal(node) ? node : NO_NODE;
     }
 }
@@ -7,28 +7,54 @@ package org.mozilla.focus.webview.matcher;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.content.res.AssetFileDescriptor;
+import android.content.res.Resources;
 import android.net.Uri;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.VisibleForTesting;
+import androidx.annotation.WorkerThread;
 import androidx.collection.ArrayMap;
 import android.util.JsonReader;
+import android.util.Log;
 
 import org.mozilla.focus.R;
 import org.mozilla.focus.utils.Settings;
 import org.mozilla.focus.webview.matcher.util.FocusString;
 
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 public class UrlMatcher implements  SharedPreferences.OnSharedPreferenceChangeListener {
+    private static final String LOGTAG = "UrlMatcher";
+
     /**
      * Map of pref to blocking category (preference key -> Blocklist category name).
      */
@@ -44,6 +70,17 @@ public class UrlMatcher implements  SharedPreferences.OnSharedPreferenceChangeLi
 
     private static final String WEBFONTS = "Webfonts";
 
+    // Path rule group of the webfont rules. Masks of the lists' categories never use the sign bit
+    // (see CategoryTrie.MAX_CATEGORIES), hence it can't clash with any category.
+    private static final int WEBFONT_RULES = 1 << 31;
+
+    /**
+     * Categories from the additional (EasyList etc.) lists. These are opt-in, and live in a
+     * separate image that is only loaded once one of them is enabled.
+     */
+    private static final Set<String> ADDITIONAL_CATEGORIES = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            "adGuard", "easyList", "easyPrivacy", "fanBoyAnnoyance", "fanBoySocial")));
+
     private static Map<String, String> loadDefaultPrefMap(final Context context) {
         Map<String, String> tempMap = new ArrayMap<>();
 
@@ -54,72 +91,483 @@ public class UrlMatcher implements  SharedPreferences.OnSharedPreferenceChangeLi
         tempMap.put(context.getString(R.string.pref_key_privacy_block_cryptomining), "Cryptomining");
         tempMap.put(context.getString(R.string.pref_key_privacy_block_fingerprinting), "Fingerprinting");
 
+        tempMap.put(context.getString(R.string.pref_key_privacy_block_adguard), "adGuard");
+        tempMap.put(context.getString(R.string.pref_key_privacy_block_easylist), "easyList");
+        tempMap.put(context.getString(R.string.pref_key_privacy_block_easyprivacy), "easyPrivacy");
+        tempMap.put(context.getString(R.string.pref_key_privacy_block_fanboy_annoyance), "fanBoyAnnoyance");
+        tempMap.put(context.getString(R.string.pref_key_privacy_block_fanboy_social), "fanBoySocial");
+
         // This is a "fake" category - webfont handling is independent of the blocklists
         tempMap.put(context.getString(R.string.pref_key_performance_block_webfonts), WEBFONTS);
 
         return Collections.unmodifiableMap(tempMap);
     }
 
-    private final Map<String, Trie> categories;
-    private final Set<String> enabledCategories = new HashSet<>();
+    /**
+     * Lazily loads a segment, i.e. a CategoryTrie containing a group of categories.
+     */
+    /* package-private */ interface SegmentLoader {
+        CategoryTrie load();
+    }
+
+    /**
+     * A loaded CategoryTrie. Its masks only cover its own categories, so they're translated into
+     * the matcher's (global) category bits.
+     */
+    private static final class Segment {
+        private final CategoryTrie trie;
+        private final int[] globalBits;
+        // All of globalBits.
+        private final int categoryMask;
+        // The loader that this segment came from, if it can be released (and loaded again).
+        @Nullable private final SegmentLoader loader;
+        // When the last of its categories was disabled, or -1 if any of them is enabled. Guarded
+        // by the matcher's lock.
+        private long disabledSince = -1;
+
+        private Segment(final CategoryTrie trie, final int[] globalBits, @Nullable final SegmentLoader loader) {
+            this.trie = trie;
+            this.globalBits = globalBits;
+            this.loader = loader;
+
+            int categoryMask = 0;
+            for (final int bit : globalBits) {
+                categoryMask |= bit;
+            }
+            this.categoryMask = categoryMask;
+        }
+
+        private int getMask(final String host) {
+            int localMask = trie.getMask(host);
+
+            int mask = 0;
+            while (localMask != 0) {
+                mask |= globalBits[Integer.numberOfTrailingZeros(localMask)];
+                localMask &= localMask - 1;
+            }
+            return mask;
+        }
+    }
+
+    /**
+     * All categories that can be enabled (sorted): a category's bit in enabledCategories, and in
+     * the cached masks, is 1 << (its index here).
+     */
+    private final String[] declaredCategories;
+
+    // Every segment holds a group of categories merged into one trie: each host is looked up once
+    // per segment, and yields the mask of all categories containing it. The array is replaced
+    // (never modified) when a segment is added.
+    private volatile Segment[] segments = new Segment[0];
+
+    // Segments that haven't been loaded yet, by category. Guarded by the matcher's lock.
+    private final Map<String, SegmentLoader> segmentLoaders = new HashMap<>();
+    // Loaders that are currently running. Guarded by the matcher's lock.
+    private final Set<SegmentLoader> pendingLoads = new HashSet<>();
+    private final Executor segmentExecutor;
+
+    /**
+     * Segments that were loaded on demand are released once all their categories have been
+     * disabled for this long (they're loaded again if needed).
+     */
+    /* package-private */ static final long SEGMENT_RELEASE_DELAY_MS = TimeUnit.MINUTES.toMillis(10);
+
+    // Segments are loaded, and released, on this thread. Loads are rare, and running them one
+    // at a time limits the amount of memory that is needed while loading.
+    private static ScheduledExecutorService backgroundExecutor;
+
+    // matches() is called from WebView's network threads, while categories are enabled/disabled on
+    // the main thread: the mask is only written while holding the matcher's lock.
+    private volatile int enabledCategories = 0;
 
     private final EntityList entityList;
-    // A cached list of previously matched URLs. This MUST be cleared whenever items are removed from enabledCategories.
-    private final HashSet<String> previouslyMatched = new HashSet<>();
-    // A cahced list of previously approved URLs. This MUST be cleared whenever items are added to enabledCategories.
-    private final HashSet<String> previouslyUnmatched = new HashSet<>();
+    /**
+     * Default memory budget for the host verdict cache.
+     */
+    /* package-private */ static final int DEFAULT_CACHE_BUDGET_BYTES = 256 * 1024;
 
-    private boolean blockWebfonts = true;
+    // Maps resource hosts to the mask of all categories (enabled or not) that contain them. The
+    // verdict only depends on the host, so this is shared by all URLs on that host (tracking URLs
+    // usually vary in their query string only). And since we store all categories, the cache
+    // remains valid when categories are enabled or disabled.
+    private final VerdictCache hostCategories;
 
-    public static UrlMatcher loadMatcher(final Context context, final int blockListFile, final int[] blockListOverrides, final int entityListFile) {
+    /**
+     * Suggested filter sizes for {@link #setPrefilter(int)}: ~1.5% and ~0.3% false positives per probe.
+     */
+    public static final int PREFILTER_BITS_PER_ENTRY_LOW_RAM = 8;
+    public static final int PREFILTER_BITS_PER_ENTRY_DEFAULT = 12;
+
+    // Optional: lets us reject most (non tracker) hosts without locking the cache or walking the trie.
+    @Nullable private volatile BloomFilter prefilter;
+    // Guarded by the matcher's lock.
+    private int prefilterBitsPerEntry = 0;
+
+    // Path rules: the webfont rules, plus any rules set for the lists' categories. Replaced (never
+    // modified) by setPathRules().
+    private volatile PathRules pathRules = buildPathRules(Collections.<PathRules.Rule>emptyList(), null);
+
+    // WEBFONT_RULES if webfonts are blocked.
+    private volatile int enabledRules = WEBFONT_RULES;
+
+    private final MatcherStats stats;
+
+    private static synchronized ScheduledExecutorService getBackgroundExecutor() {
+        if (backgroundExecutor == null) {
+            backgroundExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(@NonNull final Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "UrlMatcher");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return backgroundExecutor;
+    }
+
+    /**
+     * Where the data of blocklist images is kept. Tries are always queried in place, whatever the
+     * storage: lookups read primitives straight from the buffer.
+     */
+    public enum ImageStorage {
+        /**
+         * A byte[] on the Java heap.
+         */
+        HEAP,
+        /**
+         * A direct ByteBuffer: native memory that the garbage collector doesn't scan.
+         */
+        DIRECT,
+        /**
+         * Mapped from the APK: no copy at all, and the pages can be dropped (and reloaded) by the
+         * kernel under memory pressure. Falls back to DIRECT if the image is compressed in the APK.
+         */
+        MAPPED
+    }
+
+    /**
+     * Loads a matcher from precompiled blocklist images (see the buildBlocklists Gradle task),
+     * keeping the images on the heap.
+     */
+    public static UrlMatcher loadMatcher(final Context context, final int blocklistImageFile, final int... additionalImageFiles) {
+        return loadMatcher(context, ImageStorage.HEAP, blocklistImageFile, additionalImageFiles);
+    }
+
+    /**
+     * Loads a matcher from precompiled blocklist images (see the buildBlocklists Gradle task).
+     * Images are read with a single bulk read (or mapped), and then queried in place.
+     *
+     * @param additionalImageFiles Images that are only loaded once one of their categories is
+     *                             enabled (only their header is read here).
+     */
+    public static UrlMatcher loadMatcher(final Context context, final ImageStorage storage,
+                                         final int blocklistImageFile, final int... additionalImageFiles) {
         final Map<String, String> categoryPrefMap = loadDefaultPrefMap(context);
 
-        final Map<String, Trie> categoryMap = new HashMap<>(5);
-        try (final JsonReader jsonReader =
-                     new JsonReader(new InputStreamReader(context.getResources().openRawResource(blockListFile), StandardCharsets.UTF_8))) {
-            BlocklistProcessor.loadCategoryMap(jsonReader, categoryMap, BlocklistProcessor.ListType.BASE_LIST);
+        final BlocklistImage image = readImage(context, storage, blocklistImageFile);
+
+        final Map<String, SegmentLoader> segmentLoaders = new HashMap<>();
+        for (final int imageFile : additionalImageFiles) {
+            final SegmentLoader loader = new SegmentLoader() {
+                @Override
+                public CategoryTrie load() {
+                    return readImage(context, storage, imageFile).categories;
+                }
+            };
+
+            try (final InputStream stream = context.getResources().openRawResource(imageFile)) {
+                for (final String category : BlocklistImage.readCategoryNames(stream)) {
+                    segmentLoaders.put(category, loader);
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to read blocklist image");
+            }
+        }
+
+        return new UrlMatcher(context, categoryPrefMap, image.categories, segmentLoaders,
+                new EntityList(image.entityList), DEFAULT_CACHE_BUDGET_BYTES);
+    }
+
+    /* package-private */ static BlocklistImage readImage(final Context context, final ImageStorage storage, final int imageFile) {
+        if (storage == ImageStorage.MAPPED) {
+            final ByteBuffer mapped = mapImage(context, imageFile);
+            if (mapped != null) {
+                return BlocklistImage.read(mapped);
+            }
+        }
+
+        try (final InputStream stream = context.getResources().openRawResource(imageFile)) {
+            final ByteBuffer buffer = storage == ImageStorage.HEAP
+                    ? BlocklistImage.readFully(stream, stream.available())
+                    : BlocklistImage.readFullyDirect(stream, stream.available());
+
+            return BlocklistImage.read(buffer);
         } catch (IOException e) {
-            throw new IllegalStateException("Unable to parse blacklist");
+            throw new IllegalStateException("Unable to read blocklist image");
+        }
+    }
+
+    /**
+     * @return The image mapped from the APK, or null if that isn't possible (raw resources can
+     * only be mapped if they are stored uncompressed, see aaptOptions in build.gradle).
+     */
+    @Nullable
+    private static ByteBuffer mapImage(final Context context, final int imageFile) {
+        final AssetFileDescriptor descriptor;
+        try {
+            descriptor = context.getResources().openRawResourceFd(imageFile);
+        } catch (Resources.NotFoundException e) {
+            return null;
+        }
+
+        if (descriptor == null) {
+            return null;
+        }
+
+        // The mapping remains valid once the file has been closed
+        try (final AssetFileDescriptor file = descriptor;
+             final FileInputStream stream = file.createInputStream()) {
+            return stream.getChannel().map(FileChannel.MapMode.READ_ONLY, file.getStartOffset(), file.getLength());
+        } catch (IOException e) {
+            Log.w(LOGTAG, "Unable to map blocklist image", e);
+            return null;
+        }
+    }
+
+    /**
+     * Batches are only split across threads if every thread gets at least this many resources:
+     * handing work to another thread isn't free either.
+     */
+    /* package-private */ static final int MIN_BATCH_CHUNK_SIZE = 512;
+
+    /**
+     * Loads a matcher from the JSON blocklists. Only the categories that are enabled in the
+     * preferences are parsed here: the others are parsed in the background once they are enabled.
+     *
+     * The entity list is parsed on another thread while the blocklists are parsed: they're
+     * separate files, so neither has to be read twice.
+     */
+    public static UrlMatcher loadMatcher(final Context context, final int blockListFile, final int[] blockListOverrides, final int entityListFile) {
+        final ListSource[] overrides = new ListSource[blockListOverrides != null ? blockListOverrides.length : 0];
+        for (int i = 0; i < overrides.length; i++) {
+            overrides[i] = ListSource.fromResource(context, blockListOverrides[i]);
+        }
+
+        return loadMatcher(context, ListSource.fromResource(context, blockListFile), overrides, ListSource.fromResource(context, entityListFile));
+    }
+
+    /**
+     * Loads a matcher from JSON lists in app storage (e.g. lists that have been updated after
+     * the app was installed), see {@link #loadMatcher(Context, int, int[], int)}.
+     *
+     * Unlike bundled lists, files can be replaced (or corrupted) later on: all categories are
+     * therefore parsed and validated here, and the files are never read again.
+     *
+     * @throws IllegalStateException If any list can't be read, or doesn't contain all categories.
+     */
+    @WorkerThread
+    public static UrlMatcher loadMatcher(final Context context, @NonNull final File blockListFile, @NonNull final File[] blockListOverrides, @NonNull final File entityListFile) {
+        final ListSource[] overrides = new ListSource[blockListOverrides.length];
+        for (int i = 0; i < overrides.length; i++) {
+            overrides[i] = ListSource.fromFile(blockListOverrides[i]);
+        }
+
+        return loadMatcher(context, ListSource.fromFile(blockListFile), overrides, ListSource.fromFile(entityListFile));
+    }
+
+    /**
+     * A JSON list: either bundled with the app, or a file in app storage.
+     */
+    private static abstract class ListSource {
+        abstract InputStream open() throws IOException;
+
+        /**
+         * @return Whether the list never changes, i.e. whether it can be read again later.
+         */
+        abstract boolean isImmutable();
+
+        JsonReader openReader() throws IOException {
+            return new JsonReader(new InputStreamReader(open(), StandardCharsets.UTF_8));
         }
 
-        if (blockListOverrides != null) {
-            for (int blockListOverride : blockListOverrides) {
-                try (final JsonReader jsonReader =
-                             new JsonReader(new InputStreamReader(context.getResources().openRawResource(blockListOverride), StandardCharsets.UTF_8))) {
-                    BlocklistProcessor.loadCategoryMap(jsonReader, categoryMap, BlocklistProcessor.ListType.OVERRIDE_LIST);
-                } catch (IOException e) {
-                    throw new IllegalStateException("Unable to parse override blacklist");
+        static ListSource fromResource(final Context context, final int resource) {
+            return new ListSource() {
+                @Override
+                InputStream open() {
+                    return context.getResources().openRawResource(resource);
                 }
+
+                @Override
+                boolean isImmutable() {
+                    return true;
+                }
+            };
+        }
+
+        static ListSource fromFile(final File file) {
+            return new ListSource() {
+                @Override
+                InputStream open() throws IOException {
+                    return new BufferedInputStream(new FileInputStream(file));
+                }
+
+                @Override
+                boolean isImmutable() {
+                    return false;
+                }
+            };
+        }
+    }
+
+    private static UrlMatcher loadMatcher(final Context context, final ListSource blockListFile, final ListSource[] blockListOverrides, final ListSource entityListFile) {
+        final Map<String, String> categoryPrefMap = loadDefaultPrefMap(context);
+        final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+
+        // Categories are only loaded lazily from lists that will still be the same then
+        boolean lazy = blockListFile.isImmutable();
+        for (final ListSource blockListOverride : blockListOverrides) {
+            lazy &= blockListOverride.isImmutable();
+        }
+
+        final Set<String> parsedCategories = new HashSet<>();
+        final Map<String, SegmentLoader> segmentLoaders = new HashMap<>();
+
+        for (final Map.Entry<String, String> entry : categoryPrefMap.entrySet()) {
+            final String category = entry.getValue();
+
+            if (WEBFONTS.equals(category) || ADDITIONAL_CATEGORIES.contains(category)) {
+                // Not part of the JSON blocklists
+                continue;
+            }
+
+            if (!lazy || isEnabled(context, prefs, entry.getKey(), category)) {
+                parsedCategories.add(category);
+            } else {
+                segmentLoaders.put(category, new SegmentLoader() {
+                    @Override
+                    public CategoryTrie load() {
+                        return parseBlocklists(blockListFile, blockListOverrides, Collections.singleton(category));
+                    }
+                });
             }
         }
 
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        final CategoryTrie categories;
         final EntityList entityList;
-        try (final JsonReader jsonReader = new JsonReader(new InputStreamReader(context.getResources().openRawResource(entityListFile), StandardCharsets.UTF_8))) {
-            entityList = EntityListProcessor.getEntityMapFromJSON(jsonReader);
+        try {
+            final Future<EntityList> entityListResult = executor.submit(new Callable<EntityList>() {
+                @Override
+                public EntityList call() {
+                    return parseEntityList(entityListFile);
+                }
+            });
+
+            categories = parseBlocklists(blockListFile, blockListOverrides, parsedCategories);
+            entityList = getResult(entityListResult);
+        } finally {
+            executor.shutdown();
+        }
+
+        return new UrlMatcher(context, categoryPrefMap, categories, segmentLoaders, entityList, DEFAULT_CACHE_BUDGET_BYTES);
+    }
+
+    private static <T> T getResult(final Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while parsing blocklists");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Unable to parse blocklists", e.getCause());
+        }
+    }
+
+    private static EntityList parseEntityList(final ListSource entityListFile) {
+        try (final JsonReader jsonReader = entityListFile.openReader()) {
+            return EntityListProcessor.getEntityMapFromJSON(jsonReader);
         } catch (IOException e) {
             throw new IllegalStateException("Unable to parse entity list");
         }
+    }
+
+    private static CategoryTrie parseBlocklists(final ListSource blockListFile, final ListSource[] blockListOverrides, final Set<String> categories) {
+        return BlocklistProcessor.buildCategoryTrie(parseCategories(blockListFile, blockListOverrides, categories));
+    }
+
+    private static Map<String, Trie.Builder> parseCategories(final ListSource blockListFile, final ListSource[] blockListOverrides, final Set<String> categories) {
+        final Map<String, Trie.Builder> categoryMap = new HashMap<>(5);
+        try (final JsonReader jsonReader = blockListFile.openReader()) {
+            BlocklistProcessor.loadCategoryMap(jsonReader, categoryMap, BlocklistProcessor.ListType.BASE_LIST, categories);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to parse blacklist");
+        }
+
+        for (final ListSource blockListOverride : blockListOverrides) {
+            try (final JsonReader jsonReader = blockListOverride.openReader()) {
+                BlocklistProcessor.loadCategoryMap(jsonReader, categoryMap, BlocklistProcessor.ListType.OVERRIDE_LIST, categories);
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to parse override blacklist");
+            }
+        }
+
+        // A list that is missing a category (or has an empty one) would silently disable it
+        for (final String category : categories) {
+            final Trie.Builder builder = categoryMap.get(category);
+            if (builder == null || builder.size() == 0) {
+                throw new IllegalStateException("Blacklist doesn't contain category: " + category);
+            }
+        }
 
-        return new UrlMatcher(context, categoryPrefMap, categoryMap, entityList);
+        return categoryMap;
     }
 
     /* package-private */ UrlMatcher(final Context context,
                                      @NonNull final Map<String, String> categoryPrefMap,
-                                     @NonNull final Map<String, Trie> categoryMap,
+                                     @NonNull final CategoryTrie categories,
                                      @Nullable final EntityList entityList) {
+        this(context, categoryPrefMap, categories, Collections.<String, SegmentLoader>emptyMap(), entityList, DEFAULT_CACHE_BUDGET_BYTES);
+    }
+
+    /* package-private */ UrlMatcher(final Context context,
+                                     @NonNull final Map<String, String> categoryPrefMap,
+                                     @NonNull final CategoryTrie categories,
+                                     @NonNull final Map<String, SegmentLoader> segmentLoaders,
+                                     @Nullable final EntityList entityList,
+                                     final int cacheBudgetBytes) {
+        this(context, categoryPrefMap, categories, segmentLoaders, entityList, cacheBudgetBytes, getBackgroundExecutor());
+    }
+
+    /**
+     * @param segmentLoaders Loaders for segments that should only be loaded once one of their
+     *                       categories is enabled, by category.
+     * @param segmentExecutor The executor that segmentLoaders are run on.
+     */
+    /* package-private */ UrlMatcher(final Context context,
+                                     @NonNull final Map<String, String> categoryPrefMap,
+                                     @NonNull final CategoryTrie categories,
+                                     @NonNull final Map<String, SegmentLoader> segmentLoaders,
+                                     @Nullable final EntityList entityList,
+                                     final int cacheBudgetBytes,
+                                     @NonNull final Executor segmentExecutor) {
         this.categoryPrefMap = categoryPrefMap;
+        this.segmentExecutor = segmentExecutor;
+        this.declaredCategories = declareCategories(categoryPrefMap);
+        this.stats = new MatcherStats(declaredCategories);
+        this.hostCategories = new VerdictCache(cacheBudgetBytes);
         this.entityList = entityList;
-        this.categories = categoryMap;
+        this.segmentLoaders.putAll(segmentLoaders);
 
-        // Ensure all categories have been declared, and enable by default (loadPrefs() will then
-        // enabled/disable categories that have actually been configured).
-        for (final Map.Entry<String, Trie> entry: categoryMap.entrySet()) {
-            if (!categoryPrefMap.values().contains(entry.getKey())) {
-                throw new IllegalArgumentException("categoryMap contains undeclared category: " + entry.getKey());
-            }
+        addSegment(categories, null);
 
-            // Failsafe: enable all categories (we load preferences in the next step anyway)
-            enabledCategories.add(entry.getKey());
+        // Failsafe: enable all loaded categories (we load preferences in the next step anyway)
+        for (final String category : categories.getNames()) {
+            enabledCategories |= getCategoryBit(category);
         }
 
         loadPrefs(context);
@@ -138,25 +586,188 @@ public class UrlMatcher implements  SharedPreferences.OnSharedPreferenceChangeLi
         }
     }
 
+    private static String[] declareCategories(final Map<String, String> categoryPrefMap) {
+        final Set<String> categories = new HashSet<>(categoryPrefMap.values());
+        categories.remove(WEBFONTS);
+
+        if (categories.size() > CategoryTrie.MAX_CATEGORIES) {
+            throw new IllegalArgumentException("Too many categories: " + categories.size());
+        }
+
+        final String[] declared = categories.toArray(new String[0]);
+        Arrays.sort(declared);
+        return declared;
+    }
+
+    private int getCategoryBit(final String category) {
+        final int index = Arrays.binarySearch(declaredCategories, category);
+        return index < 0 ? 0 : 1 << index;
+    }
+
+    private synchronized void addSegment(final CategoryTrie categories, @Nullable final SegmentLoader loader) {
+        final List<String> names = categories.getNames();
+        final int[] globalBits = new int[names.size()];
+
+        // Ensure all categories have been declared
+        for (int i = 0; i < globalBits.length; i++) {
+            globalBits[i] = getCategoryBit(names.get(i));
+
+            if (globalBits[i] == 0) {
+                throw new IllegalArgumentException("categoryMap contains undeclared category: " + names.get(i));
+            }
+
+            segmentLoaders.remove(names.get(i));
+        }
+
+        final Segment[] newSegments = Arrays.copyOf(segments, segments.length + 1);
+        newSegments[segments.length] = new Segment(categories, globalBits, loader);
+        segments = newSegments;
+
+        onSegmentsChanged();
+    }
+
+    private synchronized void onSegmentsChanged() {
+        if (prefilterBitsPerEntry != 0) {
+            // The current filter might reject hosts of the new segments: until the new filter has
+            // been built, all hosts are looked up in the segments.
+            prefilter = null;
+
+            segmentExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    updatePrefilter();
+                }
+            });
+        }
+
+        // Cached masks contain the categories of the previous segments
+        hostCategories.clear();
+    }
+
+    /**
+     * Loads a segment on the segment executor (unless it's already being loaded). Until it has
+     * been added, its categories simply don't match anything: requests never wait for a load.
+     */
+    private synchronized void loadSegment(final SegmentLoader loader) {
+        if (!pendingLoads.add(loader)) {
+            return;
+        }
+
+        segmentExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                CategoryTrie categories = null;
+                try {
+                    categories = loader.load();
+                } catch (RuntimeException | OutOfMemoryError e) {
+                    // The loader stays registered, so we can retry when a category is enabled again
+                    Log.w(LOGTAG, "Unable to load blocklist segment", e);
+                }
+
+                onSegmentLoaded(loader, categories);
+            }
+        });
+    }
+
+    private synchronized void onSegmentLoaded(final SegmentLoader loader, @Nullable final CategoryTrie categories) {
+        pendingLoads.remove(loader);
+
+        if (categories == null) {
+            return;
+        }
+
+        // A loader might not return all the categories it was registered for (if the lists don't
+        // contain them): we don't want to run it again in that case.
+        final Iterator<SegmentLoader> loaders = segmentLoaders.values().iterator();
+        while (loaders.hasNext()) {
+            if (loaders.next() == loader) {
+                loaders.remove();
+            }
+        }
+
+        addSegment(categories, loader);
+
+        // Its categories might have been disabled again while loading
+        updateUnusedSegments();
+    }
+
+    /**
+     * Records when segments became unused, and schedules their release.
+     */
+    private synchronized void updateUnusedSegments() {
+        final long now = SystemClock.elapsedRealtime();
+
+        for (final Segment segment : segments) {
+            if (segment.loader == null) {
+                continue;
+            }
+
+            if ((segment.categoryMask & enabledCategories) != 0) {
+                segment.disabledSince = -1;
+            } else if (segment.disabledSince < 0) {
+                segment.disabledSince = now;
+
+                getBackgroundExecutor().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        releaseUnusedSegments(SystemClock.elapsedRealtime());
+                    }
+                }, SEGMENT_RELEASE_DELAY_MS, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Releases all segments that have been unused for at least {@link #SEGMENT_RELEASE_DELAY_MS},
+     * their loaders are registered again.
+     */
+    @VisibleForTesting
+    /* package-private */ synchronized void releaseUnusedSegments(final long now) {
+        final List<Segment> remaining = new ArrayList<>(segments.length);
+
+        for (final Segment segment : segments) {
+            if (segment.loader != null &&
+                    segment.disabledSince >= 0 &&
+                    now - segment.disabledSince >= SEGMENT_RELEASE_DELAY_MS) {
+                for (final String category : segment.trie.getNames()) {
+                    segmentLoaders.put(category, segment.loader);
+                }
+            } else {
+                remaining.add(segment);
+            }
+        }
+
+        if (remaining.size() == segments.length) {
+            return;
+        }
+
+        segments = remaining.toArray(new Segment[0]);
+        onSegmentsChanged();
+    }
+
     private void loadPrefs(final Context context) {
         final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
 
         for (final Map.Entry<String, String> entry : categoryPrefMap.entrySet()) {
-            final boolean prefValue;
-            if (entry.getKey().equals(context.getString(R.string.pref_key_performance_block_webfonts))) {
-                prefValue = Settings.getInstance(context).shouldBlockWebFonts();
-            } else if (entry.getKey().equals(context.getString(R.string.pref_key_privacy_block_social))) {
-                prefValue = Settings.getInstance(context).shouldBlockSocialTrackers();
-            } else if (entry.getKey().equals(context.getString(R.string.pref_key_privacy_block_ads))) {
-                prefValue = Settings.getInstance(context).shouldBlockAdTrackers();
-            } else if (entry.getKey().equals(context.getString(R.string.pref_key_privacy_block_analytics))) {
-                prefValue = Settings.getInstance(context).shouldBlockAnalyticTrackers();
-            } else if (entry.getKey().equals(context.getString(R.string.pref_key_privacy_block_other))) {
-                prefValue = Settings.getInstance(context).shouldBlockOtherTrackers();
-            } else {
-                prefValue = prefs.getBoolean(entry.getKey(), true);
-            }
-            setCategoryEnabled(entry.getValue(), prefValue);
+            setCategoryEnabled(entry.getValue(), isEnabled(context, prefs, entry.getKey(), entry.getValue()));
+        }
+    }
+
+    private static boolean isEnabled(final Context context, final SharedPreferences prefs, final String prefKey, final String category) {
+        if (prefKey.equals(context.getString(R.string.pref_key_performance_block_webfonts))) {
+            return Settings.getInstance(context).shouldBlockWebFonts();
+        } else if (prefKey.equals(context.getString(R.string.pref_key_privacy_block_social))) {
+            return Settings.getInstance(context).shouldBlockSocialTrackers();
+        } else if (prefKey.equals(context.getString(R.string.pref_key_privacy_block_ads))) {
+            return Settings.getInstance(context).shouldBlockAdTrackers();
+        } else if (prefKey.equals(context.getString(R.string.pref_key_privacy_block_analytics))) {
+            return Settings.getInstance(context).shouldBlockAnalyticTrackers();
+        } else if (prefKey.equals(context.getString(R.string.pref_key_privacy_block_other))) {
+            return Settings.getInstance(context).shouldBlockOtherTrackers();
+        } else if (ADDITIONAL_CATEGORIES.contains(category)) {
+            return prefs.getBoolean(prefKey, false);
+        } else {
+            return prefs.getBoolean(prefKey, true);
         }
     }
 
@@ -165,9 +776,13 @@ public class UrlMatcher implements  SharedPreferences.OnSharedPreferenceChangeLi
         map.put("default", "default");
         categoryPrefMap = Collections.unmodifiableMap(map);
 
-        categories = new HashMap<>();
+        declaredCategories = new String[] { "default" };
+        stats = new MatcherStats(declaredCategories);
+        hostCategories = new VerdictCache(DEFAULT_CACHE_BUDGET_BYTES);
+        segmentExecutor = getBackgroundExecutor();
 
-        buildMatcher(patterns);
+        addSegment(buildMatcher(patterns), null);
+        enabledCategories = getCategoryBit("default");
 
         entityList = null;
     }
@@ -176,107 +791,373 @@ public class UrlMatcher implements  SharedPreferences.OnSharedPreferenceChangeLi
      * Only used for testing - uses a list of urls to populate a "default" category.
      * @param patterns
      */
-    private void buildMatcher(String[] patterns) {
-        final Trie defaultCategory;
-        if (!categories.containsKey("default")) {
-            defaultCategory = Trie.createRootNode();
-            categories.put("default", defaultCategory);
-        } else {
-            defaultCategory = categories.get("default");
-        }
+    private static CategoryTrie buildMatcher(String[] patterns) {
+        final Trie.Builder defaultCategory = new Trie.Builder();
 
         for (final String pattern : patterns) {
             defaultCategory.put(FocusString.create(pattern).reverse());
         }
 
-        enabledCategories.add("default");
+        return CategoryTrie.build(Collections.singletonMap("default", defaultCategory));
+    }
+
+    /**
+     * Sets rules that block resources by their path or query, in addition to their host: a
+     * resource that matches a rule is treated as if its host was in the rule's category. I.e. the
+     * rule only applies while its category is enabled, and the entity list still applies.
+     *
+     * @throws IllegalArgumentException If a rule refers to a category that this matcher doesn't know.
+     */
+    public void setPathRules(@NonNull final List<PathRules.Rule> rules) {
+        pathRules = buildPathRules(rules, this);
+    }
+
+    private static PathRules buildPathRules(final List<PathRules.Rule> rules, @Nullable final UrlMatcher matcher) {
+        final PathRules.Builder builder = new PathRules.Builder();
+
+        for (final String extension : WEBFONT_EXTENSIONS) {
+            builder.add(PathRules.Type.SUFFIX, extension, WEBFONT_RULES);
+        }
+
+        for (final PathRules.Rule rule : rules) {
+            final int bit = matcher != null ? matcher.getCategoryBit(rule.category) : 0;
+            if (bit == 0) {
+                throw new IllegalArgumentException("Path rule for unknown category: " + rule.category);
+            }
+            builder.add(rule.type, rule.literal, bit);
+        }
+
+        return builder.build();
+    }
+
+    /**
+     * @return What this matcher has blocked so far, and how long matches() took.
+     */
+    public MatcherStats.Snapshot getStats() {
+        return stats.snapshot(hostCategories.getStats(), getPrefilterStats());
+    }
+
+    /**
+     * @return Hit/miss/eviction counts for the cache of host verdicts.
+     */
+    public VerdictCache.Stats getHostCacheStats() {
+        return hostCategories.getStats();
+    }
+
+    /**
+     * Builds a Bloom filter over all blocklisted domains, which is then checked before the
+     * category trie.
+     *
+     * @param bitsPerEntry Size of the filter, which determines its false positive rate - or 0 to
+     *                     remove the filter.
+     */
+    @WorkerThread
+    public void setPrefilter(final int bitsPerEntry) {
+        synchronized (this) {
+            prefilterBitsPerEntry = bitsPerEntry;
+            prefilter = null;
+        }
+
+        updatePrefilter();
     }
 
+    /**
+     * Builds the prefilter for the current segments. The filter is built without holding the
+     * matcher's lock (which would block enabling categories on the main thread), and is only
+     * published if neither the segments nor the filter size have changed meanwhile: whoever
+     * changed them builds the next filter.
+     */
+    @WorkerThread
+    private void updatePrefilter() {
+        final Segment[] segments;
+        final int bitsPerEntry;
+        synchronized (this) {
+            segments = this.segments;
+            bitsPerEntry = prefilterBitsPerEntry;
+        }
+
+        if (bitsPerEntry == 0) {
+            return;
+        }
+
+        final BloomFilter filter = createPrefilter(segments, bitsPerEntry);
+
+        synchronized (this) {
+            if (segments == this.segments && bitsPerEntry == prefilterBitsPerEntry) {
+                prefilter = filter;
+            }
+        }
+    }
+
+    private static BloomFilter createPrefilter(final Segment[] segments, final int bitsPerEntry) {
+        final Trie[] tries = new Trie[segments.length];
+        for (int i = 0; i < segments.length; i++) {
+            tries[i] = segments[i].trie.getTrie();
+        }
+
+        return BloomFilter.create(tries, bitsPerEntry);
+    }
+
+    /**
+     * @return Size and false positive statistics of the prefilter, or null if there is none.
+     */
+    @Nullable
+    public BloomFilter.Stats getPrefilterStats() {
+        final BloomFilter prefilter = this.prefilter;
+        return prefilter == null ? null : prefilter.getStats();
+    }
+
+    /**
+     * @return All categories that are currently loaded (categories that are being loaded in the
+     * background aren't included yet).
+     */
     public Set<String> getCategories() {
-        return categories.keySet();
+        final Set<String> categories = new HashSet<>();
+        for (final Segment segment : segments) {
+            categories.addAll(segment.trie.getNames());
+        }
+        return categories;
     }
 
-    public void setCategoryEnabled(final String category, final boolean enabled) {
+    public synchronized void setCategoryEnabled(final String category, final boolean enabled) {
         if (WEBFONTS.equals(category)) {
-            blockWebfonts = enabled;
+            enabledRules = enabled ? WEBFONT_RULES : 0;
             return;
         }
 
-        if (!getCategories().contains(category)) {
+        final int bit = getCategoryBit(category);
+        if (bit == 0) {
             throw new IllegalArgumentException("Can't enable/disable inexistant category");
         }
 
         if (enabled) {
-            if (enabledCategories.contains(category)) {
-                // Early return - nothing to do if the category is already enabled
-            } else {
-                enabledCategories.add(category);
-                previouslyUnmatched.clear();
+            final SegmentLoader loader = segmentLoaders.get(category);
+            if (loader != null) {
+                loadSegment(loader);
             }
+        }
+
+        // Cached verdicts contain all categories, they don't need to be invalidated here.
+        if (enabled) {
+            enabledCategories |= bit;
         } else {
-            if (!enabledCategories.contains(category)) {
-                // Early return - nothing to do if the category is already disabled
-            } else {
-                enabledCategories.remove(category);
-                previouslyMatched.clear();
-            }
+            enabledCategories &= ~bit;
+        }
+
+        updateUnusedSegments();
+    }
+
+    /**
+     * @return The mask of all categories containing the given host, regardless of whether they
+     * are enabled.
+     */
+    private int getCategoryMask(final String host) {
+        final int cachedMask = hostCategories.get(host);
+        if (cachedMask != VerdictCache.MISS) {
+            return cachedMask;
+        }
+
+        // Segments are replaced before the cache is cleared: if the cache hasn't been cleared
+        // since, the segments we read are current (otherwise the mask is only returned).
+        final int epoch = hostCategories.getEpoch();
+
+        int mask = 0;
+        for (final Segment segment : segments) {
+            mask |= segment.getMask(host);
+        }
+
+        hostCategories.put(host, mask, epoch);
+        return mask;
+    }
 
+    /**
+     * @return The mask of all categories containing the given host (see
+     * {@link #getCategoryMask(String)}), using the prefilter to skip hosts that can't be in any.
+     */
+    private int getResourceMask(final String resourceHost) {
+        final BloomFilter prefilter = this.prefilter;
+        if (prefilter != null && !prefilter.mightContainDomainOf(resourceHost)) {
+            return 0;
+        }
+
+        final int mask = getCategoryMask(resourceHost);
+
+        if (mask == 0 && prefilter != null) {
+            prefilter.recordFalsePositive();
         }
+
+        return mask;
     }
 
+    /**
+     * Resolves everything the matcher needs to know about a page. The result should be reused
+     * for all of the page's resources (and is only valid for this matcher).
+     */
+    public PageContext createPageContext(@NonNull final String pageURL) {
+        return createPageContext(pageURL, Uri.parse(pageURL));
+    }
+
+    private PageContext createPageContext(final String pageURL, final Uri pageURI) {
+        final String pageHost = pageURI.getHost();
+
+        final Trie[] whitelists = entityList != null && EntityList.canWhiteList(pageURI)
+                ? entityList.getWhiteLists(pageHost)
+                : null;
+
+        return new PageContext(this, pageURL, pageHost, whitelists);
+    }
+
+    /**
+     * Convenience version of {@link #matches(Uri, PageContext)}, which resolves the page on
+     * every call.
+     */
     public boolean matches(final Uri resourceURI, final Uri pageURI) {
-        final String path = resourceURI.getPath();
+        return matches(resourceURI, createPageContext(pageURI.toString(), pageURI));
+    }
 
-        if (path == null) {
-            return false;
+    public boolean matches(final Uri resourceURI, final PageContext page) {
+        return matches(resourceURI, page, null);
+    }
+
+    /**
+     * Checks all resources of a page at once: convenience version of
+     * {@link #matchesAll(PageContext, List, ExecutorService)}, running on the calling thread.
+     */
+    public boolean[] matchesAll(@NonNull final String pageURL, @NonNull final List<Uri> resourceURIs) {
+        return matchesAll(createPageContext(pageURL), resourceURIs, null);
+    }
+
+    /**
+     * Checks a batch of resources that are all loaded by the same page (e.g. everything a page
+     * preloads, or all entries of a HAR file). This gives the same verdicts as calling
+     * {@link #matches(Uri, PageContext)} for each resource, but every host is only looked up
+     * once per batch: pages typically load many resources from the same few hosts.
+     *
+     * @param executor If non-null, large batches are split into chunks that are checked
+     *                 concurrently on this executor (and the calling thread).
+     * @return Whether each resource should be blocked: result[i] is the verdict for
+     * resourceURIs.get(i).
+     */
+    public boolean[] matchesAll(@NonNull final PageContext page, @NonNull final List<Uri> resourceURIs,
+                                @Nullable final ExecutorService executor) {
+        final boolean[] result = new boolean[resourceURIs.size()];
+
+        final int chunks = executor != null
+                ? Math.min(Runtime.getRuntime().availableProcessors(), result.length / MIN_BATCH_CHUNK_SIZE)
+                : 1;
+
+        if (chunks <= 1) {
+            matchesAll(page, resourceURIs, result, 0, result.length);
+            return result;
         }
 
-        // We need to handle webfonts first: if they are blocked, then whitelists don't matter.
-        // If they aren't blocked we still need to check domain blacklists below.
-        if (blockWebfonts) {
-            for (final String extension : WEBFONT_EXTENSIONS) {
-                if (path.endsWith(extension)) {
-                    return true;
+        final int chunkSize = (result.length + chunks - 1) / chunks;
+        final List<Future<?>> futures = new ArrayList<>(chunks - 1);
+
+        // The first chunk is checked on this thread, while the others run on the executor
+        for (int start = chunkSize; start < result.length; start += chunkSize) {
+            final int chunkStart = start;
+            final int chunkEnd = Math.min(start + chunkSize, result.length);
+
+            futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    matchesAll(page, resourceURIs, result, chunkStart, chunkEnd);
+                }
+            }));
+        }
+
+        matchesAll(page, resourceURIs, result, 0, chunkSize);
+
+        // Chunks write to separate parts of result: waiting for them makes all writes visible here
+        for (final Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while matching batch");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
                 }
+                throw new IllegalStateException("Unable to match batch", e.getCause());
             }
         }
 
-        final String resourceURLString = resourceURI.toString();
+        return result;
+    }
 
-        // Cached whitelisted items can be permitted now (but blacklisted needs to wait for the override / entity list)
-        if (previouslyUnmatched.contains(resourceURLString)) {
-            return false;
+    private void matchesAll(final PageContext page, final List<Uri> resourceURIs, final boolean[] result,
+                            final int start, final int end) {
+        // Category masks of the hosts in this chunk, this is only used by a single thread.
+        final Map<String, Integer> batchMasks = new HashMap<>();
+
+        for (int i = start; i < end; i++) {
+            result[i] = matches(resourceURIs.get(i), page, batchMasks);
         }
+    }
 
-        if (entityList != null &&
-                entityList.isWhiteListed(pageURI, resourceURI)) {
-            // We must not cache entityList items (and/or if we did, we'd have to clear the cache
-            // on every single location change)
+    private boolean matches(final Uri resourceURI, final PageContext page, @Nullable final Map<String, Integer> batchMasks) {
+        final long start = System.nanoTime();
+        final boolean matches = matchesInternal(resourceURI, page, batchMasks);
+        stats.recordLatency(System.nanoTime() - start);
+
+        return matches;
+    }
+
+    private boolean matchesInternal(final Uri resourceURI, final PageContext page, @Nullable final Map<String, Integer> batchMasks) {
+        final String path = resourceURI.getPath();
+
+        if (path == null) {
             return false;
         }
 
+        final PathRules pathRules = this.pathRules;
+        final int ruleMask = pathRules.match(path, pathRules.needsQuery() ? resourceURI.getEncodedQuery() : null);
+
+        // We need to handle webfonts first: if they are blocked, then whitelists don't matter.
+        // If they aren't blocked we still need to check domain blacklists below.
+        if ((ruleMask & enabledRules) != 0) {
+            stats.recordWebfontBlock();
+            return true;
+        }
+
         final String resourceHost = resourceURI.getHost();
-        final String pageHost = pageURI.getHost();
 
-        if (pageHost != null && pageHost.equals(resourceHost)) {
+        if (resourceHost == null) {
             return false;
         }
 
-        if (previouslyMatched.contains(resourceURLString)) {
-            return true;
+        final int mask;
+        final Integer batchMask = batchMasks != null ? batchMasks.get(resourceHost) : null;
+        if (batchMask != null) {
+            mask = batchMask;
+        } else {
+            mask = getResourceMask(resourceHost);
+
+            if (batchMasks != null) {
+                batchMasks.put(resourceHost, mask);
+            }
         }
 
-        final FocusString revhost = FocusString.create(resourceHost).reverse();
+        final int enabledMask = (mask | (ruleMask & ~WEBFONT_RULES)) & enabledCategories;
+        if (enabledMask == 0) {
+            return false;
+        }
 
-        for (final Map.Entry<String, Trie> category : categories.entrySet()) {
-            if (enabledCategories.contains(category.getKey()) &&
-                    category.getValue().findNode(revhost) != null) {
-                previouslyMatched.add(resourceURLString);
-                return true;
-            }
+        // The entity list depends on the page too, hence it can't be part of the cached verdict.
+        if (page.whitelists.length > 0 &&
+                EntityList.canBeWhiteListed(resourceURI) &&
+                page.isWhiteListed(resourceHost)) {
+            stats.recordWhitelistSave();
+            return false;
+        }
+
+        if (page.host != null && page.host.equals(resourceHost)) {
+            return false;
         }
 
-        previouslyUnmatched.add(resourceURLString);
-        return false;
+        stats.recordBlock(enabledMask);
+        return true;
     }
 }
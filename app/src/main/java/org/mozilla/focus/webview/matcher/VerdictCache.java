@@ -0,0 +1,194 @@
+/* -*- Mode: Java; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package org.mozilla.focus.webview.matcher;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A size-bounded cache of String to int, safe for use from WebView's (multiple) network threads.
+ *
+ * The cache is split into stripes, each guarded by its own lock, so that parallel lookups rarely
+ * contend. Each stripe is an LRU map with its own share of the overall byte budget: the size of
+ * an entry is estimated from its key length, and the least recently used entries are evicted once
+ * a stripe exceeds its budget.
+ *
+ * Values that were computed from data that has changed since can be dropped with the epoch: read
+ * {@link #getEpoch()} before computing a value, and pass it to {@link #put(String, int, int)},
+ * which ignores the value if the cache has been cleared in the meantime.
+ */
+public class VerdictCache {
+    /**
+     * Returned by {@link #get(String)} if the key isn't cached. Values must therefore not be negative.
+     */
+    public static final int MISS = -1;
+
+    private static final int STRIPE_COUNT = 8;
+
+    // Rough per-entry cost on top of the key's characters: map entry, String and char[] headers,
+    // and the boxed value.
+    private static final int ENTRY_OVERHEAD_BYTES = 96;
+
+    public static class Stats {
+        public final long hits;
+        public final long misses;
+        public final long evictions;
+        public final int entries;
+        public final long bytes;
+
+        private Stats(final long hits, final long misses, final long evictions, final int entries, final long bytes) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.entries = entries;
+            this.bytes = bytes;
+        }
+
+        /**
+         * @return The share of lookups that were cache hits, or 0 if there weren't any lookups.
+         */
+        public double getHitRatio() {
+            final long lookups = hits + misses;
+            return lookups == 0 ? 0 : (double) hits / lookups;
+        }
+
+        @Override
+        public String toString() {
+            return "hits=" + hits + " misses=" + misses + " evictions=" + evictions +
+                    " hitRatio=" + Math.round(getHitRatio() * 100) + "%" +
+                    " entries=" + entries + " bytes=" + bytes;
+        }
+    }
+
+    private final Stripe[] stripes = new Stripe[STRIPE_COUNT];
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    // Incremented by clear(), before the stripes are cleared.
+    private volatile int epoch = 0;
+
+    /**
+     * @param byteBudget Approximate maximum amount of memory used by this cache.
+     */
+    public VerdictCache(final int byteBudget) {
+        if (byteBudget < STRIPE_COUNT * ENTRY_OVERHEAD_BYTES) {
+            throw new IllegalArgumentException("Cache budget too small: " + byteBudget);
+        }
+
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            stripes[i] = new Stripe(byteBudget / STRIPE_COUNT);
+        }
+    }
+
+    public int get(final String key) {
+        final int value = stripeFor(key).get(key);
+
+        if (value == MISS) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+
+        return value;
+    }
+
+    public void put(final String key, final int value) {
+        put(key, value, epoch);
+    }
+
+    /**
+     * Caches a value unless the cache has been cleared since {@link #getEpoch()} returned epoch.
+     */
+    public void put(final String key, final int value, final int epoch) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Cannot cache negative values");
+        }
+
+        stripeFor(key).put(key, value, epoch);
+    }
+
+    /**
+     * @return The number of times this cache has been cleared.
+     */
+    public int getEpoch() {
+        return epoch;
+    }
+
+    public synchronized void clear() {
+        // Puts check the epoch while holding their stripe's lock: a put that started before this
+        // increment either completes before its stripe is cleared, or sees the new epoch.
+        epoch++;
+
+        for (final Stripe stripe : stripes) {
+            stripe.clear();
+        }
+    }
+
+    public Stats getStats() {
+        int entries = 0;
+        long bytes = 0;
+
+        for (final Stripe stripe : stripes) {
+            synchronized (stripe) {
+                entries += stripe.map.size();
+                bytes += stripe.bytes;
+            }
+        }
+
+        return new Stats(hits.get(), misses.get(), evictions.get(), entries, bytes);
+    }
+
+    private Stripe stripeFor(final String key) {
+        final int hash = key.hashCode();
+        // Mix in the high bits, the low bits of String hashes of similar URLs are often identical
+        return stripes[(hash ^ (hash >>> 16)) & (STRIPE_COUNT - 1)];
+    }
+
+    private static int sizeOf(final String key) {
+        return ENTRY_OVERHEAD_BYTES + 2 * key.length();
+    }
+
+    private class Stripe {
+        private final int byteBudget;
+        // Access ordered, i.e. iteration starts at the least recently used entry
+        private final LinkedHashMap<String, Integer> map = new LinkedHashMap<>(16, 0.75f, true);
+        private long bytes = 0;
+
+        Stripe(final int byteBudget) {
+            this.byteBudget = byteBudget;
+        }
+
+        synchronized int get(final String key) {
+            final Integer value = map.get(key);
+            return value == null ? MISS : value;
+        }
+
+        synchronized void put(final String key, final int value, final int epoch) {
+            if (epoch != VerdictCache.this.epoch) {
+                return;
+            }
+
+            if (map.put(key, value) == null) {
+                bytes += sizeOf(key);
+            }
+
+            while (bytes > byteBudget && !map.isEmpty()) {
+                final Map.Entry<String, Integer> eldest = map.entrySet().iterator().next();
+
+                map.remove(eldest.getKey());
+                bytes -= sizeOf(eldest.getKey());
+                evictions.incrementAndGet();
+            }
+        }
+
+        synchronized void clear() {
+            map.clear();
+            bytes = 0;
+        }
+    }
+}
@@ -53,6 +53,22 @@ public abstract class FocusString {
 
     public abstract FocusString substring(final int startIndex);
 
+    /**
+     * @return A copy of this (possibly reversed) String. This allocates, and should therefore
+     * only be used when building tries - not when looking things up.
+     */
+    @Override
+    public String toString() {
+        final int length = length();
+        final StringBuilder builder = new StringBuilder(length);
+
+        for (int i = 0; i < length; i++) {
+            builder.append(charAt(i));
+        }
+
+        return builder.toString();
+    }
+
     private static class ForwardString extends FocusString {
         public ForwardString(final String string, final int offsetStart, final int offsetEnd) {
             super(string, offsetStart, offsetEnd);
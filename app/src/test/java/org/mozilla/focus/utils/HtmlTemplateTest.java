@@ -0,0 +1,86 @@
+/* -*- Mode: Java; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package org.mozilla.focus.utils;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class HtmlTemplateTest {
+    @Test
+    public void placeholdersAreSubstituted() throws IOException {
+        final HtmlTemplate template = parse("<html dir=\"%dir%\">\n<p>%message-1%</p>%dir%</html>");
+
+        final Map<String, String> substitutions = new HashMap<>();
+        substitutions.put("%dir%", "rtl");
+        substitutions.put("%message-1%", "Hello");
+
+        // Line breaks are dropped
+        assertEquals("<html dir=\"rtl\"><p>Hello</p>rtl</html>", template.render(substitutions));
+    }
+
+    @Test
+    public void unknownPlaceholdersAreKept() throws IOException {
+        final HtmlTemplate template = parse("<p>%known% %unknown%</p>");
+
+        final Map<String, String> substitutions = new HashMap<>();
+        substitutions.put("%known%", "a");
+
+        assertEquals("<p>a %unknown%</p>", template.render(substitutions));
+        assertEquals("<p>%known% %unknown%</p>", template.render(null));
+    }
+
+    @Test
+    public void percentSignsOutsidePlaceholdersAreKept() throws IOException {
+        final String css = "div { width: 100%; height: 50%%; } a%b %% 5%%css%";
+        final HtmlTemplate template = parse(css);
+
+        final Map<String, String> substitutions = new HashMap<>();
+        substitutions.put("%css%", "X");
+
+        assertEquals("div { width: 100%; height: 50%%; } a%b %% 5%X", template.render(substitutions));
+    }
+
+    @Test
+    public void placeholdersDontSpanLines() throws IOException {
+        final HtmlTemplate template = parse("<p>%mess\nage%</p>");
+
+        final Map<String, String> substitutions = new HashMap<>();
+        substitutions.put("%message%", "Hello");
+
+        assertEquals("<p>%message%</p>", template.render(substitutions));
+    }
+
+    @Test
+    public void substitutionsAreNotExpandedAgain() throws IOException {
+        final HtmlTemplate template = parse("<p>%messageLong%</p><style>%css%</style>");
+
+        // e.g. an error message containing the URL the user typed
+        final Map<String, String> substitutions = new HashMap<>();
+        substitutions.put("%messageLong%", "Can't load %css%");
+        substitutions.put("%css%", "body {}");
+
+        assertEquals("<p>Can't load %css%</p><style>body {}</style>", template.render(substitutions));
+    }
+
+    @Test
+    public void plainRenderingIsReused() throws IOException {
+        final HtmlTemplate template = parse("body { color: red; }\n");
+
+        assertEquals("body { color: red; }", template.render(null));
+        assertSame(template.render(null), template.render(new HashMap<String, String>()));
+    }
+
+    private static HtmlTemplate parse(final String content) throws IOException {
+        return HtmlTemplate.parse(new BufferedReader(new StringReader(content)));
+    }
+}
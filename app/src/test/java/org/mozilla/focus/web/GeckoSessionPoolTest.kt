@@ -0,0 +1,104 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.focus.web
+
+import android.content.ComponentCallbacks2
+import android.content.Context
+import android.preference.PreferenceManager
+import androidx.test.core.app.ApplicationProvider
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertSame
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.Mockito.`when`
+import org.mockito.Mockito.mock
+import org.mockito.Mockito.never
+import org.mockito.Mockito.verify
+import org.mozilla.focus.R
+import org.mozilla.geckoview.GeckoRuntime
+import org.mozilla.geckoview.GeckoSession
+import org.robolectric.RobolectricTestRunner
+
+@RunWith(RobolectricTestRunner::class)
+class GeckoSessionPoolTest {
+    private lateinit var context: Context
+    private lateinit var runtime: GeckoRuntime
+    private val created = mutableListOf<GeckoSession>()
+
+    @Before
+    fun setup() {
+        context = ApplicationProvider.getApplicationContext()
+        runtime = mock(GeckoRuntime::class.java)
+    }
+
+    private fun createPool(size: Int) = GeckoSessionPool(size) {
+        val session = mock(GeckoSession::class.java)
+        // Sessions are opened by the pool: pretend that worked
+        `when`(session.isOpen).thenReturn(true)
+        created.add(session)
+        session
+    }.apply { start(context, runtime) }
+
+    @Test
+    fun sessionsAreTakenFromThePool() {
+        val pool = createPool(2)
+        pool.refill()
+        pool.refill()
+        assertEquals(2, created.size)
+
+        assertSame(created[0], pool.take(runtime))
+        assertSame(created[1], pool.take(runtime))
+        assertEquals(2, pool.hits)
+
+        // The pool is empty now: the session is created on demand
+        val session = pool.take(runtime)
+        assertSame(created[2], session)
+        assertEquals(1, pool.misses)
+
+        created.forEach { verify(it).open(runtime) }
+    }
+
+    @Test
+    fun poolIsLimitedToItsSize() {
+        val pool = createPool(1)
+        pool.refill()
+        pool.refill()
+
+        assertEquals(1, created.size)
+    }
+
+    @Test
+    fun settingsChangesDontDropSessions() {
+        val pool = createPool(1)
+        pool.refill()
+        val pooled = created[0]
+
+        // Settings are applied by GeckoWebView once it has taken the session
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+            .putBoolean(context.getString(R.string.pref_key_performance_block_javascript), true)
+            .apply()
+
+        verify(pooled, never()).close()
+        assertSame(pooled, pool.take(runtime))
+    }
+
+    @Test
+    fun sessionsAreDroppedWhenMemoryIsLow() {
+        val pool = createPool(1)
+        pool.refill()
+
+        // Going to the background is no reason to drop the session
+        pool.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN)
+        verify(created[0], never()).close()
+
+        pool.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW)
+        verify(created[0]).close()
+
+        // And it isn't refilled until sessions are needed again
+        pool.refill()
+        assertEquals(1, created.size)
+    }
+}
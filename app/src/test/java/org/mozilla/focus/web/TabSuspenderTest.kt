@@ -0,0 +1,149 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.mozilla.focus.web
+
+import android.content.ComponentCallbacks2
+import android.content.Context
+import android.os.Bundle
+import android.preference.PreferenceManager
+import androidx.test.core.app.ApplicationProvider
+import mozilla.components.browser.session.Session
+import mozilla.components.browser.session.SessionManager
+import mozilla.components.concept.engine.Engine
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.Mockito.`when`
+import org.mockito.Mockito.mock
+import org.mockito.Mockito.never
+import org.mockito.Mockito.verify
+import org.mozilla.focus.R
+import org.mozilla.focus.ext.savedWebViewState
+import org.mozilla.geckoview.GeckoSession
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.shadows.ShadowLooper
+import java.util.concurrent.TimeUnit
+
+@RunWith(RobolectricTestRunner::class)
+class TabSuspenderTest {
+    private lateinit var context: Context
+    private lateinit var sessionManager: SessionManager
+    private lateinit var suspender: TabSuspender
+
+    @Before
+    fun setup() {
+        context = ApplicationProvider.getApplicationContext()
+        sessionManager = SessionManager(mock(Engine::class.java))
+        suspender = TabSuspender(context, sessionManager)
+        sessionManager.register(suspender)
+    }
+
+    private fun setBudget(budget: Int) {
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+            .putString(context.getString(R.string.pref_key_tab_memory_budget), budget.toString())
+            .apply()
+    }
+
+    private fun addTab(url: String, selected: Boolean = true): Pair<Session, GeckoSession> {
+        val geckoSession = mock(GeckoSession::class.java)
+        `when`(geckoSession.isOpen).thenReturn(true)
+
+        val session = Session(url)
+        session.savedWebViewState = Bundle().apply {
+            putParcelable(GeckoWebViewProvider.GECKO_SESSION, geckoSession)
+        }
+        sessionManager.add(session, selected = selected)
+        return session to geckoSession
+    }
+
+    @Test
+    fun oldestBackgroundTabsAreSuspendedOverBudget() {
+        setBudget(1)
+        val (first, firstGecko) = addTab("https://www.mozilla.org")
+        val (second, secondGecko) = addTab("https://example.com")
+        val (_, thirdGecko) = addTab("https://example.org")
+
+        suspender.suspendTabs(force = false)
+
+        verify(firstGecko).close()
+        verify(secondGecko, never()).close()
+        verify(thirdGecko, never()).close()
+        assertTrue(TabSuspender.isSuspended(first.savedWebViewState!!))
+        assertFalse(TabSuspender.isSuspended(second.savedWebViewState!!))
+    }
+
+    @Test
+    fun unlimitedBudgetKeepsTabs() {
+        setBudget(-1)
+        val (_, firstGecko) = addTab("https://www.mozilla.org")
+        addTab("https://example.com")
+
+        suspender.suspendTabs(force = false)
+
+        verify(firstGecko, never()).close()
+    }
+
+    @Test
+    fun tabsAddedBeforeRegistrationAreNotIdle() {
+        setBudget(-1)
+        val (_, firstGecko) = addTab("https://www.mozilla.org")
+        addTab("https://example.com")
+
+        // e.g. tabs that were restored before the suspender was created: they only count as
+        // hidden from the first check on, however short the timeout
+        val lateSuspender = TabSuspender(context, sessionManager, idleTimeoutMillis = 1)
+        lateSuspender.suspendTabs(force = false)
+
+        verify(firstGecko, never()).close()
+    }
+
+    @Test
+    fun tabsOpenedInTheBackgroundAreSuspendedWhenIdle() {
+        setBudget(-1)
+        addTab("https://www.mozilla.org")
+        // Run the checks scheduled for the selected tab
+        ShadowLooper.idleMainLooper(TabSuspender.DEFAULT_IDLE_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+
+        val (_, backgroundGecko) = addTab("https://example.com", selected = false)
+        verify(backgroundGecko, never()).close()
+
+        ShadowLooper.idleMainLooper(TabSuspender.DEFAULT_IDLE_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+        verify(backgroundGecko).close()
+    }
+
+    @Test
+    fun allBackgroundTabsAreSuspendedWhenMemoryIsLow() {
+        setBudget(-1)
+        val (_, firstGecko) = addTab("https://www.mozilla.org")
+        val (_, secondGecko) = addTab("https://example.com")
+        val (_, selectedGecko) = addTab("https://example.org")
+
+        // Going to the background is no reason to suspend tabs
+        suspender.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN)
+        verify(firstGecko, never()).close()
+
+        suspender.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW)
+        verify(firstGecko).close()
+        verify(secondGecko).close()
+        verify(selectedGecko, never()).close()
+    }
+
+    @Test
+    fun suspendedTabsAreOnlySuspendedOnce() {
+        setBudget(-1)
+        val (first, _) = addTab("https://www.mozilla.org")
+        addTab("https://example.com")
+
+        val before = TabSuspender.suspendedCount
+        suspender.suspendTabs(force = true)
+        suspender.suspendTabs(force = true)
+
+        assertEquals(before + 1, TabSuspender.suspendedCount)
+        assertFalse(TabSuspender.isLive(first))
+    }
+}
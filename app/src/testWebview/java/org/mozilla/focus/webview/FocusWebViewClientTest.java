@@ -0,0 +1,138 @@
+/* -*- Mode: Java; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package org.mozilla.focus.webview;
+
+import android.os.StrictMode;
+import android.webkit.ValueCallback;
+import android.webkit.WebView;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineManager;
+import javax.script.ScriptException;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(packageName = "org.mozilla.focus")
+public class FocusWebViewClientTest {
+    private static final int RESOURCE_COUNT = 50;
+
+    // Just enough of a DOM for INSTALL_CLEAR_VISITED_CSS, counting cleanups and observers.
+    private static final String FAKE_DOCUMENT =
+            "var cleanups = 0, observers = 0;" +
+            "var Node = { ELEMENT_NODE: 1, TEXT_NODE: 3 };" +
+            "var MutationObserver = function() { observers++; this.observe = function() {}; };" +
+            "var document = { URL: 'https://www.mozilla.org/', getElementsByTagName: function() { return []; } };" +
+            "Object.defineProperty(document, 'styleSheets', { get: function() { cleanups++; return []; } });";
+
+    private FocusWebViewClient client;
+    private WebView webView;
+
+    @Before
+    public void setup() {
+        client = new FocusWebViewClient(RuntimeEnvironment.application);
+
+        webView = mock(WebView.class);
+        when(webView.getContext()).thenReturn(RuntimeEnvironment.application);
+    }
+
+    @After
+    public void cleanup() {
+        // See TrackingProtectionWebViewClientTest
+        StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder().build());
+    }
+
+    @Test
+    public void clearVisitedIsInstalledOncePerPage() {
+        evaluateScriptsIn("https://www.mozilla.org/");
+
+        loadPage("https://www.mozilla.org");
+
+        // Once for the first resource, and once more when the page has finished loading
+        verify(webView, times(2)).evaluateJavascript(anyString(), any(ValueCallback.class));
+
+        // The next page needs its own
+        loadPage("https://www.mozilla.org/about");
+        verify(webView, times(4)).evaluateJavascript(anyString(), any(ValueCallback.class));
+    }
+
+    @Test
+    public void clearVisitedIsRetriedUntilTheDocumentHasChanged() {
+        // e.g. onLoadResource() for the page itself, while the previous document is still shown
+        evaluateScriptsIn("https://example.com/");
+
+        loadPage("https://www.mozilla.org");
+
+        // Limited number of retries, and once more when the page has finished loading
+        verify(webView, times(FocusWebViewClient.MAX_CLEAR_VISITED_ATTEMPTS + 1)).evaluateJavascript(anyString(), any(ValueCallback.class));
+    }
+
+    @Test
+    public void clearVisitedCantBeDisabledByThePage() throws ScriptException {
+        final ScriptEngine engine = new ScriptEngineManager().getEngineByName("nashorn");
+        // Nashorn isn't available on newer JDKs
+        Assume.assumeNotNull(engine);
+
+        final String property = "document['" + FocusWebViewClient.CLEAR_VISITED_KEY + "']";
+
+        engine.eval(FAKE_DOCUMENT);
+        // The page tries to install a "cleanup" first
+        engine.eval("document._focusCleanupVisited = function() {};" + property + " = 42;");
+
+        for (int i = 0; i < 2; i++) {
+            assertEquals("https://www.mozilla.org/", engine.eval(FocusWebViewClient.INSTALL_CLEAR_VISITED_CSS));
+        }
+        assertEquals(2, ((Number) engine.eval("cleanups")).intValue());
+        assertEquals(1, ((Number) engine.eval("observers")).intValue());
+
+        // Once installed, the cleanup can't be replaced (and isn't listed)
+        engine.eval(property + " = function() {};");
+        engine.eval(FocusWebViewClient.INSTALL_CLEAR_VISITED_CSS);
+        assertEquals(3, ((Number) engine.eval("cleanups")).intValue());
+        assertEquals(-1, ((Number) engine.eval("Object.keys(document).indexOf('" +
+                FocusWebViewClient.CLEAR_VISITED_KEY + "')")).intValue());
+    }
+
+    private void loadPage(final String url) {
+        client.onPageStarted(webView, url, null);
+        for (int i = 0; i < RESOURCE_COUNT; i++) {
+            client.onLoadResource(webView, url + "/resource" + i);
+        }
+        client.onPageFinished(webView, url);
+    }
+
+    /**
+     * Makes every script report that it ran in a document with the given URL.
+     */
+    @SuppressWarnings("unchecked")
+    private void evaluateScriptsIn(final String documentURL) {
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                final ValueCallback<String> callback = invocation.getArgument(1);
+                callback.onReceiveValue("\"" + documentURL + "\"");
+                return null;
+            }
+        }).when(webView).evaluateJavascript(anyString(), any(ValueCallback.class));
+    }
+}
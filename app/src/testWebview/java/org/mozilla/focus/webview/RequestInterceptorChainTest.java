@@ -0,0 +1,121 @@
+/* -*- Mode: Java; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package org.mozilla.focus.webview;
+
+import android.webkit.WebResourceRequest;
+import android.webkit.WebResourceResponse;
+import android.webkit.WebView;
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.mock;
+
+@RunWith(RobolectricTestRunner.class)
+public class RequestInterceptorChainTest {
+    private final WebView view = mock(WebView.class);
+    private final WebResourceRequest request = mock(WebResourceRequest.class);
+
+    // Names of the stages that have been called, in order.
+    private final List<String> calls = new ArrayList<>();
+
+    @Test
+    public void stagesRunInOrderUntilOneDecides() {
+        final InterceptorStats stats = new InterceptorStats();
+        final RequestInterceptorChain chain = new RequestInterceptorChain(stats)
+                .add(createStage("b", RequestInterceptor.Decision.CONTINUE))
+                .add(createStage("d", RequestInterceptor.Decision.block()))
+                .add(createStage("e", RequestInterceptor.Decision.CONTINUE))
+                .addFirst(createStage("a", RequestInterceptor.Decision.CONTINUE))
+                .addBefore("d", createStage("c", RequestInterceptor.Decision.CONTINUE));
+
+        final WebResourceResponse response = chain.intercept(view, request);
+
+        assertNotNull(response);
+        assertEquals(Arrays.asList("a", "b", "c", "d"), calls);
+    }
+
+    @Test
+    public void allowSkipsRemainingStages() {
+        final RequestInterceptorChain chain = new RequestInterceptorChain(new InterceptorStats())
+                .add(createStage("allow", RequestInterceptor.Decision.ALLOW))
+                .add(createStage("block", RequestInterceptor.Decision.block()));
+
+        assertNull(chain.intercept(view, request));
+        assertEquals(Arrays.asList("allow"), calls);
+    }
+
+    @Test
+    public void requestsAreLoadedIfNoStageDecides() {
+        final RequestInterceptorChain chain = new RequestInterceptorChain(new InterceptorStats())
+                .add(createStage("a", RequestInterceptor.Decision.CONTINUE));
+
+        assertNull(chain.intercept(view, request));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void addBeforeRequiresAnExistingStage() {
+        new RequestInterceptorChain(new InterceptorStats())
+                .addBefore("missing", createStage("a", RequestInterceptor.Decision.CONTINUE));
+    }
+
+    @Test
+    public void decisionsAreCountedPerStage() {
+        final InterceptorStats stats = new InterceptorStats();
+
+        // Two chains (e.g. two tabs) with the same stages share counters
+        for (int i = 0; i < 2; i++) {
+            final RequestInterceptorChain chain = new RequestInterceptorChain(stats)
+                    .add(createStage("continue", RequestInterceptor.Decision.CONTINUE))
+                    .add(createStage("block", RequestInterceptor.Decision.block()))
+                    .add(createStage("unreached", RequestInterceptor.Decision.ALLOW));
+
+            for (int j = 0; j < 3; j++) {
+                chain.intercept(view, request);
+            }
+        }
+
+        final InterceptorStats.Snapshot snapshot = stats.snapshot();
+        assertEquals(3, snapshot.stages.size());
+
+        final InterceptorStats.Stage continueStage = snapshot.stages.get(0);
+        assertEquals("continue", continueStage.name);
+        assertEquals(6, continueStage.getRequestCount());
+        assertEquals(6, continueStage.getCount(RequestInterceptor.Action.CONTINUE));
+
+        final InterceptorStats.Stage blockStage = snapshot.stages.get(1);
+        assertEquals("block", blockStage.name);
+        assertEquals(6, blockStage.getCount(RequestInterceptor.Action.RESPOND));
+        assertEquals(0, blockStage.getCount(RequestInterceptor.Action.CONTINUE));
+
+        assertEquals(0, snapshot.stages.get(2).getRequestCount());
+    }
+
+    private RequestInterceptor createStage(final String name, final RequestInterceptor.Decision decision) {
+        return new RequestInterceptor() {
+            @NonNull
+            @Override
+            public String getName() {
+                return name;
+            }
+
+            @NonNull
+            @Override
+            public Decision intercept(@NonNull WebView view, @NonNull WebResourceRequest request) {
+                calls.add(name);
+                return decision;
+            }
+        };
+    }
+}
@@ -15,8 +15,11 @@ import org.robolectric.RuntimeEnvironment;
 import org.robolectric.annotation.Config;
 
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
@@ -34,6 +37,9 @@ public class TrackingProtectionWebViewClientTest {
 
     @Before
     public void setup() {
+        // The tests below expect the blocklists to be applied, no matter how long loading takes.
+        TrackingProtectionWebViewClient.setWarmUpPolicy(TrackingProtectionWebViewClient.WarmUpPolicy.WAIT, TimeUnit.MINUTES.toMillis(1));
+
         trackingProtectionWebViewClient = new TrackingProtectionWebViewClient(RuntimeEnvironment.application);
 
         webView = mock(WebView.class);
@@ -42,6 +48,9 @@ public class TrackingProtectionWebViewClientTest {
 
     @After
     public void cleanup() {
+        TrackingProtectionWebViewClient.setWarmUpPolicy(TrackingProtectionWebViewClient.DEFAULT_WARM_UP_POLICY,
+                TrackingProtectionWebViewClient.DEFAULT_WARM_UP_TIMEOUT_MS);
+
         // Reset strict mode: for every test, Robolectric will create FocusApplication again.
         // FocusApplication expects strict mode to be disabled (since it loads some preferences from disk),
         // before enabling it itself. If we run multiple tests, strict mode will stay enabled
@@ -71,6 +80,20 @@ public class TrackingProtectionWebViewClientTest {
         }
     }
 
+    @Test
+    public void requestsAreBlockedBeforeWarmUpByDefault() {
+        TrackingProtectionWebViewClient.setWarmUpPolicy(TrackingProtectionWebViewClient.DEFAULT_WARM_UP_POLICY,
+                TrackingProtectionWebViewClient.DEFAULT_WARM_UP_TIMEOUT_MS);
+        assertTrue(TrackingProtectionWebViewClient.shouldBlockBeforeWarmUp());
+
+        TrackingProtectionWebViewClient.setWarmUpPolicy(TrackingProtectionWebViewClient.WarmUpPolicy.BLOCK, 0);
+        assertTrue(TrackingProtectionWebViewClient.shouldBlockBeforeWarmUp());
+
+        // Only if explicitly requested
+        TrackingProtectionWebViewClient.setWarmUpPolicy(TrackingProtectionWebViewClient.WarmUpPolicy.ALLOW, 0);
+        assertFalse(TrackingProtectionWebViewClient.shouldBlockBeforeWarmUp());
+    }
+
     @Test
     public void testMainFrameAllowed() throws Exception {
         trackingProtectionWebViewClient.notifyCurrentURL("http://mozilla.org");
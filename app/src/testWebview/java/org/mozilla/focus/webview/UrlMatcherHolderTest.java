@@ -0,0 +1,183 @@
+/* -*- Mode: Java; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package org.mozilla.focus.webview;
+
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.preference.PreferenceManager;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mozilla.focus.R;
+import org.mozilla.focus.webview.matcher.UrlMatcher;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+@RunWith(RobolectricTestRunner.class)
+public class UrlMatcherHolderTest {
+
+    @Test
+    public void waitsUntilLoaded() throws Exception {
+        final UrlMatcher matcher = mock(UrlMatcher.class);
+
+        final int[] loads = new int[1];
+        final Callable<UrlMatcher> loader = new Callable<UrlMatcher>() {
+            @Override
+            public UrlMatcher call() {
+                loads[0]++;
+                return matcher;
+            }
+        };
+
+        // Loading is queued here, and then run by the test
+        final List<Runnable> queued = new ArrayList<>();
+        final Executor executor = new Executor() {
+            @Override
+            public void execute(final Runnable runnable) {
+                queued.add(runnable);
+            }
+        };
+
+        final UrlMatcherHolder holder = new UrlMatcherHolder(loader, executor);
+
+        holder.start();
+        holder.start();
+        assertEquals(1, queued.size());
+
+        assertFalse(holder.isReady());
+        assertNull(holder.getIfReady());
+        assertNull(holder.await(10));
+
+        final UrlMatcherHolder.Stats stats = holder.getStats();
+        assertEquals(1, stats.waits);
+        assertEquals(1, stats.timeouts);
+        assertTrue(stats.totalWaitMillis >= 10);
+        assertEquals(stats.totalWaitMillis, stats.maxWaitMillis);
+
+        queued.remove(0).run();
+
+        assertTrue(holder.isReady());
+        assertSame(matcher, holder.getIfReady());
+        assertSame(matcher, holder.await(10));
+        assertEquals(1, loads[0]);
+
+        // No waiting is needed once the matcher is loaded
+        assertEquals(1, holder.getStats().waits);
+    }
+
+    @Test
+    public void updatesAndRollsBack() throws Exception {
+        final UrlMatcher bundled = mock(UrlMatcher.class);
+        final UrlMatcher updated = mock(UrlMatcher.class);
+
+        final UrlMatcherHolder holder = new UrlMatcherHolder(new Callable<UrlMatcher>() {
+            @Override
+            public UrlMatcher call() {
+                return bundled;
+            }
+        }, new Executor() {
+            @Override
+            public void execute(final Runnable runnable) {
+                runnable.run();
+            }
+        });
+
+        assertSame(bundled, holder.await(0));
+        assertEquals(UrlMatcherHolder.BUNDLED_VERSION, holder.getVersion());
+
+        assertTrue(holder.update(new Callable<UrlMatcher>() {
+            @Override
+            public UrlMatcher call() {
+                return updated;
+            }
+        }, "2"));
+
+        assertSame(updated, holder.getIfReady());
+        assertEquals("2", holder.getVersion());
+
+        // Invalid lists: we go back to the bundled lists
+        assertFalse(holder.update(new Callable<UrlMatcher>() {
+            @Override
+            public UrlMatcher call() {
+                throw new IllegalStateException("Invalid lists");
+            }
+        }, "3"));
+
+        assertSame(bundled, holder.getIfReady());
+        assertEquals(UrlMatcherHolder.BUNDLED_VERSION, holder.getVersion());
+    }
+
+    @Test
+    public void updatedMatchersDontReadTheirFilesAgain() throws Exception {
+        final String categories = "\"Advertising\": [{\"Tracker\": {\"http://tracker.com/\": [\"ads.com\"]}}]," +
+                "\"Analytics\": [{\"Tracker\": {\"http://tracker.com/\": [\"analytics.com\"]}}]," +
+                "\"Content\": [{\"Tracker\": {\"http://tracker.com/\": [\"content.com\"]}}]," +
+                "\"Cryptomining\": [{\"Tracker\": {\"http://tracker.com/\": [\"mining.com\"]}}]," +
+                "\"Social\": [{\"Tracker\": {\"http://tracker.com/\": [\"social.com\"]}}]," +
+                "\"Fingerprinting\": [{\"Tracker\": {\"http://tracker.com/\": [\"fingerprinting.com\"]}}]";
+
+        final File blockList = writeList(File.createTempFile("list", ".json"), "{\"categories\": {" + categories + "}}");
+        final File entityList = writeList(File.createTempFile("entities", ".json"), "{}");
+
+        final SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(RuntimeEnvironment.application);
+        final String fingerprintingKey = RuntimeEnvironment.application.getString(R.string.pref_key_privacy_block_fingerprinting);
+        preferences.edit().putBoolean(fingerprintingKey, false).commit();
+
+        final UrlMatcherHolder holder = new UrlMatcherHolder(new Callable<UrlMatcher>() {
+            @Override
+            public UrlMatcher call() {
+                return mock(UrlMatcher.class);
+            }
+        }, new Executor() {
+            @Override
+            public void execute(final Runnable runnable) {
+                runnable.run();
+            }
+        });
+
+        assertTrue(holder.update(new Callable<UrlMatcher>() {
+            @Override
+            public UrlMatcher call() {
+                return UrlMatcher.loadMatcher(RuntimeEnvironment.application, blockList, new File[0], entityList);
+            }
+        }, "2"));
+
+        // The next update overwrites the files (here with a broken list) after the swap
+        writeList(blockList, "{\"categories\": {");
+
+        preferences.edit().putBoolean(fingerprintingKey, true).commit();
+
+        final UrlMatcher matcher = holder.getIfReady();
+        assertTrue(matcher.matches(Uri.parse("http://fingerprinting.com/a.js"), Uri.parse("http://mozilla.org")));
+    }
+
+    private static File writeList(final File file, final String json) throws IOException {
+        file.deleteOnExit();
+
+        try (final Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            writer.write(json);
+        }
+
+        return file;
+    }
+}
@@ -0,0 +1,50 @@
+/* -*- Mode: Java; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package org.mozilla.focus.webview.matcher;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Helper for tests that verify that our lookup paths don't allocate: uses the (HotSpot specific)
+ * per-thread allocation counter.
+ */
+/* package-private */ final class Allocations {
+    private static final int WARMUP_ITERATIONS = 20000;
+
+    private Allocations() {}
+
+    /**
+     * Runs the given lookup until it's warmed up, and then returns the number of bytes allocated
+     * per invocation.
+     */
+    static long bytesPerInvocation(final int iterations, final Runnable lookup) {
+        final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue("Allocation counting is unavailable on this JVM",
+                bean instanceof com.sun.management.ThreadMXBean);
+
+        final com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+        final long threadId = Thread.currentThread().getId();
+
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            lookup.run();
+        }
+
+        // Reading the counter can itself allocate, measure that first so we can subtract it:
+        final long calibrationStart = threadBean.getThreadAllocatedBytes(threadId);
+        final long calibrationEnd = threadBean.getThreadAllocatedBytes(threadId);
+        final long overhead = calibrationEnd - calibrationStart;
+
+        final long start = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < iterations; i++) {
+            lookup.run();
+        }
+        final long end = threadBean.getThreadAllocatedBytes(threadId);
+
+        return Math.max(0, end - start - overhead) / iterations;
+    }
+}
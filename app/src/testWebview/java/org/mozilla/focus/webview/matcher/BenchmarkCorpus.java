@@ -0,0 +1,138 @@
+/* -*- Mode: Java; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package org.mozilla.focus.webview.matcher;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Page/resource URL pairs for the matcher benchmarks.
+ *
+ * A recorded corpus can be supplied as a file with one "pageURL resourceURL" pair per line
+ * (separated by a tab, e.g. exported from a HAR file). Otherwise a corpus is generated from the
+ * lists: always using the same seed, so that results of different runs are comparable.
+ */
+/* package-private */ final class BenchmarkCorpus {
+    private static final String[] PATHS = new String[] {
+            "/", "/index.html", "/js/app.min.js", "/css/site.css", "/img/logo.png",
+            "/fonts/body.woff2", "/pixel.gif?id=1234&ref=home", "/api/v1/collect?v=2&tid=UA-1",
+    };
+
+    final String[] pages;
+    final String[] resources;
+
+    private BenchmarkCorpus(final List<String> pages, final List<String> resources) {
+        this.pages = pages.toArray(new String[0]);
+        this.resources = resources.toArray(new String[0]);
+    }
+
+    int size() {
+        return pages.length;
+    }
+
+    static BenchmarkCorpus read(final File file) throws IOException {
+        final List<String> pages = new ArrayList<>();
+        final List<String> resources = new ArrayList<>();
+
+        try (final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] fields = line.split("\t");
+                if (fields.length == 2) {
+                    pages.add(fields[0]);
+                    resources.add(fields[1]);
+                }
+            }
+        }
+
+        return new BenchmarkCorpus(pages, resources);
+    }
+
+    /**
+     * Generates a corpus where roughly a third of all resources is hosted by trackers, a third by
+     * the page itself and a third by (non tracking) third parties. Pages are a mix of entity
+     * properties (where the entity list applies) and unrelated sites.
+     */
+    static BenchmarkCorpus generate(final File blockList, final File entityList, final int size) throws IOException {
+        final List<String> trackers = readHosts(blockList);
+        final List<String> properties = readHosts(entityList);
+
+        final Random random = new Random(0x5eed);
+        final List<String> pages = new ArrayList<>(size);
+        final List<String> resources = new ArrayList<>(size);
+
+        for (int i = 0; i < size; i++) {
+            final String pageHost = random.nextBoolean()
+                    ? "www." + properties.get(random.nextInt(properties.size()))
+                    : "www.site" + random.nextInt(500) + ".com";
+
+            final String resourceHost;
+            switch (random.nextInt(3)) {
+                case 0:
+                    final String tracker = trackers.get(random.nextInt(trackers.size()));
+                    resourceHost = random.nextBoolean() ? tracker : "cdn" + random.nextInt(10) + "." + tracker;
+                    break;
+                case 1:
+                    resourceHost = pageHost;
+                    break;
+                default:
+                    resourceHost = "static" + random.nextInt(50) + ".cdn" + random.nextInt(200) + ".net";
+                    break;
+            }
+
+            pages.add("https://" + pageHost + "/");
+            resources.add("https://" + resourceHost + PATHS[random.nextInt(PATHS.length)]);
+        }
+
+        return new BenchmarkCorpus(pages, resources);
+    }
+
+    /**
+     * @return All strings in arrays anywhere in the given JSON file: for the blocklist that's the
+     * tracker hosts, for the entity list the entities' properties and resources.
+     */
+    private static List<String> readHosts(final File file) throws IOException {
+        final List<String> hosts = new ArrayList<>();
+
+        try (final JsonReader reader = new JsonReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            readHosts(reader, hosts, false);
+        }
+
+        return hosts;
+    }
+
+    private static void readHosts(final JsonReader reader, final List<String> hosts, final boolean inArray) throws IOException {
+        final JsonToken token = reader.peek();
+
+        if (token == JsonToken.BEGIN_OBJECT) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                reader.nextName();
+                readHosts(reader, hosts, false);
+            }
+            reader.endObject();
+        } else if (token == JsonToken.BEGIN_ARRAY) {
+            reader.beginArray();
+            while (reader.hasNext()) {
+                readHosts(reader, hosts, true);
+            }
+            reader.endArray();
+        } else if (token == JsonToken.STRING && inArray) {
+            hosts.add(reader.nextString());
+        } else {
+            reader.skipValue();
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/* -*- Mode: Java; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package org.mozilla.focus.webview.matcher;
+
+import org.junit.Test;
+import org.mozilla.focus.webview.matcher.Trie.WhiteListTrie;
+import org.mozilla.focus.webview.matcher.util.FocusString;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BlocklistImageTest {
+
+    @Test
+    public void roundTrip() throws Exception {
+        final BlocklistImage image = BlocklistImage.read(ByteBuffer.wrap(writeTestImage()));
+
+        final CategoryTrie categories = image.categories;
+        assertEquals(Arrays.asList("Advertising", "Analytics"), categories.getNames());
+
+        final int advertising = categories.getBit("Advertising");
+        final int analytics = categories.getBit("Analytics");
+
+        assertEquals(advertising, categories.getMask("ads.example.com"));
+        assertEquals(advertising, categories.getMask("foo.ads.example.com"));
+        assertEquals(0, categories.getMask("example.com"));
+        assertEquals(analytics, categories.getMask("tracker.org"));
+        // Shares its last node with tracker.org
+        assertEquals(analytics, categories.getMask("www.metrics.net"));
+        assertEquals(advertising | analytics, categories.getMask("both.net"));
+
+        final EntityList entityList = new EntityList(image.entityList);
+        assertTrue(entityList.isWhiteListed("www.example.com", "ads.example.com"));
+        assertFalse(entityList.isWhiteListed("mozilla.org", "ads.example.com"));
+    }
+
+    @Test
+    public void readFully() throws Exception {
+        final byte[] data = writeTestImage();
+
+        // Deliberately pass a wrong length, the stream must still be read completely
+        final ByteBuffer buffer = BlocklistImage.readFully(new ByteArrayInputStream(data), 1);
+
+        assertEquals(data.length, buffer.remaining());
+        assertEquals(2, BlocklistImage.read(buffer).categories.getNames().size());
+    }
+
+    @Test
+    public void sharedWhitelistsAreStoredOnce() throws Exception {
+        final Trie whitelist = new Trie.Builder()
+                .put(FocusString.create("cdn.example.com").reverse())
+                .put(FocusString.create("static.example.net").reverse())
+                .build();
+
+        final WhiteListTrie.Builder shared = new WhiteListTrie.Builder();
+        final WhiteListTrie.Builder copied = new WhiteListTrie.Builder();
+        for (final String property : new String[] { "example.com", "example.org", "example.net" }) {
+            shared.putWhiteList(FocusString.create(property).reverse(), whitelist);
+            copied.putWhiteList(FocusString.create(property).reverse(), new Trie.Builder()
+                    .put(FocusString.create("cdn.example.com").reverse())
+                    .put(FocusString.create("static.example.net").reverse())
+                    .build());
+        }
+
+        final byte[] sharedImage = writeImage(shared.build());
+        assertTrue(sharedImage.length < writeImage(copied.build()).length);
+
+        final EntityList entityList = new EntityList(BlocklistImage.read(ByteBuffer.wrap(sharedImage)).entityList);
+        for (final String site : new String[] { "example.com", "www.example.org", "example.net" }) {
+            assertTrue(entityList.isWhiteListed(site, "cdn.example.com"));
+            assertTrue(entityList.isWhiteListed(site, "a.static.example.net"));
+            assertFalse(entityList.isWhiteListed(site, "example.com.evil.org"));
+            assertFalse(entityList.isWhiteListed(site, "xcdn.example.com"));
+        }
+        assertFalse(entityList.isWhiteListed("mozilla.org", "cdn.example.com"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsOtherVersions() throws Exception {
+        final ByteBuffer buffer = ByteBuffer.wrap(writeTestImage());
+        buffer.putInt(4, BlocklistImage.FORMAT_VERSION + 1);
+
+        BlocklistImage.read(buffer);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsTruncatedImages() throws Exception {
+        final byte[] data = writeTestImage();
+
+        BlocklistImage.read(ByteBuffer.wrap(data, 0, data.length - 8).slice());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsEdgesToMissingNodes() throws Exception {
+        final ByteBuffer buffer = ByteBuffer.wrap(writeTestImage());
+        final int trie = skipHeader(buffer);
+        final int nodeCount = buffer.getInt(trie);
+
+        // The first edge target follows the node and edge counts and edgeStart
+        buffer.putInt(trie + 8 + (nodeCount + 1) * 4, nodeCount);
+
+        BlocklistImage.read(buffer);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsEdgeStartsOutOfOrder() throws Exception {
+        final ByteBuffer buffer = ByteBuffer.wrap(writeTestImage());
+        final int trie = skipHeader(buffer);
+        final int edgeCount = buffer.getInt(trie + 4);
+
+        // edgeStart of the second node
+        buffer.putInt(trie + 8 + 4, edgeCount + 1);
+
+        BlocklistImage.read(buffer);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsOverflowingNodeCounts() throws Exception {
+        final ByteBuffer buffer = ByteBuffer.wrap(writeTestImage());
+        final int trie = skipHeader(buffer);
+
+        // (nodeCount + 1) * 4 overflows an int
+        buffer.putInt(trie, Integer.MAX_VALUE);
+        buffer.putInt(trie + 4, Integer.MAX_VALUE);
+
+        BlocklistImage.read(buffer);
+    }
+
+    /**
+     * @return The offset of the category trie, i.e. the end of the image header.
+     */
+    private static int skipHeader(final ByteBuffer image) {
+        final ByteBuffer buffer = image.duplicate();
+        buffer.position(8);
+
+        final int categoryCount = buffer.getInt();
+        for (int i = 0; i < categoryCount; i++) {
+            final int length = buffer.getInt();
+            // Names are padded to 4 bytes
+            buffer.position(buffer.position() + (length + length % 2) * 2);
+        }
+        return buffer.position();
+    }
+
+    private static byte[] writeTestImage() throws IOException {
+        final Map<String, Trie.Builder> categories = new HashMap<>();
+        categories.put("Advertising", new Trie.Builder()
+                .put(FocusString.create("ads.example.com").reverse())
+                .put(FocusString.create("both.net").reverse()));
+        categories.put("Analytics", new Trie.Builder()
+                .put(FocusString.create("tracker.org").reverse())
+                .put(FocusString.create("metrics.net").reverse())
+                .put(FocusString.create("both.net").reverse()));
+
+        final Trie whitelist = new Trie.Builder()
+                .put(FocusString.create("ads.example.com").reverse())
+                .build();
+
+        final WhiteListTrie entityList = new WhiteListTrie.Builder()
+                .putWhiteList(FocusString.create("example.com").reverse(), whitelist)
+                .build();
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BlocklistImage.write(out, CategoryTrie.build(categories), entityList);
+        return out.toByteArray();
+    }
+
+    private static byte[] writeImage(final WhiteListTrie entityList) throws IOException {
+        final Map<String, Trie.Builder> categories = new HashMap<>();
+        categories.put("Advertising", new Trie.Builder()
+                .put(FocusString.create("ads.example.com").reverse()));
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BlocklistImage.write(out, CategoryTrie.build(categories), entityList);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,90 @@
+/* -*- Mode: Java; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package org.mozilla.focus.webview.matcher;
+
+import org.junit.Test;
+import org.mozilla.focus.webview.matcher.util.FocusString;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BloomFilterTest {
+
+    @Test
+    public void noFalseNegatives() {
+        final Trie.Builder builder = new Trie.Builder();
+        for (int i = 0; i < 5000; i++) {
+            builder.put(FocusString.create("tracker" + i + ".example" + (i % 7) + ".com").reverse());
+        }
+        builder.put(FocusString.create("bcd.random").reverse());
+        final Trie trie = builder.build();
+
+        final BloomFilter filter = BloomFilter.create(trie, 10);
+
+        for (int i = 0; i < 5000; i++) {
+            final String host = "tracker" + i + ".example" + (i % 7) + ".com";
+            assertTrue(filter.mightContainDomainOf(host));
+            assertTrue(filter.mightContainDomainOf("www." + host));
+        }
+        assertTrue(filter.mightContainDomainOf("bcd.random"));
+        assertTrue(filter.mightContainDomainOf("foo.bar.bcd.random"));
+
+        final BloomFilter.Stats stats = filter.getStats();
+        assertEquals(5001, stats.entries);
+        assertEquals(10002, stats.queries);
+        assertEquals(0, stats.negatives);
+    }
+
+    @Test
+    public void falsePositiveRate() {
+        final Trie.Builder builder = new Trie.Builder();
+        for (int i = 0; i < 10000; i++) {
+            builder.put(FocusString.create("tracker" + i + ".com").reverse());
+        }
+        final Trie trie = builder.build();
+
+        final BloomFilter filter = BloomFilter.create(trie, 10);
+
+        final Random random = new Random(42);
+        int positives = 0;
+        for (int i = 0; i < 20000; i++) {
+            final String host = "site" + random.nextInt() + ".org";
+            assertEquals(Trie.NO_NODE, trie.findReversed(host));
+
+            if (filter.mightContainDomainOf(host)) {
+                filter.recordFalsePositive();
+                positives++;
+            }
+        }
+
+        final BloomFilter.Stats stats = filter.getStats();
+
+        // ~1% per probe with 10 bits per entry, and we probe twice per host ("org" and the full host)
+        assertTrue("Expected rate: " + stats.expectedFalsePositiveRate, stats.expectedFalsePositiveRate < 0.02);
+        assertTrue("Observed rate: " + stats.getObservedFalsePositiveRate(), stats.getObservedFalsePositiveRate() < 0.05);
+        assertEquals(positives, stats.falsePositives);
+        assertEquals(20000 - positives, stats.negatives);
+        assertEquals(10000 * 10 / 8, stats.sizeBytes, 8);
+    }
+
+    @Test
+    public void respectsDomainBoundaries() {
+        final Trie trie = new Trie.Builder()
+                .put(FocusString.create("bar.com").reverse())
+                .build();
+
+        // A big filter, so that false positives are practically impossible
+        final BloomFilter filter = BloomFilter.create(trie, 64);
+
+        assertTrue(filter.mightContainDomainOf("bar.com"));
+        assertTrue(filter.mightContainDomainOf("foo.bar.com"));
+        assertFalse(filter.mightContainDomainOf("foobar.com"));
+        assertFalse(filter.mightContainDomainOf("bar.com.evil"));
+        assertFalse(filter.mightContainDomainOf("com"));
+    }
+}
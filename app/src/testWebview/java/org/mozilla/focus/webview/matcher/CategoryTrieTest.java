@@ -0,0 +1,88 @@
+/* -*- Mode: Java; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package org.mozilla.focus.webview.matcher;
+
+import org.junit.Test;
+import org.mozilla.focus.webview.matcher.util.FocusString;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class CategoryTrieTest {
+
+    @Test
+    public void masksMatchPerCategoryLookups() {
+        final String[][] hosts = new String[][] {
+                { "ads.example.com", "both.com", "shared.org" },
+                { "tracker.example.com", "both.com" },
+                { "example.com" },
+                { "deep.shared.org" }
+        };
+
+        final Map<String, Trie.Builder> builders = new HashMap<>();
+        final Map<String, Trie> tries = new HashMap<>();
+        for (int i = 0; i < hosts.length; i++) {
+            final Trie.Builder builder = new Trie.Builder();
+            for (final String host : hosts[i]) {
+                builder.put(FocusString.create(host).reverse());
+            }
+            builders.put("category" + i, builder);
+            tries.put("category" + i, builder.build());
+        }
+
+        final CategoryTrie categories = CategoryTrie.build(builders);
+        assertEquals(Arrays.asList("category0", "category1", "category2", "category3"), categories.getNames());
+
+        final String[] queries = new String[] {
+                "ads.example.com", "www.ads.example.com", "tracker.example.com", "example.com",
+                "notexample.com", "both.com", "a.both.com", "shared.org", "deep.shared.org",
+                "x.deep.shared.org", "hared.org", "com", "", "mozilla.org"
+        };
+
+        // The merged trie must agree with separate lookups in every category
+        for (final String query : queries) {
+            int expected = 0;
+            for (final Map.Entry<String, Trie> entry : tries.entrySet()) {
+                if (entry.getValue().findReversed(query) != Trie.NO_NODE) {
+                    expected |= categories.getBit(entry.getKey());
+                }
+            }
+
+            assertEquals("Mask for " + query, expected, categories.getMask(query));
+        }
+
+        assertEquals(categories.getBit("category0") | categories.getBit("category1") | categories.getBit("category2"),
+                categories.getMask("www.ads.example.com") | categories.getMask("tracker.example.com"));
+    }
+
+    @Test
+    public void sharedSuffixesAreStoredOnce() {
+        final Map<String, Trie.Builder> builders = new HashMap<>();
+        builders.put("a", new Trie.Builder().put(FocusString.create("tracker.com").reverse()));
+        builders.put("b", new Trie.Builder().put(FocusString.create("tracker.com").reverse()));
+
+        final CategoryTrie categories = CategoryTrie.build(builders);
+
+        // One node per character, plus the root
+        assertEquals("tracker.com".length() + 1, categories.getTrie().getNodeCount());
+        assertEquals(categories.getBit("a") | categories.getBit("b"), categories.getMask("tracker.com"));
+        assertEquals(0, categories.getBit("c"));
+        assertNotEquals(0, categories.getBit("a"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTooManyCategories() {
+        final Map<String, Trie.Builder> builders = new HashMap<>();
+        for (int i = 0; i <= CategoryTrie.MAX_CATEGORIES; i++) {
+            builders.put("category" + i, new Trie.Builder());
+        }
+
+        CategoryTrie.build(builders);
+    }
+}
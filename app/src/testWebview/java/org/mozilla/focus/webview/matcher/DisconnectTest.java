@@ -5,6 +5,7 @@
 package org.mozilla.focus.webview.matcher;
 
 import android.content.SharedPreferences;
+import android.content.res.Resources;
 import android.net.Uri;
 import android.os.StrictMode;
 import android.preference.PreferenceManager;
@@ -17,6 +18,9 @@ import org.robolectric.RobolectricTestRunner;
 import org.robolectric.RuntimeEnvironment;
 import org.robolectric.annotation.Config;
 
+import java.io.IOException;
+import java.io.InputStream;
+
 import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertTrue;
 
@@ -124,4 +128,29 @@ public class DisconnectTest {
         assertFalse(matcher.matches(Uri.parse("http://facebook.fr"), Uri.parse("http://mozilla.org")));
         assertFalse(matcher.matches(Uri.parse("http://facebook.fr"), Uri.parse("http://facebook.com")));
     }
+
+    @Test
+    public void imageIsSmallerThanTheLists() throws IOException {
+        final Resources resources = RuntimeEnvironment.application.getResources();
+
+        final long imageSize = getSize(resources, R.raw.blocklists);
+        final long listSize = getSize(resources, R.raw.blocklist) +
+                getSize(resources, R.raw.google_mapping) +
+                getSize(resources, R.raw.entitylist);
+
+        assertTrue("Image: " + imageSize + " bytes, lists: " + listSize + " bytes", imageSize < listSize);
+    }
+
+    private static long getSize(final Resources resources, final int resource) throws IOException {
+        try (final InputStream stream = resources.openRawResource(resource)) {
+            final byte[] buffer = new byte[16384];
+
+            long size = 0;
+            int read;
+            while ((read = stream.read(buffer)) != -1) {
+                size += read;
+            }
+            return size;
+        }
+    }
 }
@@ -7,6 +7,7 @@ import org.junit.runner.RunWith;
 import org.mozilla.focus.webview.matcher.util.FocusString;
 import org.robolectric.RobolectricTestRunner;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
@@ -26,21 +27,23 @@ public class EntityListTest {
         final String fooCom = "foo.com";
         final String barCom = "bar.com";
 
-        final EntityList entityList = new EntityList();
-
         // We set up the following data and test that matches function as expected:
         // mozilla.org - allow all from foo.com
         // foo.mozilla.org - additionally allow from bar.com
         // Thus mozilla.org can only use foo.com, but foo.mozilla.org can use foo.com and bar.com
 
-        final Trie fooComTrie = Trie.createRootNode();
-        fooComTrie.put(FocusString.create(fooCom).reverse());
+        final Trie fooComTrie = new Trie.Builder()
+                .put(FocusString.create(fooCom).reverse())
+                .build();
 
-        final Trie barComTrie = Trie.createRootNode();
-        barComTrie.put(FocusString.create(barCom).reverse());
+        final Trie barComTrie = new Trie.Builder()
+                .put(FocusString.create(barCom).reverse())
+                .build();
 
-        entityList.putWhiteList(FocusString.create(mozillaOrg).reverse(), fooComTrie);
-        entityList.putWhiteList(FocusString.create(fooMozillaOrg).reverse(), barComTrie);
+        final EntityList entityList = new EntityList(new Trie.WhiteListTrie.Builder()
+                .putWhiteList(FocusString.create(mozillaOrg).reverse(), fooComTrie)
+                .putWhiteList(FocusString.create(fooMozillaOrg).reverse(), barComTrie)
+                .build());
 
         assertTrue(entityList.isWhiteListed(Uri.parse("http://" + mozillaOrg), Uri.parse("http://" + fooCom)));
         assertFalse(entityList.isWhiteListed(Uri.parse("http://" + mozillaOrg), Uri.parse("http://" + barCom)));
@@ -70,4 +73,31 @@ public class EntityListTest {
         assertFalse(entityList.isWhiteListed(Uri.parse("data:text/html;stuff"), Uri.parse("http://" + fooCom + "/somewhereElse/bla/bla")));
     }
 
-}
\ No newline at end of file
+    @Test
+    public void isWhiteListedDoesNotAllocate() {
+        final Trie whitelist = new Trie.Builder()
+                .put(FocusString.create("foo.com").reverse())
+                .build();
+
+        final EntityList entityList = new EntityList(new Trie.WhiteListTrie.Builder()
+                .putWhiteList(FocusString.create("mozilla.org").reverse(), whitelist)
+                .build());
+
+        final int[] whitelisted = new int[1];
+
+        final long bytes = Allocations.bytesPerInvocation(10000, new Runnable() {
+            @Override
+            public void run() {
+                if (entityList.isWhiteListed("www.mozilla.org", "cdn.foo.com")) {
+                    whitelisted[0]++;
+                }
+                if (entityList.isWhiteListed("example.com", "cdn.foo.com")) {
+                    whitelisted[0]++;
+                }
+            }
+        });
+
+        assertEquals("Entity list lookups must not allocate", 0, bytes);
+        assertTrue(whitelisted[0] > 0);
+    }
+}
@@ -0,0 +1,256 @@
+/* -*- Mode: Java; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package org.mozilla.focus.webview.matcher;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A minimal JMH style harness for the matcher benchmarks (see MatcherBenchmarkTest): operations
+ * are run for a number of warm-up iterations (whose results are discarded), and then for a number
+ * of measured iterations. Results are collected into a report that can be compared against the
+ * report of a previous run.
+ *
+ * Configuration (system properties):
+ * - matcher.benchmark.iterationMillis: Length of one iteration (default 1000).
+ * - matcher.benchmark.warmupIterations / matcher.benchmark.iterations: (default 3 / 5).
+ */
+/* package-private */ final class MatcherBenchmark {
+    /**
+     * A benchmarked operation: invocation is a running counter, e.g. to pick the next input.
+     */
+    interface Operation {
+        /**
+         * @return Anything derived from the result, so that the JIT can't eliminate the operation.
+         */
+        int run(long invocation);
+    }
+
+    private static final long ITERATION_MILLIS = Long.getLong("matcher.benchmark.iterationMillis", 1000);
+    private static final int WARMUP_ITERATIONS = Integer.getInteger("matcher.benchmark.warmupIterations", 3);
+    private static final int ITERATIONS = Integer.getInteger("matcher.benchmark.iterations", 5);
+
+    // Results of all operations end up here.
+    private static final AtomicLong SINK = new AtomicLong();
+
+    // Benchmark name -> metric -> value, in the order they were recorded.
+    private final Map<String, Map<String, Double>> results = new LinkedHashMap<>();
+
+    /**
+     * Measures the throughput of an operation, with the given number of threads running it
+     * concurrently. Records ops/s (over all threads) and ns/op (per thread).
+     */
+    void measureThroughput(final String name, final int threads, final Operation operation) throws InterruptedException {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            runIteration(threads, operation);
+        }
+
+        double operations = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            operations += runIteration(threads, operation);
+        }
+
+        final double seconds = ITERATIONS * ITERATION_MILLIS / 1000.0;
+        record(name, "ops/s", operations / seconds);
+        record(name, "ns/op", TimeUnit.SECONDS.toNanos(1) * seconds * threads / operations);
+    }
+
+    private static long runIteration(final int threadCount, final Operation operation) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicLong operations = new AtomicLong();
+
+        final List<Thread> threads = new ArrayList<>(threadCount);
+        for (int t = 0; t < threadCount; t++) {
+            // Threads start at different inputs, so that they don't just hit the same cache entries
+            final long offset = t * 7919L;
+
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+
+                    final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ITERATION_MILLIS);
+                    long invocations = 0;
+                    int sink = 0;
+
+                    // Check the clock in batches: it's not free either.
+                    while (System.nanoTime() < deadline) {
+                        for (int i = 0; i < 64; i++) {
+                            sink += operation.run(offset + invocations++);
+                        }
+                    }
+
+                    operations.addAndGet(invocations);
+                    SINK.addAndGet(sink);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        start.countDown();
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+
+        return operations.get();
+    }
+
+    /**
+     * Records the bytes allocated per invocation of an operation (after warming it up).
+     */
+    void measureAllocations(final String name, final int invocations, final Operation operation) {
+        final long[] invocation = new long[1];
+
+        final long bytes = Allocations.bytesPerInvocation(invocations, new Runnable() {
+            @Override
+            public void run() {
+                SINK.addAndGet(operation.run(invocation[0]++));
+            }
+        });
+
+        record(name, "bytes/op", bytes);
+    }
+
+    /**
+     * Records how long something takes to run once (on average over several runs), and how much
+     * memory the result retains.
+     */
+    <T> T measureLoad(final String name, final int runs, final Loader<T> loader) throws Exception {
+        T result = null;
+        long totalNanos = 0;
+        long totalRetained = 0;
+
+        for (int i = 0; i < runs; i++) {
+            // Don't keep the previous result alive while measuring this one
+            result = null;
+
+            final long heapBefore = usedHeapAfterGc();
+
+            final long start = System.nanoTime();
+            result = loader.load();
+            totalNanos += System.nanoTime() - start;
+
+            totalRetained += usedHeapAfterGc() - heapBefore;
+        }
+
+        record(name, "ms", totalNanos / 1e6 / runs);
+        record(name, "retainedKiB", totalRetained / 1024.0 / runs);
+
+        return result;
+    }
+
+    interface Loader<T> {
+        T load() throws Exception;
+    }
+
+    private static long usedHeapAfterGc() throws InterruptedException {
+        final Runtime runtime = Runtime.getRuntime();
+
+        // System.gc() is only a hint: repeat until the heap stops shrinking
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 10; i++) {
+            System.gc();
+            Thread.sleep(20);
+
+            final long current = runtime.totalMemory() - runtime.freeMemory();
+            if (current >= used) {
+                return current;
+            }
+            used = current;
+        }
+        return used;
+    }
+
+    void record(final String name, final String metric, final double value) {
+        Map<String, Double> metrics = results.get(name);
+        if (metrics == null) {
+            metrics = new LinkedHashMap<>();
+            results.put(name, metrics);
+        }
+        metrics.put(metric, value);
+    }
+
+    /**
+     * Writes the results as tab separated "benchmark metric value" lines: that's also the format
+     * that {@link #readReport(File)} reads baselines from.
+     */
+    void writeReport(final File file) throws IOException {
+        final File directory = file.getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+
+        try (final Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            for (final Map.Entry<String, Map<String, Double>> benchmark : results.entrySet()) {
+                for (final Map.Entry<String, Double> metric : benchmark.getValue().entrySet()) {
+                    writer.write(benchmark.getKey() + "\t" + metric.getKey() + "\t" + metric.getValue() + "\n");
+                }
+            }
+        }
+    }
+
+    static Map<String, Double> readReport(final File file) throws IOException {
+        final Map<String, Double> report = new LinkedHashMap<>();
+
+        try (final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] fields = line.split("\t");
+                if (fields.length == 3) {
+                    report.put(fields[0] + "\t" + fields[1], Double.parseDouble(fields[2]));
+                }
+            }
+        }
+
+        return report;
+    }
+
+    /**
+     * @param baseline A previous report to compare against, or null.
+     * @return A table of all results (and their change relative to the baseline).
+     */
+    String format(final Map<String, Double> baseline) {
+        final StringBuilder builder = new StringBuilder();
+
+        for (final Map.Entry<String, Map<String, Double>> benchmark : results.entrySet()) {
+            for (final Map.Entry<String, Double> metric : benchmark.getValue().entrySet()) {
+                builder.append(String.format(Locale.US, "%-40s %-12s %14.1f",
+                        benchmark.getKey(), metric.getKey(), metric.getValue()));
+
+                final Double previous = baseline != null
+                        ? baseline.get(benchmark.getKey() + "\t" + metric.getKey())
+                        : null;
+                if (previous != null && previous != 0) {
+                    builder.append(String.format(Locale.US, "   %+7.1f%% (baseline %.1f)",
+                            (metric.getValue() - previous) * 100 / previous, previous));
+                }
+
+                builder.append('\n');
+            }
+        }
+
+        return builder.toString();
+    }
+}
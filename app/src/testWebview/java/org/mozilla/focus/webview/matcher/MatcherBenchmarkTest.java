@@ -0,0 +1,214 @@
+/* -*- Mode: Java; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package org.mozilla.focus.webview.matcher;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.StrictMode;
+import android.preference.PreferenceManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mozilla.focus.R;
+import org.mozilla.focus.webview.matcher.util.FocusString;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.util.Locale;
+import java.util.Map;
+
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Benchmarks for the matcher, using the real lists. These are skipped unless requested:
+ *
+ *   ./gradlew testFocusX86DebugUnitTest --tests '*MatcherBenchmarkTest' -PmatcherBenchmark
+ *
+ * Results are printed, and written to build/reports/matcher-benchmark/report.tsv. Pass
+ * -PmatcherBenchmarkBaseline=path/to/report.tsv to compare against a previous run (e.g. a copy
+ * of the report from before an optimisation), and -PmatcherBenchmarkCorpus=path/to/corpus.tsv
+ * to use recorded page/resource pairs (see BenchmarkCorpus) instead of generated ones.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(packageName = "org.mozilla.focus")
+public class MatcherBenchmarkTest {
+    private static final int CORPUS_SIZE = 20000;
+
+    @Before
+    public void setup() {
+        assumeTrue("Benchmarks are only run with -PmatcherBenchmark", Boolean.getBoolean("matcher.benchmark"));
+    }
+
+    @After
+    public void cleanup() {
+        // See DisconnectTest
+        StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder().build());
+    }
+
+    @Test
+    public void run() throws Exception {
+        final Context context = RuntimeEnvironment.application;
+        final File lists = new File(System.getProperty("matcher.benchmark.lists", "../shavar-prod-lists"));
+        final String corpusFile = System.getProperty("matcher.benchmark.corpus");
+        final String baselineFile = System.getProperty("matcher.benchmark.baseline");
+        final File report = new File(System.getProperty("matcher.benchmark.report", "build/reports/matcher-benchmark/report.tsv"));
+
+        // Block everything the app blocks by default, and the categories that are disabled by default
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+                .putBoolean(context.getString(R.string.pref_key_privacy_block_ads), true)
+                .putBoolean(context.getString(R.string.pref_key_privacy_block_analytics), true)
+                .putBoolean(context.getString(R.string.pref_key_privacy_block_social), true)
+                .putBoolean(context.getString(R.string.pref_key_privacy_block_other), true)
+                .apply();
+
+        final BenchmarkCorpus corpus = corpusFile != null
+                ? BenchmarkCorpus.read(new File(corpusFile))
+                : BenchmarkCorpus.generate(new File(lists, "disconnect-blacklist.json"),
+                        new File(lists, "disconnect-entitylist.json"), CORPUS_SIZE);
+
+        final MatcherBenchmark benchmark = new MatcherBenchmark();
+
+        // Loading
+
+        benchmark.measureLoad("load.json", 3, new MatcherBenchmark.Loader<UrlMatcher>() {
+            @Override
+            public UrlMatcher load() {
+                return UrlMatcher.loadMatcher(context, R.raw.blocklist, new int[] { R.raw.google_mapping }, R.raw.entitylist);
+            }
+        });
+
+        final UrlMatcher matcher = benchmark.measureLoad("load.image", 3, new MatcherBenchmark.Loader<UrlMatcher>() {
+            @Override
+            public UrlMatcher load() {
+                return UrlMatcher.loadMatcher(context, R.raw.blocklists, R.raw.blocklists_additional);
+            }
+        });
+
+        // The images themselves, by storage: retainedKiB only counts the Java heap
+        BlocklistImage image = null;
+        for (final UrlMatcher.ImageStorage storage : UrlMatcher.ImageStorage.values()) {
+            final String suffix = storage.name().toLowerCase(Locale.US);
+
+            final BlocklistImage loaded = benchmark.measureLoad("load.disconnectImage." + suffix, 3, new MatcherBenchmark.Loader<BlocklistImage>() {
+                @Override
+                public BlocklistImage load() {
+                    return UrlMatcher.readImage(context, storage, R.raw.blocklists);
+                }
+            });
+            if (storage == UrlMatcher.ImageStorage.HEAP) {
+                image = loaded;
+            }
+
+            benchmark.measureLoad("load.additionalImage." + suffix, 3, new MatcherBenchmark.Loader<BlocklistImage>() {
+                @Override
+                public BlocklistImage load() {
+                    return UrlMatcher.readImage(context, storage, R.raw.blocklists_additional);
+                }
+            });
+        }
+
+        // Matching: URIs are parsed up front, parsing isn't what we're measuring
+
+        final int size = corpus.size();
+        final Uri[] pageUris = new Uri[size];
+        final Uri[] resourceUris = new Uri[size];
+        final PageContext[] pages = new PageContext[size];
+        final String[] resourceHosts = new String[size];
+
+        for (int i = 0; i < size; i++) {
+            pageUris[i] = Uri.parse(corpus.pages[i]);
+            resourceUris[i] = Uri.parse(corpus.resources[i]);
+            pages[i] = matcher.createPageContext(corpus.pages[i]);
+            resourceHosts[i] = resourceUris[i].getHost();
+        }
+
+        final MatcherBenchmark.Operation matches = new MatcherBenchmark.Operation() {
+            @Override
+            public int run(final long invocation) {
+                final int i = (int) (invocation % size);
+                return matcher.matches(resourceUris[i], pages[i]) ? 1 : 0;
+            }
+        };
+
+        benchmark.measureThroughput("matches.pageContext", 1, matches);
+        benchmark.measureThroughput("matches.pageContext.threads" + getThreadCount(), getThreadCount(), matches);
+        benchmark.measureAllocations("matches.pageContext", 100000, matches);
+
+        benchmark.measureThroughput("matches.pageUri", 1, new MatcherBenchmark.Operation() {
+            @Override
+            public int run(final long invocation) {
+                final int i = (int) (invocation % size);
+                return matcher.matches(resourceUris[i], pageUris[i]) ? 1 : 0;
+            }
+        });
+
+        benchmark.measureThroughput("createPageContext", 1, new MatcherBenchmark.Operation() {
+            @Override
+            public int run(final long invocation) {
+                final int i = (int) (invocation % size);
+                return matcher.createPageContext(corpus.pages[i]).whitelists.length;
+            }
+        });
+
+        // The building blocks
+
+        final Trie trie = image.categories.getTrie();
+        final MatcherBenchmark.Operation findReversed = new MatcherBenchmark.Operation() {
+            @Override
+            public int run(final long invocation) {
+                return trie.findReversed(resourceHosts[(int) (invocation % size)]);
+            }
+        };
+        benchmark.measureThroughput("trie.findReversed", 1, findReversed);
+        benchmark.measureAllocations("trie.findReversed", 100000, findReversed);
+
+        final Trie directTrie = UrlMatcher.readImage(context, UrlMatcher.ImageStorage.DIRECT, R.raw.blocklists).categories.getTrie();
+        benchmark.measureThroughput("trie.findReversed.direct", 1, new MatcherBenchmark.Operation() {
+            @Override
+            public int run(final long invocation) {
+                return directTrie.findReversed(resourceHosts[(int) (invocation % size)]);
+            }
+        });
+
+        final EntityList entityList = new EntityList(image.entityList);
+        benchmark.measureThroughput("entityList.getWhiteLists", 1, new MatcherBenchmark.Operation() {
+            @Override
+            public int run(final long invocation) {
+                return entityList.getWhiteLists(pageUris[(int) (invocation % size)].getHost()).length;
+            }
+        });
+
+        benchmark.measureThroughput("focusString.reverse", 1, new MatcherBenchmark.Operation() {
+            @Override
+            public int run(final long invocation) {
+                return FocusString.create(resourceHosts[(int) (invocation % size)]).reverse().charAt(0);
+            }
+        });
+
+        // Not a performance metric, but results are only comparable if this didn't change
+        int blocked = 0;
+        for (int i = 0; i < size; i++) {
+            blocked += matches.run(i);
+        }
+        benchmark.record("corpus", "blocked%", 100.0 * blocked / size);
+
+        final Map<String, Double> baseline = baselineFile != null
+                ? MatcherBenchmark.readReport(new File(baselineFile))
+                : null;
+
+        System.out.println(benchmark.format(baseline));
+        System.out.println(matcher.getStats());
+
+        benchmark.writeReport(report);
+    }
+
+    private static int getThreadCount() {
+        return Math.max(2, Runtime.getRuntime().availableProcessors());
+    }
+}
@@ -0,0 +1,136 @@
+/* -*- Mode: Java; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package org.mozilla.focus.webview.matcher;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PathRulesTest {
+
+    @Test
+    public void matchesRuleTypes() {
+        final PathRules rules = new PathRules.Builder()
+                .add(PathRules.Type.SUFFIX, ".woff", 1)
+                .add(PathRules.Type.SUFFIX, "/favicon.ico", 2)
+                .add(PathRules.Type.PREFIX, "/ads/", 4)
+                .add(PathRules.Type.SUBSTRING, "/collect?", 8)
+                .add(PathRules.Type.SUBSTRING, "utm_", 16)
+                .build();
+
+        assertEquals(5, rules.getRuleCount());
+        assertTrue(rules.needsQuery());
+
+        assertEquals(1, rules.match("/fonts/body.woff", null));
+        assertEquals(0, rules.match("/fonts/body.woff2", null));
+        assertEquals(2, rules.match("/favicon.ico", null));
+        assertEquals(2, rules.match("/static/favicon.ico", null));
+        assertEquals(0, rules.match("/favicon.ico.png", null));
+
+        assertEquals(4, rules.match("/ads/banner.png", null));
+        assertEquals(0, rules.match("/img/ads/banner.png", null));
+        assertEquals(0, rules.match("/ads", null));
+
+        // Substrings can span the path and the query
+        assertEquals(8, rules.match("/g/collect", "v=1"));
+        assertEquals(0, rules.match("/g/collect", null));
+        assertEquals(16, rules.match("/index.html", "utm_source=x"));
+        assertEquals(4 | 1, rules.match("/ads/font.woff", "a=b"));
+
+        assertEquals(0, rules.match("", null));
+        assertEquals(0, rules.match("/", ""));
+    }
+
+    @Test
+    public void overlappingLiterals() {
+        // Failure links must find literals that start inside another (partial) match
+        final PathRules rules = new PathRules.Builder()
+                .add(PathRules.Type.SUBSTRING, "abcd", 1)
+                .add(PathRules.Type.SUBSTRING, "bc", 2)
+                .add(PathRules.Type.SUFFIX, "cde", 4)
+                .build();
+
+        assertEquals(2, rules.match("/abce", null));
+        assertEquals(1 | 2, rules.match("/xabcdx", null));
+        assertEquals(1 | 2 | 4, rules.match("/abcde", null));
+        assertEquals(2 | 4, rules.match("/bcde", null));
+        assertEquals(0, rules.match("/acde/", null));
+    }
+
+    @Test
+    public void agreesWithStringMatching() {
+        final String[] literals = { "ab", "ba", "aab", "bb", "abab", "b" };
+        final PathRules.Type[] types = PathRules.Type.values();
+
+        final PathRules.Builder builder = new PathRules.Builder();
+        for (int i = 0; i < literals.length; i++) {
+            builder.add(types[i % types.length], literals[i], 1 << i);
+        }
+        final PathRules rules = builder.build();
+
+        final Random random = new Random(42);
+        for (int n = 0; n < 2000; n++) {
+            final StringBuilder path = new StringBuilder();
+            final int length = random.nextInt(8);
+            for (int i = 0; i < length; i++) {
+                path.append(random.nextBoolean() ? 'a' : 'b');
+            }
+
+            int expected = 0;
+            for (int i = 0; i < literals.length; i++) {
+                final String string = path.toString();
+                final boolean matches;
+                switch (types[i % types.length]) {
+                    case PREFIX:
+                        matches = string.startsWith(literals[i]);
+                        break;
+                    case SUFFIX:
+                        matches = string.endsWith(literals[i]);
+                        break;
+                    default:
+                        matches = string.contains(literals[i]);
+                        break;
+                }
+                if (matches) {
+                    expected |= 1 << i;
+                }
+            }
+
+            assertEquals(path.toString(), expected, rules.match(path.toString(), null));
+        }
+    }
+
+    @Test
+    public void emptyRules() {
+        final PathRules rules = new PathRules.Builder().build();
+
+        assertFalse(rules.needsQuery());
+        assertEquals(0, rules.match("/favicon.ico", "a=b"));
+    }
+
+    @Test
+    public void matchDoesNotAllocate() {
+        final PathRules rules = new PathRules.Builder()
+                .add(PathRules.Type.SUFFIX, ".woff", 1)
+                .add(PathRules.Type.SUBSTRING, "/collect?", 2)
+                .build();
+        final int[] matches = new int[1];
+
+        final long bytes = Allocations.bytesPerInvocation(10000, new Runnable() {
+            @Override
+            public void run() {
+                matches[0] += rules.match("/fonts/body.woff", null);
+                matches[0] += rules.match("/g/collect", "v=1&tid=UA-1");
+            }
+        });
+
+        assertEquals("Path rule lookups must not allocate", 0, bytes);
+        assertTrue(matches[0] > 0);
+    }
+}
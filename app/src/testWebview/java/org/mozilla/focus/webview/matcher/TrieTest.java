@@ -7,48 +7,189 @@ import org.mozilla.focus.webview.matcher.util.FocusString;
 import org.robolectric.RobolectricTestRunner;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
-import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 @RunWith(RobolectricTestRunner.class)
 public class TrieTest {
 
     @Test
     public void findNode() throws Exception {
-        final Trie trie = Trie.createRootNode();
+        assertEquals(Trie.NO_NODE, new Trie.Builder().build().findNode(FocusString.create("hello")));
 
-        assertNull(trie.findNode(FocusString.create("hello")));
+        final Trie.Builder builder = new Trie.Builder();
+        builder.put(FocusString.create("hello"));
 
-        final Trie putNode = trie.put(FocusString.create("hello"));
-        final Trie foundNode = trie.findNode(FocusString.create("hello"));
+        Trie trie = builder.build();
+        final int foundNode = trie.findNode(FocusString.create("hello"));
 
-        assertNotNull(putNode);
-        assertNotNull(foundNode);
-        assertEquals(putNode, foundNode);
+        assertNotEquals(Trie.NO_NODE, foundNode);
+        assertTrue(trie.isTerminal(foundNode));
 
         // Substring matching: doesn't happen (except for subdomains, we test those later)
-        assertNull(trie.findNode(FocusString.create("hell")));
-        assertNull(trie.findNode(FocusString.create("hellop")));
+        assertEquals(Trie.NO_NODE, trie.findNode(FocusString.create("hell")));
+        assertEquals(Trie.NO_NODE, trie.findNode(FocusString.create("hellop")));
 
-        trie.put(FocusString.create("hellohello"));
+        builder.put(FocusString.create("hellohello"));
+        trie = builder.build();
 
         // Ensure both old and new overlapping strings can still be found
-        assertNotNull(trie.findNode(FocusString.create("hello")));
-        assertNotNull(trie.findNode(FocusString.create("hellohello")));
+        assertNotEquals(Trie.NO_NODE, trie.findNode(FocusString.create("hello")));
+        assertNotEquals(Trie.NO_NODE, trie.findNode(FocusString.create("hellohello")));
 
         // These still don't match:
-        assertNull(trie.findNode(FocusString.create("hell")));
-        assertNull(trie.findNode(FocusString.create("hellop")));
+        assertEquals(Trie.NO_NODE, trie.findNode(FocusString.create("hell")));
+        assertEquals(Trie.NO_NODE, trie.findNode(FocusString.create("hellop")));
 
         // Domain specific / partial domain tests:
-        trie.put(FocusString.create("foo.com").reverse());
+        builder.put(FocusString.create("foo.com").reverse());
+        trie = builder.build();
 
         // Domain and subdomain can be found
-        assertNotNull(trie.findNode(FocusString.create("foo.com").reverse()));
-        assertNotNull(trie.findNode(FocusString.create("bar.foo.com").reverse()));
+        assertNotEquals(Trie.NO_NODE, trie.findNode(FocusString.create("foo.com").reverse()));
+        assertNotEquals(Trie.NO_NODE, trie.findNode(FocusString.create("bar.foo.com").reverse()));
         // But other domains with some overlap don't match
-        assertNull(trie.findNode(FocusString.create("bar-foo.com").reverse()));
-        assertNull(trie.findNode(FocusString.create("oo.com").reverse()));
+        assertEquals(Trie.NO_NODE, trie.findNode(FocusString.create("bar-foo.com").reverse()));
+        assertEquals(Trie.NO_NODE, trie.findNode(FocusString.create("oo.com").reverse()));
+    }
+
+    @Test
+    public void packedLayout() {
+        final Trie trie = new Trie.Builder()
+                .put(FocusString.create("ab"))
+                .put(FocusString.create("ac"))
+                .put(FocusString.create("abd"))
+                .build();
+
+        // One node per distinct prefix: root, a, ab - and one shared leaf for ac and abd
+        assertEquals(4, trie.getNodeCount());
+        assertEquals(3, trie.getTerminalCount());
+
+        final int a = trie.getChild(Trie.ROOT, 'a');
+        assertNotEquals(Trie.NO_NODE, a);
+        assertFalse(trie.isTerminal(a));
+
+        final int ab = trie.getChild(a, 'b');
+        assertTrue(trie.isTerminal(ab));
+        assertTrue(trie.isTerminal(trie.getChild(a, 'c')));
+        assertTrue(trie.isTerminal(trie.getChild(ab, 'd')));
+
+        assertEquals(Trie.NO_NODE, trie.getChild(a, 'z'));
+        assertEquals(Trie.NO_NODE, trie.getChild(Trie.ROOT, 'b'));
+    }
+
+    @Test
+    public void findReversed() {
+        final Trie trie = new Trie.Builder()
+                .put(FocusString.create("foo.com").reverse())
+                .put(FocusString.create("hello"))
+                .build();
+
+        final String[] hosts = new String[] {
+                "foo.com", "bar.foo.com", "bar-foo.com", "oo.com", "com", "", "olleh", "x.olleh", "xolleh"
+        };
+
+        for (final String host : hosts) {
+            assertEquals("findReversed() must be equivalent to findNode() on the revhost: " + host,
+                    trie.findNode(FocusString.create(host).reverse()), trie.findReversed(host));
+        }
+
+        assertNotEquals(Trie.NO_NODE, trie.findReversed("bar.foo.com"));
+        assertEquals(Trie.NO_NODE, trie.findReversed("bar-foo.com"));
+    }
+
+    @Test
+    public void findReversedDoesNotAllocate() {
+        final Trie trie = new Trie.Builder()
+                .put(FocusString.create("foo.com").reverse())
+                .put(FocusString.create("tracker.org").reverse())
+                .build();
+
+        final String[] hosts = new String[] { "www.foo.com", "bar-foo.com", "example.org", "a.b.tracker.org" };
+        final int[] matches = new int[1];
+
+        final long bytes = Allocations.bytesPerInvocation(10000, new Runnable() {
+            @Override
+            public void run() {
+                for (final String host : hosts) {
+                    if (trie.findReversed(host) != Trie.NO_NODE) {
+                        matches[0]++;
+                    }
+                }
+            }
+        });
+
+        assertEquals("Trie lookups must not allocate", 0, bytes);
+        assertTrue(matches[0] > 0);
+    }
+
+    @Test
+    public void equivalentSubtreesAreShared() {
+        final String[] hosts = new String[] {
+                "cdn.foo.com", "cdn.bar.com", "cdn.foo.net", "foo.net", "static.bar.com", "static.foo.org"
+        };
+
+        final Trie.Builder builder = new Trie.Builder();
+        for (final String host : hosts) {
+            builder.put(FocusString.create(host).reverse());
+        }
+        final Trie trie = builder.build();
+
+        // "cdn." below bar.com and foo.com are shared, but not below foo.net: foo.net is stored too
+        assertEquals(hosts.length, trie.getTerminalCount());
+        assertEquals(trie.findReversed("cdn.foo.com"), trie.findReversed("cdn.bar.com"));
+        assertEquals(trie.findReversed("static.bar.com"), trie.findReversed("static.foo.org"));
+
+        // Domain boundaries still work: foo.net matches before we get to the shared part
+        assertEquals(trie.findReversed("foo.net"), trie.findReversed("cdn.foo.net"));
+        assertNotEquals(Trie.NO_NODE, trie.findReversed("www.cdn.bar.com"));
+        assertEquals(Trie.NO_NODE, trie.findReversed("xcdn.bar.com"));
+        assertEquals(Trie.NO_NODE, trie.findReversed("cdn.baz.com"));
+        assertEquals(Trie.NO_NODE, trie.findReversed("bar.com"));
+    }
+
+    @Test
+    public void nodesWithDifferentValuesAreNotShared() {
+        final Trie trie = new Trie.Builder()
+                .putAll(new Trie.Builder().put(FocusString.create("ads.foo.com").reverse()), 1)
+                .putAll(new Trie.Builder().put(FocusString.create("ads.bar.com").reverse()), 2)
+                .putAll(new Trie.Builder().put(FocusString.create("ads.baz.com").reverse()), 2)
+                .build();
+
+        assertEquals(1, trie.collectReversed("ads.foo.com"));
+        assertEquals(2, trie.collectReversed("ads.bar.com"));
+        assertEquals(2, trie.collectReversed("www.ads.baz.com"));
+        assertEquals(trie.findReversed("ads.bar.com"), trie.findReversed("ads.baz.com"));
+        assertNotEquals(trie.findReversed("ads.foo.com"), trie.findReversed("ads.bar.com"));
+    }
+
+    @Test
+    public void removeDominated() {
+        final Trie.Builder builder = new Trie.Builder()
+                .putAll(new Trie.Builder()
+                        .put(FocusString.create("bar.com").reverse())
+                        .put(FocusString.create("foo.bar.com").reverse())
+                        .put(FocusString.create("a.b.bar.com").reverse())
+                        .put(FocusString.create("foo-bar.com").reverse())
+                        .put(FocusString.create("bar.com.au").reverse()), 1)
+                .putAll(new Trie.Builder()
+                        .put(FocusString.create("ads.bar.com").reverse()), 2);
+
+        // foo.bar.com and a.b.bar.com. ads.bar.com has a bit that bar.com doesn't.
+        assertEquals(2, builder.removeDominated());
+        assertEquals(4, builder.size());
+
+        final Trie trie = builder.build();
+        assertEquals(1, trie.collectReversed("foo.bar.com"));
+        assertEquals(1, trie.collectReversed("a.b.bar.com"));
+        assertEquals(3, trie.collectReversed("www.ads.bar.com"));
+        assertEquals(1, trie.collectReversed("foo-bar.com"));
+        assertEquals(1, trie.collectReversed("bar.com.au"));
+        assertEquals(0, trie.collectReversed("com"));
+
+        assertEquals(0, builder.removeDominated());
     }
 
     @Test
@@ -56,22 +197,35 @@ public class TrieTest {
         final WhiteListTrie trie;
 
         {
-            final Trie whitelist = Trie.createRootNode();
-
-            whitelist.put(FocusString.create("abc"));
+            final Trie whitelist = new Trie.Builder()
+                    .put(FocusString.create("abc"))
+                    .build();
 
-            trie = WhiteListTrie.createRootNode();
-            trie.putWhiteList(FocusString.create("def"), whitelist);
+            trie = new WhiteListTrie.Builder()
+                    .putWhiteList(FocusString.create("def"), whitelist)
+                    .build();
         }
 
-        assertNull(trie.findNode(FocusString.create("abc")));
+        assertEquals(Trie.NO_NODE, trie.findNode(FocusString.create("abc")));
 
         // In practice EntityList uses it's own search in order to cover all possible matching notes
         // (e.g. in case we have separate whitelists for mozilla.org and foo.mozilla.org), however
         // we don't need to test that here yet.
-        final WhiteListTrie foundWhitelist = (WhiteListTrie) trie.findNode(FocusString.create("def"));
+        final int foundNode = trie.findNode(FocusString.create("def"));
+        assertNotEquals(Trie.NO_NODE, foundNode);
+
+        final Trie foundWhitelist = trie.getWhiteList(foundNode);
         assertNotNull(foundWhitelist);
 
-        assertNotNull(foundWhitelist.whitelist.findNode(FocusString.create("abc")));
+        assertNotEquals(Trie.NO_NODE, foundWhitelist.findNode(FocusString.create("abc")));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testWhiteListTrieRejectsDuplicates() {
+        final Trie whitelist = new Trie.Builder().build();
+
+        new WhiteListTrie.Builder()
+                .putWhiteList(FocusString.create("def"), whitelist)
+                .putWhiteList(FocusString.create("def"), whitelist);
     }
-}
\ No newline at end of file
+}
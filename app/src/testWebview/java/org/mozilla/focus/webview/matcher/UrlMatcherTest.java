@@ -6,19 +6,37 @@ package org.mozilla.focus.webview.matcher;
 
 import android.content.SharedPreferences;
 import android.net.Uri;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 
 import junit.framework.Assert;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mozilla.focus.R;
 import org.mozilla.focus.webview.matcher.util.FocusString;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.RuntimeEnvironment;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
@@ -60,7 +78,7 @@ public class UrlMatcherTest {
         // (This is an important test, since we do some caching in UrlMatcher, and we need to make
         // sure that the caching doesn't break when categories are enabled/disabled at runtime.)
 
-        final Map<String, Trie> categories = new HashMap<>();
+        final Map<String, Trie.Builder> categories = new HashMap<>();
         final Map<String, String> categoryPrefMap = new HashMap<>();
 
         // Number of categories we want to test with.
@@ -74,8 +92,8 @@ public class UrlMatcherTest {
             for (int i = 0; i < CAT_COUNT; i++) {
                 final String domain = "category" + i + ".com";
 
-                final Trie trie = Trie.createRootNode();
-                trie.put(FocusString.create(domain).reverse());
+                final Trie.Builder trie = new Trie.Builder()
+                        .put(FocusString.create(domain).reverse());
 
                 final String categoryName = "category" + i;
                 categories.put(categoryName, trie);
@@ -87,7 +105,7 @@ public class UrlMatcherTest {
             editor.apply();
         }
 
-        final UrlMatcher matcher = new UrlMatcher(RuntimeEnvironment.application, categoryPrefMap, categories, null);
+        final UrlMatcher matcher = new UrlMatcher(RuntimeEnvironment.application, categoryPrefMap, CategoryTrie.build(categories), null);
 
         // We can test every permutation by iterating over every value of a 4-bit integer (each bit
         // indicates whether a given category is enabled or disabled).
@@ -136,5 +154,553 @@ public class UrlMatcherTest {
         }
     }
 
+    @Test
+    public void matchesAllAgreesWithMatches() {
+        final UrlMatcher matcher = new UrlMatcher(new String[] {
+                "tracker.com"
+        });
+
+        final String[] hosts = { "tracker.com", "cdn.tracker.com", "www.mozilla.org", "example.com" };
+        final List<Uri> resources = new ArrayList<>();
+        for (int i = 0; i < 3 * UrlMatcher.MIN_BATCH_CHUNK_SIZE + 7; i++) {
+            resources.add(Uri.parse("http://" + hosts[i % hosts.length] + "/resource?cb=" + i));
+        }
+
+        final PageContext page = matcher.createPageContext("http://www.mozilla.org");
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final boolean[] sequential = matcher.matchesAll("http://www.mozilla.org", resources);
+            final boolean[] concurrent = matcher.matchesAll(page, resources, executor);
+
+            assertEquals(resources.size(), sequential.length);
+            for (int i = 0; i < resources.size(); i++) {
+                final boolean expected = matcher.matches(resources.get(i), page);
+                assertEquals(resources.get(i).toString(), expected, sequential[i]);
+                assertEquals(resources.get(i).toString(), expected, concurrent[i]);
+            }
+
+            assertTrue(sequential[0]);
+            assertTrue(sequential[1]);
+            assertFalse(sequential[2]);
+            assertFalse(sequential[3]);
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(0, matcher.matchesAll(page, new ArrayList<Uri>(), executor).length);
+    }
+
+    @Test
+    public void pathRulesBlockLikeTheirCategory() {
+        final Map<String, Trie.Builder> categories = new HashMap<>();
+        final Map<String, String> categoryPrefMap = new HashMap<>();
+
+        categories.put("analytics", new Trie.Builder()
+                .put(FocusString.create("tracker.com").reverse()));
+        categoryPrefMap.put("analytics", "analytics");
+
+        final UrlMatcher matcher = new UrlMatcher(RuntimeEnvironment.application, categoryPrefMap, CategoryTrie.build(categories), null);
+        final PageContext page = matcher.createPageContext("http://www.mozilla.org");
+
+        assertFalse(matcher.matches(Uri.parse("http://metrics.example.com/g/collect?v=1"), page));
+
+        matcher.setPathRules(Collections.singletonList(
+                new PathRules.Rule(PathRules.Type.SUBSTRING, "/collect?", "analytics")));
+
+        assertTrue(matcher.matches(Uri.parse("http://metrics.example.com/g/collect?v=1"), page));
+        assertFalse(matcher.matches(Uri.parse("http://metrics.example.com/g/collect"), page));
+        // First party resources are still allowed
+        assertFalse(matcher.matches(Uri.parse("http://www.mozilla.org/g/collect?v=1"), page));
+        // Webfont rules are still there
+        assertTrue(matcher.matches(Uri.parse("http://example.com/font.woff"), page));
+
+        matcher.setCategoryEnabled("analytics", false);
+        assertFalse(matcher.matches(Uri.parse("http://metrics.example.com/g/collect?v=1"), page));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void pathRulesRequireKnownCategories() {
+        new UrlMatcher(new String[] { "tracker.com" }).setPathRules(Collections.singletonList(
+                new PathRules.Rule(PathRules.Type.SUFFIX, ".gif", "unknown")));
+    }
+
+    @Test
+    public void verdictsAreCachedPerHost() {
+        final Map<String, Trie.Builder> categories = new HashMap<>();
+        final Map<String, String> categoryPrefMap = new HashMap<>();
 
-}
\ No newline at end of file
+        categories.put("tracking", new Trie.Builder()
+                .put(FocusString.create("tracker.com").reverse()));
+        categoryPrefMap.put("tracking", "tracking");
+
+        final UrlMatcher matcher = new UrlMatcher(RuntimeEnvironment.application, categoryPrefMap, CategoryTrie.build(categories), null);
+        final Uri page = Uri.parse("http://www.mozilla.org");
+
+        // Cache busting query strings must not defeat the cache
+        for (int i = 0; i < 100; i++) {
+            assertTrue(matcher.matches(Uri.parse("http://tracker.com/pixel.gif?cb=" + i), page));
+            assertFalse(matcher.matches(Uri.parse("http://example.com/image.png?cb=" + i), page));
+        }
+
+        VerdictCache.Stats stats = matcher.getHostCacheStats();
+        assertEquals(2, stats.misses);
+        assertEquals(198, stats.hits);
+        assertEquals(2, stats.entries);
+
+        // Toggling categories reuses the cached category masks
+        matcher.setCategoryEnabled("tracking", false);
+        assertFalse(matcher.matches(Uri.parse("http://tracker.com/pixel.gif?cb=100"), page));
+        matcher.setCategoryEnabled("tracking", true);
+        assertTrue(matcher.matches(Uri.parse("http://tracker.com/pixel.gif?cb=101"), page));
+
+        stats = matcher.getHostCacheStats();
+        assertEquals(2, stats.misses);
+        assertEquals(200, stats.hits);
+    }
+
+    @Test
+    public void prefilterDoesNotChangeVerdicts() {
+        final UrlMatcher matcher = new UrlMatcher(new String[] {
+                "bcd.random"
+        });
+        assertEquals(null, matcher.getPrefilterStats());
+
+        matcher.setPrefilter(UrlMatcher.PREFILTER_BITS_PER_ENTRY_DEFAULT);
+
+        final Uri page = Uri.parse("http://mozilla.org");
+        assertTrue(matcher.matches(Uri.parse("http://www.bcd.random/something"), page));
+        assertFalse(matcher.matches(Uri.parse("http://other.random/something"), page));
+        assertFalse(matcher.matches(Uri.parse("http://abcd.random/something"), page));
+
+        final BloomFilter.Stats stats = matcher.getPrefilterStats();
+        assertEquals(1, stats.entries);
+        assertEquals(3, stats.queries);
+        assertEquals(2, stats.negatives + stats.falsePositives);
+
+        matcher.setPrefilter(0);
+        assertEquals(null, matcher.getPrefilterStats());
+        assertTrue(matcher.matches(Uri.parse("http://www.bcd.random/something"), page));
+    }
+
+    @Test
+    public void pageContextResolvesEntityWhitelists() {
+        final Map<String, Trie.Builder> categories = new HashMap<>();
+        final Map<String, String> categoryPrefMap = new HashMap<>();
+
+        categories.put("tracking", new Trie.Builder()
+                .put(FocusString.create("tracker.com").reverse())
+                .put(FocusString.create("cdn-tracker.net").reverse()));
+        categoryPrefMap.put("tracking", "tracking");
+
+        final EntityList entityList = new EntityList(new Trie.WhiteListTrie.Builder()
+                .putWhiteList(FocusString.create("tracker.com").reverse(), new Trie.Builder()
+                        .put(FocusString.create("cdn-tracker.net").reverse())
+                        .build())
+                .build());
+
+        final UrlMatcher matcher = new UrlMatcher(RuntimeEnvironment.application, categoryPrefMap, CategoryTrie.build(categories), entityList);
+
+        final String[] pages = new String[] {
+                "http://tracker.com", "https://www.tracker.com/page", "http://mozilla.org", "data:text/html;stuff"
+        };
+        final String[] resources = new String[] {
+                "http://tracker.com/a.js", "https://img.cdn-tracker.net/b.png", "http://example.com/c.js"
+        };
+
+        for (final String pageURL : pages) {
+            final PageContext page = matcher.createPageContext(pageURL);
+            assertEquals(pageURL, page.getUrl());
+
+            for (final String resource : resources) {
+                assertEquals(pageURL + " " + resource,
+                        entityList.isWhiteListed(Uri.parse(pageURL), Uri.parse(resource)),
+                        page.whitelists.length > 0 && page.isWhiteListed(Uri.parse(resource).getHost()));
+            }
+        }
+
+        final PageContext page = matcher.createPageContext("https://www.tracker.com/page");
+        assertFalse(matcher.matches(Uri.parse("http://www.tracker.com/a.js"), page));
+        assertFalse(matcher.matches(Uri.parse("https://img.cdn-tracker.net/b.png"), page));
+        assertTrue(matcher.matches(Uri.parse("https://img.cdn-tracker.net/b.png"), matcher.createPageContext("http://mozilla.org")));
+    }
+
+    @Test
+    public void additionalSegmentsAreLoadedWhenEnabled() {
+        final Map<String, String> categoryPrefMap = new HashMap<>();
+        categoryPrefMap.put("core", "core");
+        categoryPrefMap.put("extra1", "extra1");
+        categoryPrefMap.put("extra2", "extra2");
+
+        final SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(RuntimeEnvironment.application);
+        preferences.edit()
+                .putBoolean("core", true)
+                .putBoolean("extra1", false)
+                .putBoolean("extra2", false)
+                .apply();
+
+        final Map<String, Trie.Builder> core = new HashMap<>();
+        core.put("core", new Trie.Builder()
+                .put(FocusString.create("tracker.com").reverse()));
+
+        final Map<String, Trie.Builder> extra = new HashMap<>();
+        extra.put("extra1", new Trie.Builder()
+                .put(FocusString.create("tracker.com").reverse())
+                .put(FocusString.create("ads.net").reverse()));
+        extra.put("extra2", new Trie.Builder()
+                .put(FocusString.create("annoying.org").reverse()));
+
+        final int[] loads = new int[1];
+        final UrlMatcher.SegmentLoader loader = new UrlMatcher.SegmentLoader() {
+            @Override
+            public CategoryTrie load() {
+                loads[0]++;
+                return CategoryTrie.build(extra);
+            }
+        };
+
+        final Map<String, UrlMatcher.SegmentLoader> loaders = new HashMap<>();
+        loaders.put("extra1", loader);
+        loaders.put("extra2", loader);
+
+        // Loads are queued here, and then run by the test
+        final List<Runnable> queuedLoads = new ArrayList<>();
+        final Executor executor = new Executor() {
+            @Override
+            public void execute(final Runnable runnable) {
+                queuedLoads.add(runnable);
+            }
+        };
+
+        final UrlMatcher matcher = new UrlMatcher(RuntimeEnvironment.application, categoryPrefMap,
+                CategoryTrie.build(core), loaders, null, UrlMatcher.DEFAULT_CACHE_BUDGET_BYTES, executor);
+        final Uri page = Uri.parse("http://mozilla.org");
+
+        assertEquals(0, loads[0]);
+        assertEquals(1, matcher.getCategories().size());
+        assertTrue(matcher.matches(Uri.parse("http://tracker.com/a.js"), page));
+        assertFalse(matcher.matches(Uri.parse("http://ads.net/a.js"), page));
+
+        preferences.edit().putBoolean("extra1", true).apply();
+
+        // Nothing is blocked by extra1 until it has been loaded
+        assertEquals(1, queuedLoads.size());
+        assertFalse(matcher.matches(Uri.parse("http://ads.net/a.js"), page));
+
+        // Toggling the category again must not queue another load
+        preferences.edit().putBoolean("extra1", false).apply();
+        preferences.edit().putBoolean("extra1", true).apply();
+        assertEquals(1, queuedLoads.size());
+
+        queuedLoads.remove(0).run();
+
+        assertEquals(1, loads[0]);
+        assertEquals(3, matcher.getCategories().size());
+        assertTrue(matcher.matches(Uri.parse("http://ads.net/a.js"), page));
+        assertFalse(matcher.matches(Uri.parse("http://annoying.org/a.js"), page));
+
+        // Already loaded together with extra1
+        preferences.edit().putBoolean("extra2", true).apply();
+        assertEquals(1, loads[0]);
+        assertTrue(matcher.matches(Uri.parse("http://annoying.org/a.js"), page));
+
+        // Disabling core must not affect hosts that are also contained in another category
+        preferences.edit().putBoolean("core", false).apply();
+        assertTrue(matcher.matches(Uri.parse("http://tracker.com/a.js"), page));
+        preferences.edit().putBoolean("extra1", false).apply();
+        assertFalse(matcher.matches(Uri.parse("http://tracker.com/a.js"), page));
+
+        // extra2 is still enabled, so nothing can be released yet
+        final long now = SystemClock.elapsedRealtime();
+        matcher.releaseUnusedSegments(now + UrlMatcher.SEGMENT_RELEASE_DELAY_MS);
+        assertEquals(3, matcher.getCategories().size());
+
+        preferences.edit().putBoolean("extra2", false).apply();
+        matcher.releaseUnusedSegments(now + UrlMatcher.SEGMENT_RELEASE_DELAY_MS / 2);
+        assertEquals(3, matcher.getCategories().size());
+        matcher.releaseUnusedSegments(now + UrlMatcher.SEGMENT_RELEASE_DELAY_MS);
+        assertEquals(1, matcher.getCategories().size());
+
+        // Released segments are loaded again once needed
+        preferences.edit().putBoolean("extra2", true).apply();
+        assertEquals(1, queuedLoads.size());
+        queuedLoads.remove(0).run();
+
+        assertEquals(2, loads[0]);
+        assertTrue(matcher.matches(Uri.parse("http://annoying.org/a.js"), page));
+    }
+
+    @Test
+    public void loadedSegmentsAreNotHiddenByConcurrentLookups() throws Exception {
+        final Map<String, String> categoryPrefMap = new HashMap<>();
+        categoryPrefMap.put("core", "core");
+        categoryPrefMap.put("extra", "extra");
+
+        final SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(RuntimeEnvironment.application);
+        preferences.edit()
+                .putBoolean("core", true)
+                .putBoolean("extra", false)
+                .apply();
+
+        final Map<String, Trie.Builder> core = new HashMap<>();
+        core.put("core", new Trie.Builder()
+                .put(FocusString.create("tracker.com").reverse()));
+
+        final Map<String, Trie.Builder> extra = new HashMap<>();
+        extra.put("extra", new Trie.Builder()
+                .put(FocusString.create("ads.net").reverse()));
+
+        final Map<String, UrlMatcher.SegmentLoader> loaders = new HashMap<>();
+        loaders.put("extra", new UrlMatcher.SegmentLoader() {
+            @Override
+            public CategoryTrie load() {
+                return CategoryTrie.build(extra);
+            }
+        });
+
+        final List<Runnable> queuedLoads = Collections.synchronizedList(new ArrayList<Runnable>());
+        final Executor executor = new Executor() {
+            @Override
+            public void execute(final Runnable runnable) {
+                queuedLoads.add(runnable);
+            }
+        };
+
+        final ExecutorService lookups = Executors.newFixedThreadPool(4);
+        try {
+            for (int i = 0; i < 50; i++) {
+                final UrlMatcher matcher = new UrlMatcher(RuntimeEnvironment.application, categoryPrefMap,
+                        CategoryTrie.build(core), loaders, null, UrlMatcher.DEFAULT_CACHE_BUDGET_BYTES, executor);
+                final PageContext page = matcher.createPageContext("http://mozilla.org");
+
+                preferences.edit().putBoolean("extra", true).apply();
+                assertEquals(1, queuedLoads.size());
+
+                // The segment is added while other threads keep looking up (and caching) its hosts:
+                // every lookup is a cache miss, so some of them race with the segment change.
+                final AtomicBoolean loaded = new AtomicBoolean();
+                final List<Future<Integer>> lookupCounts = new ArrayList<>();
+                for (int t = 0; t < 4; t++) {
+                    final int thread = t;
+                    lookupCounts.add(lookups.submit(new Callable<Integer>() {
+                        @Override
+                        public Integer call() {
+                            int count = 0;
+                            while (!loaded.get()) {
+                                matcher.matches(Uri.parse("http://t" + thread + "-" + count + ".ads.net/a.js"), page);
+                                count++;
+                            }
+                            return count;
+                        }
+                    }));
+                }
+
+                Thread.sleep(5);
+                queuedLoads.remove(0).run();
+                loaded.set(true);
+
+                for (int t = 0; t < lookupCounts.size(); t++) {
+                    final int count = lookupCounts.get(t).get();
+                    for (int j = 0; j < count; j++) {
+                        assertTrue(matcher.matches(Uri.parse("http://t" + t + "-" + j + ".ads.net/a.js"), page));
+                    }
+                }
+
+                preferences.edit().putBoolean("extra", false).apply();
+            }
+        } finally {
+            lookups.shutdownNow();
+        }
+    }
+
+    @Test
+    public void prefilterIsRebuiltWhenSegmentsChange() {
+        final Map<String, String> categoryPrefMap = new HashMap<>();
+        categoryPrefMap.put("core", "core");
+        categoryPrefMap.put("extra", "extra");
+
+        final SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(RuntimeEnvironment.application);
+        preferences.edit()
+                .putBoolean("core", true)
+                .putBoolean("extra", false)
+                .apply();
+
+        final Map<String, Trie.Builder> core = new HashMap<>();
+        core.put("core", new Trie.Builder()
+                .put(FocusString.create("tracker.com").reverse()));
+
+        final Map<String, Trie.Builder> extra = new HashMap<>();
+        extra.put("extra", new Trie.Builder()
+                .put(FocusString.create("ads.net").reverse()));
+
+        final Map<String, UrlMatcher.SegmentLoader> loaders = new HashMap<>();
+        loaders.put("extra", new UrlMatcher.SegmentLoader() {
+            @Override
+            public CategoryTrie load() {
+                return CategoryTrie.build(extra);
+            }
+        });
+
+        final List<Runnable> queued = new ArrayList<>();
+        final Executor executor = new Executor() {
+            @Override
+            public void execute(final Runnable runnable) {
+                queued.add(runnable);
+            }
+        };
+
+        final UrlMatcher matcher = new UrlMatcher(RuntimeEnvironment.application, categoryPrefMap,
+                CategoryTrie.build(core), loaders, null, UrlMatcher.DEFAULT_CACHE_BUDGET_BYTES, executor);
+        matcher.setPrefilter(UrlMatcher.PREFILTER_BITS_PER_ENTRY_DEFAULT);
+        assertEquals(1, matcher.getPrefilterStats().entries);
+
+        final Uri page = Uri.parse("http://mozilla.org");
+        preferences.edit().putBoolean("extra", true).apply();
+        queued.remove(0).run();
+
+        // The old filter is dropped with the old segments, the new one is built on the executor
+        assertEquals(null, matcher.getPrefilterStats());
+        assertTrue(matcher.matches(Uri.parse("http://ads.net/a.js"), page));
+        assertEquals(1, queued.size());
+
+        queued.remove(0).run();
+        assertEquals(2, matcher.getPrefilterStats().entries);
+        assertTrue(matcher.matches(Uri.parse("http://ads.net/a.js"), page));
+        assertTrue(matcher.matches(Uri.parse("http://tracker.com/a.js"), page));
+    }
+
+    @Test
+    public void matchesDoesNotAllocateOnceWarm() {
+        final UrlMatcher matcher = new UrlMatcher(new String[] {
+                "bcd.random"
+        });
+        matcher.setPrefilter(UrlMatcher.PREFILTER_BITS_PER_ENTRY_DEFAULT);
+
+        final PageContext page = matcher.createPageContext("http://mozilla.org");
+        final Uri[] resources = new Uri[] {
+                Uri.parse("http://www.bcd.random/something"),
+                Uri.parse("http://other.random/something"),
+                Uri.parse("http://mozilla.org/resource")
+        };
+        final int[] blocked = new int[1];
+
+        final long bytes = Allocations.bytesPerInvocation(10000, new Runnable() {
+            @Override
+            public void run() {
+                for (final Uri resource : resources) {
+                    if (matcher.matches(resource, page)) {
+                        blocked[0]++;
+                    }
+                }
+            }
+        });
+
+        assertEquals("Blocking decisions must not allocate beyond what Uri already does", 0, bytes);
+        assertTrue(blocked[0] > 0);
+    }
+
+    @Test
+    public void statsCountVerdicts() {
+        final Map<String, Trie.Builder> categories = new HashMap<>();
+        final Map<String, String> categoryPrefMap = new HashMap<>();
+
+        categories.put("ads", new Trie.Builder()
+                .put(FocusString.create("tracker.com").reverse())
+                .put(FocusString.create("ads.net").reverse()));
+        categories.put("social", new Trie.Builder()
+                .put(FocusString.create("tracker.com").reverse())
+                .put(FocusString.create("cdn-tracker.net").reverse()));
+        categoryPrefMap.put("ads", "ads");
+        categoryPrefMap.put("social", "social");
+
+        final EntityList entityList = new EntityList(new Trie.WhiteListTrie.Builder()
+                .putWhiteList(FocusString.create("tracker.com").reverse(), new Trie.Builder()
+                        .put(FocusString.create("cdn-tracker.net").reverse())
+                        .build())
+                .build());
+
+        final UrlMatcher matcher = new UrlMatcher(RuntimeEnvironment.application, categoryPrefMap, CategoryTrie.build(categories), entityList);
+        final PageContext page = matcher.createPageContext("http://mozilla.org");
+        final PageContext entityPage = matcher.createPageContext("http://tracker.com");
+
+        assertTrue(matcher.matches(Uri.parse("http://tracker.com/a.js"), page));
+        assertTrue(matcher.matches(Uri.parse("http://tracker.com/b.js"), page));
+        assertTrue(matcher.matches(Uri.parse("http://ads.net/a.js"), page));
+        assertFalse(matcher.matches(Uri.parse("http://cdn-tracker.net/a.js"), entityPage));
+        assertTrue(matcher.matches(Uri.parse("http://example.com/font.woff2"), page));
+        assertFalse(matcher.matches(Uri.parse("http://example.com/a.js"), page));
+
+        final MatcherStats.Snapshot stats = matcher.getStats();
+
+        assertEquals(6, stats.getMatchCount());
+        assertEquals(3, (long) stats.categoryBlocks.get("ads"));
+        assertEquals(2, (long) stats.categoryBlocks.get("social"));
+        assertEquals(1, stats.whitelistSaves);
+        assertEquals(1, stats.webfontBlocks);
+
+        // tracker.com is looked up twice, all other hosts once
+        assertEquals(1, stats.hostCacheStats.hits);
+        assertEquals(4, stats.hostCacheStats.misses);
+
+        assertTrue(stats.getLatencyPercentileNanos(50) > 0);
+        assertTrue(stats.getLatencyPercentileNanos(50) <= stats.getLatencyPercentileNanos(100));
+        assertEquals(64, MatcherStats.Snapshot.getLatencyBucketLimitNanos(MatcherStats.getLatencyBucket(33)));
+        assertEquals(64, MatcherStats.Snapshot.getLatencyBucketLimitNanos(MatcherStats.getLatencyBucket(63)));
+        assertEquals(128, MatcherStats.Snapshot.getLatencyBucketLimitNanos(MatcherStats.getLatencyBucket(64)));
+    }
+
+    @Test
+    public void loadsListsFromFiles() throws Exception {
+        final String categories = "\"Advertising\": [{\"Tracker\": {\"http://tracker.com/\": [\"tracker.com\"]}}]," +
+                "\"Analytics\": [{\"Tracker\": {\"http://tracker.com/\": [\"analytics.com\"]}}]," +
+                "\"Content\": [{\"Tracker\": {\"http://tracker.com/\": [\"content.com\"]}}]," +
+                "\"Cryptomining\": [{\"Tracker\": {\"http://tracker.com/\": [\"mining.com\"]}}]," +
+                "\"Social\": [{\"Tracker\": {\"http://tracker.com/\": [\"social.com\"]}}]";
+
+        final File entityList = writeList("{\"Tracker\": {\"properties\": [\"tracker.com\"], \"resources\": [\"tracker.com\", \"analytics.com\"]}}");
+        final File validList = writeList("{\"categories\": {" + categories + "," +
+                "\"Fingerprinting\": [{\"Tracker\": {\"http://tracker.com/\": [\"fingerprinting.com\"]}}]}}");
+        final File incompleteList = writeList("{\"categories\": {" + categories + "}}");
+
+        final SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(RuntimeEnvironment.application);
+        preferences.edit()
+                .putBoolean(RuntimeEnvironment.application.getString(R.string.pref_key_privacy_block_fingerprinting), true)
+                .apply();
+
+        final UrlMatcher matcher = UrlMatcher.loadMatcher(RuntimeEnvironment.application, validList, new File[0], entityList);
+        final Uri page = Uri.parse("http://mozilla.org");
+
+        assertTrue(matcher.matches(Uri.parse("http://analytics.com/a.js"), page));
+        assertTrue(matcher.matches(Uri.parse("http://fingerprinting.com/a.js"), page));
+        assertFalse(matcher.matches(Uri.parse("http://analytics.com/a.js"), Uri.parse("http://tracker.com")));
+
+        // Lists that are missing an enabled category are rejected
+        try {
+            UrlMatcher.loadMatcher(RuntimeEnvironment.application, incompleteList, new File[0], entityList);
+            Assert.fail("Expected incomplete list to be rejected");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+
+        // ... even if it's disabled: files could change before it's enabled
+        preferences.edit()
+                .putBoolean(RuntimeEnvironment.application.getString(R.string.pref_key_privacy_block_fingerprinting), false)
+                .apply();
+        try {
+            UrlMatcher.loadMatcher(RuntimeEnvironment.application, incompleteList, new File[0], entityList);
+            Assert.fail("Expected incomplete list to be rejected");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+
+    private static File writeList(final String json) throws IOException {
+        final File file = File.createTempFile("list", ".json");
+        file.deleteOnExit();
+
+        try (final Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            writer.write(json);
+        }
+
+        return file;
+    }
+}
@@ -0,0 +1,127 @@
+/* -*- Mode: Java; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package org.mozilla.focus.webview.matcher;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class VerdictCacheTest {
+
+    @Test
+    public void getAndPut() {
+        final VerdictCache cache = new VerdictCache(64 * 1024);
+
+        assertEquals(VerdictCache.MISS, cache.get("http://example.com/a.js"));
+
+        cache.put("http://example.com/a.js", 1);
+        cache.put("http://example.com/b.js", 0);
+
+        assertEquals(1, cache.get("http://example.com/a.js"));
+        assertEquals(0, cache.get("http://example.com/b.js"));
+
+        final VerdictCache.Stats stats = cache.getStats();
+        assertEquals(2, stats.hits);
+        assertEquals(1, stats.misses);
+        assertEquals(2, stats.entries);
+
+        cache.clear();
+        assertEquals(VerdictCache.MISS, cache.get("http://example.com/a.js"));
+        assertEquals(0, cache.getStats().entries);
+    }
+
+    @Test
+    public void putsFromBeforeAClearAreIgnored() {
+        final VerdictCache cache = new VerdictCache(64 * 1024);
+
+        final int epoch = cache.getEpoch();
+        cache.put("tracker.com", 0, epoch);
+        assertEquals(0, cache.get("tracker.com"));
+
+        cache.clear();
+        cache.put("tracker.com", 0, epoch);
+        assertEquals(VerdictCache.MISS, cache.get("tracker.com"));
+
+        cache.put("tracker.com", 1, cache.getEpoch());
+        assertEquals(1, cache.get("tracker.com"));
+    }
+
+    @Test
+    public void staysWithinBudget() {
+        final int budget = 16 * 1024;
+        final VerdictCache cache = new VerdictCache(budget);
+
+        for (int i = 0; i < 10000; i++) {
+            cache.put("http://tracker.example.com/pixel.gif?cb=" + i, 1);
+        }
+
+        final VerdictCache.Stats stats = cache.getStats();
+        assertTrue("Cache exceeds its budget: " + stats, stats.bytes <= budget);
+        assertTrue("Cache should have evicted entries: " + stats, stats.evictions > 0);
+        assertEquals(10000 - stats.entries, stats.evictions);
+
+        // The most recent entry must have survived
+        assertEquals(1, cache.get("http://tracker.example.com/pixel.gif?cb=9999"));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        // Keep everything in one stripe's worth of budget: small enough that only a few entries fit.
+        final VerdictCache cache = new VerdictCache(8 * 400);
+
+        cache.put("a", 1);
+        for (int i = 0; i < 1000; i++) {
+            // Keep "a" alive by using it
+            assertEquals(1, cache.get("a"));
+            cache.put("key" + i, 1);
+        }
+
+        assertEquals(1, cache.get("a"));
+    }
+
+    @Test
+    public void parallelAccess() throws Exception {
+        final VerdictCache cache = new VerdictCache(32 * 1024);
+        final AtomicInteger errors = new AtomicInteger();
+        final List<Thread> threads = new ArrayList<>();
+
+        for (int t = 0; t < 8; t++) {
+            final int thread = t;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 20000; i++) {
+                        final String key = "http://example.com/" + ((i * 31 + thread) % 2000);
+                        final int expected = key.length() % 2;
+
+                        final int value = cache.get(key);
+                        if (value != VerdictCache.MISS && value != expected) {
+                            errors.incrementAndGet();
+                        }
+                        cache.put(key, expected);
+                    }
+                }
+            }));
+        }
+
+        for (final Thread thread : threads) {
+            thread.start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(0, errors.get());
+
+        final VerdictCache.Stats stats = cache.getStats();
+        assertEquals(8 * 20000, stats.hits + stats.misses);
+        assertTrue(stats.bytes <= 32 * 1024);
+    }
+}
@@ -0,0 +1,136 @@
+/* -*- Mode: Java; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package org.mozilla.focus.gradle;
+
+import org.gradle.api.DefaultTask;
+import org.gradle.api.file.FileCollection;
+import org.gradle.api.tasks.InputFile;
+import org.gradle.api.tasks.InputFiles;
+import org.gradle.api.tasks.Optional;
+import org.gradle.api.tasks.OutputFile;
+import org.gradle.api.tasks.TaskAction;
+import org.mozilla.focus.webview.matcher.BlocklistCompiler;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compiles the shavar blocklist, its overrides, any additional lists and the entity list into a
+ * single binary image that the app can use without parsing any JSON.
+ */
+public class CompileBlocklistsTask extends DefaultTask {
+    private File blocklist;
+    private FileCollection overrides;
+    private FileCollection additionalLists;
+    private File entityList;
+    private File output;
+    private File report;
+
+    /**
+     * The base list: can be omitted for images that only contain additional lists.
+     */
+    @Optional
+    @InputFile
+    public File getBlocklist() {
+        return blocklist;
+    }
+
+    public void setBlocklist(final File blocklist) {
+        this.blocklist = blocklist;
+    }
+
+    /**
+     * Override lists, applied in order after the base blocklist.
+     */
+    @Optional
+    @InputFiles
+    public FileCollection getOverrides() {
+        return overrides;
+    }
+
+    public void setOverrides(final FileCollection overrides) {
+        this.overrides = overrides;
+    }
+
+    /**
+     * Lists that add their own categories (e.g. EasyList), which the user can enable separately.
+     */
+    @Optional
+    @InputFiles
+    public FileCollection getAdditionalLists() {
+        return additionalLists;
+    }
+
+    public void setAdditionalLists(final FileCollection additionalLists) {
+        this.additionalLists = additionalLists;
+    }
+
+    @Optional
+    @InputFile
+    public File getEntityList() {
+        return entityList;
+    }
+
+    public void setEntityList(final File entityList) {
+        this.entityList = entityList;
+    }
+
+    @OutputFile
+    public File getOutput() {
+        return output;
+    }
+
+    public void setOutput(final File output) {
+        this.output = output;
+    }
+
+    /**
+     * Where to write the list statistics (entries per category, removed entries, trie size).
+     */
+    @Optional
+    @OutputFile
+    public File getReport() {
+        return report;
+    }
+
+    public void setReport(final File report) {
+        this.report = report;
+    }
+
+    @TaskAction
+    public void compile() throws IOException {
+        final List<File> overrideFiles = new ArrayList<>();
+        if (overrides != null) {
+            overrideFiles.addAll(overrides.getFiles());
+        }
+
+        final List<File> additionalFiles = new ArrayList<>();
+        if (additionalLists != null) {
+            additionalFiles.addAll(additionalLists.getFiles());
+        }
+
+        final BlocklistCompiler.Summary summary =
+                BlocklistCompiler.compile(blocklist, overrideFiles, additionalFiles, entityList, output);
+
+        getLogger().lifecycle("Blocklists: " + summary);
+
+        if (report != null) {
+            final File directory = report.getParentFile();
+            if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Unable to create " + directory);
+            }
+
+            try (final Writer writer = new OutputStreamWriter(new FileOutputStream(report), StandardCharsets.UTF_8)) {
+                writer.write(summary.getReport());
+            }
+        }
+    }
+}
@@ -0,0 +1,358 @@
+/* -*- Mode: Java; c-basic-offset: 4; tab-width: 20; indent-tabs-mode: nil; -*-
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package org.mozilla.focus.webview.matcher;
+
+import org.mozilla.focus.webview.matcher.Trie.WhiteListTrie;
+import org.mozilla.focus.webview.matcher.util.FocusString;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import groovy.json.JsonSlurper;
+
+/**
+ * Build time counterpart of BlocklistProcessor and EntityListProcessor: parses the shavar lists and
+ * writes them out as a {@link BlocklistImage}.
+ *
+ * Additional lists (EasyList, AdGuard, ...) use the same format, but each of them adds its own
+ * categories. They're usually compiled into a separate image, so that the app only needs to load
+ * them once the user enables one of them. Hosts are de-duplicated across all lists in an image:
+ * every host is stored once in the merged CategoryTrie, with the bits of all categories that
+ * contain it.
+ *
+ * Entries that can't change any decision are dropped: hosts listed more than once in a category,
+ * and hosts whose parent domain is in the same category too (see
+ * {@link Trie.Builder#removeDominated()}). To be safe, the result is then checked against the
+ * unreduced lists for every listed host, its parent domains and a subdomain.
+ *
+ * The category handling (ignored categories, moving Facebook/Twitter from "Disconnect" into
+ * "Social", and the BASE_LIST/OVERRIDE_LIST rules) must be kept in sync with BlocklistProcessor,
+ * which is still used for lists that aren't compiled at build time.
+ */
+public final class BlocklistCompiler {
+    private static final String SOCIAL = "Social";
+    private static final String DISCONNECT = "Disconnect";
+
+    private static final Set<String> IGNORED_CATEGORIES = Collections.unmodifiableSet(
+            new HashSet<>(Arrays.asList("Legacy Disconnect", "Legacy Content")));
+
+    private static final Set<String> DISCONNECT_MOVED = Collections.unmodifiableSet(
+            new HashSet<>(Arrays.asList("Facebook", "Twitter")));
+
+    /**
+     * Entry counts of one category.
+     */
+    public static final class CategorySummary {
+        public final String name;
+        // As listed (including duplicates), distinct hosts, and distinct hosts that were dropped
+        // because a parent domain is listed too.
+        public final int listed;
+        public final int distinct;
+        public final int dominated;
+
+        private CategorySummary(final String name, final int listed, final int distinct, final int dominated) {
+            this.name = name;
+            this.listed = listed;
+            this.distinct = distinct;
+            this.dominated = dominated;
+        }
+
+        public int getEntries() {
+            return distinct - dominated;
+        }
+
+        @Override
+        public String toString() {
+            return name + ": " + listed + " listed, " + (listed - distinct) + " duplicates, " +
+                    dominated + " dominated, " + getEntries() + " entries";
+        }
+    }
+
+    public static final class Summary {
+        public final List<CategorySummary> categories;
+        public final int entries;
+        public final int removed;
+        public final int hosts;
+        public final int nodes;
+        public final long bytes;
+
+        private Summary(final List<CategorySummary> categories, final int hosts, final int nodes, final long bytes) {
+            this.categories = Collections.unmodifiableList(categories);
+            this.hosts = hosts;
+            this.nodes = nodes;
+            this.bytes = bytes;
+
+            int entries = 0;
+            int removed = 0;
+            for (final CategorySummary category : categories) {
+                entries += category.getEntries();
+                removed += category.listed - category.getEntries();
+            }
+            this.entries = entries;
+            this.removed = removed;
+        }
+
+        @Override
+        public String toString() {
+            return categories.size() + " categories, " + entries + " entries (" + removed + " redundant entries removed), " +
+                    hosts + " distinct hosts (" + (entries - hosts) + " shared between categories), " +
+                    nodes + " trie nodes, " + bytes + " bytes";
+        }
+
+        /**
+         * @return The summary, followed by one line per category.
+         */
+        public String getReport() {
+            final StringBuilder report = new StringBuilder(toString()).append('\n');
+            for (final CategorySummary category : categories) {
+                report.append(category).append('\n');
+            }
+            return report.toString();
+        }
+    }
+
+    private enum ListType {
+        BASE_LIST,
+        OVERRIDE_LIST,
+        ADDITIONAL_LIST
+    }
+
+    private BlocklistCompiler() {}
+
+    /**
+     * @param blocklist The base (Disconnect) list, or null for an image containing only additional lists.
+     * @param entityList The entity list, or null for an image without any whitelists.
+     */
+    public static Summary compile(final File blocklist, final List<File> overrides, final List<File> additionalLists,
+                                  final File entityList, final File output) throws IOException {
+        final Map<String, Trie.Builder> categoryMap = new HashMap<>();
+        final Map<String, Integer> listed = new HashMap<>();
+        final Set<String> hosts = new HashSet<>();
+
+        if (blocklist != null) {
+            loadCategories(blocklist, categoryMap, ListType.BASE_LIST, listed, hosts);
+        }
+        for (final File override : overrides) {
+            loadCategories(override, categoryMap, ListType.OVERRIDE_LIST, listed, hosts);
+        }
+        for (final File list : additionalLists) {
+            loadCategories(list, categoryMap, ListType.ADDITIONAL_LIST, listed, hosts);
+        }
+
+        final Map<String, Trie.Builder> unreducedMap = new HashMap<>();
+        final List<CategorySummary> categorySummaries = new ArrayList<>();
+
+        for (final Map.Entry<String, Trie.Builder> entry : categoryMap.entrySet()) {
+            final Trie.Builder category = entry.getValue();
+            unreducedMap.put(entry.getKey(), new Trie.Builder().putAll(category, 1));
+
+            final int distinct = category.size();
+            final int dominated = category.removeDominated();
+
+            final Integer count = listed.get(entry.getKey());
+            categorySummaries.add(new CategorySummary(entry.getKey(), count != null ? count : 0, distinct, dominated));
+        }
+
+        Collections.sort(categorySummaries, new Comparator<CategorySummary>() {
+            @Override
+            public int compare(final CategorySummary a, final CategorySummary b) {
+                return a.name.compareTo(b.name);
+            }
+        });
+
+        final CategoryTrie categories = CategoryTrie.build(categoryMap);
+        verify(categories, CategoryTrie.build(unreducedMap), hosts);
+
+        final WhiteListTrie entities = entityList != null
+                ? loadEntityList(entityList)
+                : new WhiteListTrie.Builder().build();
+
+        final File directory = output.getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+
+        try (final OutputStream stream = new BufferedOutputStream(new FileOutputStream(output))) {
+            BlocklistImage.write(stream, categories, entities);
+        }
+
+        final Trie trie = categories.getTrie();
+        return new Summary(categorySummaries, trie.getTerminalCount(), trie.getNodeCount(), output.length());
+    }
+
+    /**
+     * Checks that removing redundant entries didn't change the categories of any listed host, of
+     * their parent domains, or of their subdomains.
+     */
+    private static void verify(final CategoryTrie reduced, final CategoryTrie unreduced, final Set<String> hosts) {
+        for (final String host : hosts) {
+            verify(reduced, unreduced, "www." + host);
+
+            String domain = host;
+            while (true) {
+                verify(reduced, unreduced, domain);
+
+                final int dot = domain.indexOf('.');
+                if (dot == -1) {
+                    break;
+                }
+                domain = domain.substring(dot + 1);
+            }
+        }
+    }
+
+    private static void verify(final CategoryTrie reduced, final CategoryTrie unreduced, final String host) {
+        final int expected = unreduced.getMask(host);
+        final int actual = reduced.getMask(host);
+
+        if (actual != expected) {
+            throw new IllegalStateException("Removing redundant entries changed the categories of " + host +
+                    ": " + Integer.toBinaryString(expected) + " -> " + Integer.toBinaryString(actual));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> parse(final File file) {
+        return (Map<String, Object>) new JsonSlurper().parse(file, "UTF-8");
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void loadCategories(final File file, final Map<String, Trie.Builder> categoryMap, final ListType listType,
+                                       final Map<String, Integer> listed, final Set<String> hosts) {
+        final Map<String, Object> categories = (Map<String, Object>) parse(file).get("categories");
+        if (categories == null) {
+            throw new IllegalStateException("No categories in " + file);
+        }
+
+        final List<String> socialOverrides = new LinkedList<>();
+
+        for (final Map.Entry<String, Object> category : categories.entrySet()) {
+            final String categoryName = category.getKey();
+            final List<Object> sites = (List<Object>) category.getValue();
+
+            if (IGNORED_CATEGORIES.contains(categoryName)) {
+                continue;
+            }
+
+            if (listType != ListType.ADDITIONAL_LIST && categoryName.equals(DISCONNECT)) {
+                // We move these items into a different list, see below
+                for (final Object site : sites) {
+                    for (final Map.Entry<String, Object> owner : ((Map<String, Object>) site).entrySet()) {
+                        if (DISCONNECT_MOVED.contains(owner.getKey())) {
+                            socialOverrides.addAll(getHosts((Map<String, Object>) owner.getValue()));
+                        }
+                    }
+                }
+                continue;
+            }
+
+            final Trie.Builder categoryTrie;
+            if (listType != ListType.OVERRIDE_LIST) {
+                // Additional lists must not share categories with any other list: users enable
+                // them separately.
+                if (categoryMap.containsKey(categoryName)) {
+                    throw new IllegalStateException("Cannot insert already loaded category: " + categoryName);
+                }
+
+                categoryTrie = new Trie.Builder();
+                categoryMap.put(categoryName, categoryTrie);
+            } else {
+                categoryTrie = categoryMap.get(categoryName);
+
+                if (categoryTrie == null) {
+                    throw new IllegalStateException("Cannot add override items to nonexistent category");
+                }
+            }
+
+            for (final Object site : sites) {
+                for (final Object owner : ((Map<String, Object>) site).values()) {
+                    for (final String host : getHosts((Map<String, Object>) owner)) {
+                        put(categoryTrie, categoryName, host, listed, hosts);
+                    }
+                }
+            }
+        }
+
+        if (listType == ListType.ADDITIONAL_LIST) {
+            return;
+        }
+
+        final Trie.Builder socialTrie = categoryMap.get(SOCIAL);
+        if (socialTrie == null && listType == ListType.BASE_LIST) {
+            throw new IllegalStateException("Expected social list to exist. Can't copy FB/Twitter into non-existing list");
+        }
+
+        for (final String host : socialOverrides) {
+            put(socialTrie, SOCIAL, host, listed, hosts);
+        }
+    }
+
+    private static void put(final Trie.Builder categoryTrie, final String categoryName, final String host,
+                            final Map<String, Integer> listed, final Set<String> hosts) {
+        categoryTrie.put(FocusString.create(host).reverse());
+
+        final Integer count = listed.get(categoryName);
+        listed.put(categoryName, count == null ? 1 : count + 1);
+        hosts.add(host);
+    }
+
+    /**
+     * @param owner The site owner's entries, i.e. a map of site URL to list of hosts.
+     */
+    @SuppressWarnings("unchecked")
+    private static List<String> getHosts(final Map<String, Object> owner) {
+        final List<String> hosts = new LinkedList<>();
+
+        for (final Object value : owner.values()) {
+            // Sometimes there's a "dnt" entry (a String), with unspecified purpose.
+            if (value instanceof List) {
+                hosts.addAll((List<String>) value);
+            }
+        }
+
+        return hosts;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static WhiteListTrie loadEntityList(final File file) {
+        final WhiteListTrie.Builder entityMap = new WhiteListTrie.Builder();
+
+        for (final Object value : parse(file).values()) {
+            final Map<String, Object> site = (Map<String, Object>) value;
+
+            final Trie.Builder whitelist = new Trie.Builder();
+            final List<String> resources = (List<String>) site.get("resources");
+            if (resources != null) {
+                for (final String resource : resources) {
+                    whitelist.put(FocusString.create(resource).reverse());
+                }
+            }
+
+            final Trie whitelistTrie = whitelist.build();
+
+            final List<String> properties = (List<String>) site.get("properties");
+            if (properties != null) {
+                for (final String property : properties) {
+                    entityMap.putWhiteList(FocusString.create(property).reverse(), whitelistTrie);
+                }
+            }
+        }
+
+        return entityMap.build();
+    }
+}